@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An interface for encoding and decoding Objects to and from bytes. A
+ * {@link Generic_FileStore} can be set to use a codec for writing and the
+ * identifier of the codec is recorded with each record written so that stores
+ * written with a mix of codecs remain readable. Codecs are looked up by
+ * identifier using {@link Generic_Codecs}.
+ *
+ * @param <T> The type of Object encoded and decoded.
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public interface Generic_Codec<T> {
+
+    /**
+     * @return The identifier of the codec. This must be unique amongst the
+     * codecs registered with {@link Generic_Codecs} and must not be 0.
+     */
+    byte getID();
+
+    /**
+     * Encodes {@code o} writing it into {@code b} from its position.
+     *
+     * @param o The Object to encode.
+     * @param b The buffer to write into.
+     * @return {@code b} or, if there was not enough room in {@code b}, a new
+     * larger buffer containing what was in {@code b} up to its position and
+     * the encoded Object. The position of what is returned is after the
+     * encoded Object.
+     * @throws IOException If {@code o} cannot be encoded.
+     */
+    ByteBuffer write(T o, ByteBuffer b) throws IOException;
+
+    /**
+     * Decodes an Object reading it from {@code b} from its position.
+     *
+     * @param b The buffer to read from.
+     * @return The decoded Object.
+     * @throws IOException If the Object cannot be decoded.
+     * @throws ClassNotFoundException If the class of the Object cannot be
+     * found.
+     */
+    T read(ByteBuffer b) throws IOException, ClassNotFoundException;
+
+    /**
+     * Returns a buffer with at least {@code n} bytes remaining. If {@code b}
+     * has enough remaining then it is returned, otherwise a larger buffer is
+     * returned with the contents of {@code b} up to its position copied into
+     * it.
+     *
+     * @param b The buffer.
+     * @param n The number of bytes needed.
+     * @return A buffer with at least {@code n} bytes remaining.
+     */
+    static ByteBuffer ensure(ByteBuffer b, int n) {
+        if (b.remaining() >= n) {
+            return b;
+        }
+        int c = Math.max(b.capacity() * 2, b.position() + n);
+        ByteBuffer r = ByteBuffer.allocate(c);
+        b.flip();
+        r.put(b);
+        return r;
+    }
+}
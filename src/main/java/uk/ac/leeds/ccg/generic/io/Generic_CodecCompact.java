@@ -0,0 +1,292 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compact {@link Generic_Codec} for null, boxed primitives, Strings and
+ * arrays of primitives and Strings. Each Object is written as a single byte
+ * type tag followed by the data, with arrays and Strings preceded by their
+ * length. There are no class descriptors, so for small records this is much
+ * smaller and faster than {@link Generic_CodecJava}. Any other type of Object
+ * results in an IOException.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_CodecCompact implements Generic_Codec<Object> {
+
+    /**
+     * The identifier of this codec.
+     */
+    public static final byte ID = 2;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHAR = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte BOOLEANS = 10;
+    private static final byte BYTES = 11;
+    private static final byte SHORTS = 12;
+    private static final byte CHARS = 13;
+    private static final byte INTS = 14;
+    private static final byte LONGS = 15;
+    private static final byte FLOATS = 16;
+    private static final byte DOUBLES = 17;
+    private static final byte STRINGS = 18;
+
+    /**
+     * Create a new instance.
+     */
+    public Generic_CodecCompact() {
+    }
+
+    @Override
+    public byte getID() {
+        return ID;
+    }
+
+    @Override
+    public ByteBuffer write(Object o, ByteBuffer b) throws IOException {
+        if (o == null) {
+            b = Generic_Codec.ensure(b, 1);
+            b.put(NULL);
+        } else if (o instanceof Boolean) {
+            b = Generic_Codec.ensure(b, 2);
+            b.put(BOOLEAN).put((byte) ((Boolean) o ? 1 : 0));
+        } else if (o instanceof Byte) {
+            b = Generic_Codec.ensure(b, 2);
+            b.put(BYTE).put((Byte) o);
+        } else if (o instanceof Short) {
+            b = Generic_Codec.ensure(b, 3);
+            b.put(SHORT).putShort((Short) o);
+        } else if (o instanceof Character) {
+            b = Generic_Codec.ensure(b, 3);
+            b.put(CHAR).putChar((Character) o);
+        } else if (o instanceof Integer) {
+            b = Generic_Codec.ensure(b, 5);
+            b.put(INT).putInt((Integer) o);
+        } else if (o instanceof Long) {
+            b = Generic_Codec.ensure(b, 9);
+            b.put(LONG).putLong((Long) o);
+        } else if (o instanceof Float) {
+            b = Generic_Codec.ensure(b, 5);
+            b.put(FLOAT).putFloat((Float) o);
+        } else if (o instanceof Double) {
+            b = Generic_Codec.ensure(b, 9);
+            b.put(DOUBLE).putDouble((Double) o);
+        } else if (o instanceof String) {
+            b = Generic_Codec.ensure(b, 1);
+            b.put(STRING);
+            b = putString(b, (String) o);
+        } else if (o instanceof boolean[]) {
+            boolean[] a = (boolean[]) o;
+            b = Generic_Codec.ensure(b, 5 + a.length);
+            b.put(BOOLEANS).putInt(a.length);
+            for (boolean x : a) {
+                b.put((byte) (x ? 1 : 0));
+            }
+        } else if (o instanceof byte[]) {
+            byte[] a = (byte[]) o;
+            b = Generic_Codec.ensure(b, 5 + a.length);
+            b.put(BYTES).putInt(a.length).put(a);
+        } else if (o instanceof short[]) {
+            short[] a = (short[]) o;
+            b = Generic_Codec.ensure(b, 5 + a.length * 2);
+            b.put(SHORTS).putInt(a.length);
+            b.asShortBuffer().put(a);
+            b.position(b.position() + a.length * 2);
+        } else if (o instanceof char[]) {
+            char[] a = (char[]) o;
+            b = Generic_Codec.ensure(b, 5 + a.length * 2);
+            b.put(CHARS).putInt(a.length);
+            b.asCharBuffer().put(a);
+            b.position(b.position() + a.length * 2);
+        } else if (o instanceof int[]) {
+            int[] a = (int[]) o;
+            b = Generic_Codec.ensure(b, 5 + a.length * 4);
+            b.put(INTS).putInt(a.length);
+            b.asIntBuffer().put(a);
+            b.position(b.position() + a.length * 4);
+        } else if (o instanceof long[]) {
+            long[] a = (long[]) o;
+            b = Generic_Codec.ensure(b, 5 + a.length * 8);
+            b.put(LONGS).putInt(a.length);
+            b.asLongBuffer().put(a);
+            b.position(b.position() + a.length * 8);
+        } else if (o instanceof float[]) {
+            float[] a = (float[]) o;
+            b = Generic_Codec.ensure(b, 5 + a.length * 4);
+            b.put(FLOATS).putInt(a.length);
+            b.asFloatBuffer().put(a);
+            b.position(b.position() + a.length * 4);
+        } else if (o instanceof double[]) {
+            double[] a = (double[]) o;
+            b = Generic_Codec.ensure(b, 5 + a.length * 8);
+            b.put(DOUBLES).putInt(a.length);
+            b.asDoubleBuffer().put(a);
+            b.position(b.position() + a.length * 8);
+        } else if (o instanceof String[]) {
+            String[] a = (String[]) o;
+            b = Generic_Codec.ensure(b, 5);
+            b.put(STRINGS).putInt(a.length);
+            for (String x : a) {
+                b = putString(b, x);
+            }
+        } else {
+            throw new IOException("Cannot encode " + o.getClass().getName()
+                    + " using " + getClass().getSimpleName() + ".");
+        }
+        return b;
+    }
+
+    /**
+     * Writes the length of s as an int followed by s encoded as UTF-8. A
+     * length of -1 is written for null.
+     *
+     * @param b The buffer to write to.
+     * @param s The String to write.
+     * @return {@code b} or a larger buffer.
+     */
+    private static ByteBuffer putString(ByteBuffer b, String s) {
+        if (s == null) {
+            b = Generic_Codec.ensure(b, 4);
+            b.putInt(-1);
+        } else {
+            byte[] a = s.getBytes(StandardCharsets.UTF_8);
+            b = Generic_Codec.ensure(b, 4 + a.length);
+            b.putInt(a.length).put(a);
+        }
+        return b;
+    }
+
+    /**
+     * @param b The buffer to read from.
+     * @return A String read from b.
+     */
+    private static String getString(ByteBuffer b) {
+        int n = b.getInt();
+        if (n < 0) {
+            return null;
+        }
+        String r;
+        if (b.hasArray()) {
+            r = new String(b.array(), b.arrayOffset() + b.position(), n,
+                    StandardCharsets.UTF_8);
+            b.position(b.position() + n);
+        } else {
+            byte[] a = new byte[n];
+            b.get(a);
+            r = new String(a, StandardCharsets.UTF_8);
+        }
+        return r;
+    }
+
+    @Override
+    public Object read(ByteBuffer b) throws IOException {
+        byte t = b.get();
+        int n;
+        switch (t) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return b.get() != 0;
+            case BYTE:
+                return b.get();
+            case SHORT:
+                return b.getShort();
+            case CHAR:
+                return b.getChar();
+            case INT:
+                return b.getInt();
+            case LONG:
+                return b.getLong();
+            case FLOAT:
+                return b.getFloat();
+            case DOUBLE:
+                return b.getDouble();
+            case STRING:
+                return getString(b);
+            case BOOLEANS:
+                n = b.getInt();
+                boolean[] z = new boolean[n];
+                for (int i = 0; i < n; i++) {
+                    z[i] = b.get() != 0;
+                }
+                return z;
+            case BYTES:
+                n = b.getInt();
+                byte[] bs = new byte[n];
+                b.get(bs);
+                return bs;
+            case SHORTS:
+                n = b.getInt();
+                short[] ss = new short[n];
+                b.asShortBuffer().get(ss);
+                b.position(b.position() + n * 2);
+                return ss;
+            case CHARS:
+                n = b.getInt();
+                char[] cs = new char[n];
+                b.asCharBuffer().get(cs);
+                b.position(b.position() + n * 2);
+                return cs;
+            case INTS:
+                n = b.getInt();
+                int[] is = new int[n];
+                b.asIntBuffer().get(is);
+                b.position(b.position() + n * 4);
+                return is;
+            case LONGS:
+                n = b.getInt();
+                long[] ls = new long[n];
+                b.asLongBuffer().get(ls);
+                b.position(b.position() + n * 8);
+                return ls;
+            case FLOATS:
+                n = b.getInt();
+                float[] fs = new float[n];
+                b.asFloatBuffer().get(fs);
+                b.position(b.position() + n * 4);
+                return fs;
+            case DOUBLES:
+                n = b.getInt();
+                double[] ds = new double[n];
+                b.asDoubleBuffer().get(ds);
+                b.position(b.position() + n * 8);
+                return ds;
+            case STRINGS:
+                n = b.getInt();
+                String[] strings = new String[n];
+                for (int i = 0; i < n; i++) {
+                    strings[i] = getString(b);
+                }
+                return strings;
+            default:
+                throw new IOException("Unknown type " + t + " decoding using "
+                        + getClass().getSimpleName() + ".");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Generic_Codec} that uses Java serialization. This can encode any
+ * {@link java.io.Serializable} Object in the same way as
+ * {@link Generic_IO#writeObject(java.lang.Object, java.nio.file.Path)}.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_CodecJava implements Generic_Codec<Object> {
+
+    /**
+     * The identifier of this codec.
+     */
+    public static final byte ID = 1;
+
+    /**
+     * Create a new instance.
+     */
+    public Generic_CodecJava() {
+    }
+
+    @Override
+    public byte getID() {
+        return ID;
+    }
+
+    @Override
+    public ByteBuffer write(Object o, ByteBuffer b) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeUnshared(o);
+        }
+        byte[] a = baos.toByteArray();
+        b = Generic_Codec.ensure(b, a.length);
+        b.put(a);
+        return b;
+    }
+
+    /**
+     * Decodes an Object reading it from {@code b} from its position. As
+     * {@link ObjectInputStream} reads ahead, all of what remains in {@code b}
+     * is consumed.
+     *
+     * @param b The buffer to read from.
+     * @return The decoded Object.
+     * @throws IOException If the Object cannot be decoded.
+     * @throws ClassNotFoundException If the class of the Object cannot be
+     * found.
+     */
+    @Override
+    public Object read(ByteBuffer b) throws IOException,
+            ClassNotFoundException {
+        ByteArrayInputStream bais;
+        if (b.hasArray()) {
+            bais = new ByteArrayInputStream(b.array(),
+                    b.arrayOffset() + b.position(), b.remaining());
+        } else {
+            byte[] a = new byte[b.remaining()];
+            b.duplicate().get(a);
+            bais = new ByteArrayInputStream(a);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(bais)) {
+            Object r = ois.readUnshared();
+            // ObjectInputStream reads ahead so the rest of b is consumed.
+            b.position(b.limit());
+            return r;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of {@link Generic_Codec} instances by identifier. The built in
+ * {@link Generic_CodecJava} and {@link Generic_CodecCompact} are registered.
+ * Other codecs must be registered before anything they have written is read.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_Codecs {
+
+    /**
+     * The built in Java serialization codec.
+     */
+    public static final Generic_CodecJava JAVA = new Generic_CodecJava();
+
+    /**
+     * The built in compact codec.
+     */
+    public static final Generic_CodecCompact COMPACT = new Generic_CodecCompact();
+
+    /**
+     * For storing the codecs by identifier.
+     */
+    private static final ConcurrentHashMap<Byte, Generic_Codec<?>> CODECS
+            = new ConcurrentHashMap<>();
+
+    static {
+        CODECS.put(JAVA.getID(), JAVA);
+        CODECS.put(COMPACT.getID(), COMPACT);
+    }
+
+    private Generic_Codecs() {
+    }
+
+    /**
+     * Registers {@code c}.
+     *
+     * @param c The codec to register.
+     * @throws IllegalArgumentException If the identifier of {@code c} is 0 or
+     * if a different codec is already registered with the same identifier.
+     */
+    public static void register(Generic_Codec<?> c) {
+        if (c.getID() == 0) {
+            throw new IllegalArgumentException("Codec identifier cannot be 0.");
+        }
+        Generic_Codec<?> e = CODECS.putIfAbsent(c.getID(), c);
+        if (e != null && e != c) {
+            throw new IllegalArgumentException("A codec is already registered "
+                    + "with the identifier " + c.getID() + ".");
+        }
+    }
+
+    /**
+     * @param id The identifier of the codec to return.
+     * @return The codec registered with the identifier {@code id} or null if
+     * there is no such codec.
+     */
+    public static Generic_Codec<?> get(byte id) {
+        return CODECS.get(id);
+    }
+}
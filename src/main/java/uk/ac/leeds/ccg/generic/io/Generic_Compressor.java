@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An interface for compressing and decompressing the payloads of records (see
+ * {@link Generic_FileStoreRecord}). The identifier of the compressor is
+ * recorded in the header of each record it compressed so that stores written
+ * with a mix of compressors remain readable. Compressors are looked up by
+ * identifier using {@link Generic_Compressors}.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public interface Generic_Compressor {
+
+    /**
+     * @return The identifier of the compressor. This must be unique amongst
+     * the compressors registered with {@link Generic_Compressors} and must not
+     * be 0 which is used for records that are not compressed.
+     */
+    byte getID();
+
+    /**
+     * Compresses {@code len} bytes of {@code a} from {@code off} writing them
+     * into {@code b} from its position.
+     *
+     * @param a The bytes to compress.
+     * @param off The offset in a of the first byte to compress.
+     * @param len The number of bytes to compress.
+     * @param b The buffer to write into.
+     * @return {@code b} or, if there was not enough room in {@code b}, a new
+     * larger buffer containing what was in {@code b} up to its position and
+     * the compressed bytes. The position of what is returned is after the
+     * compressed bytes.
+     * @throws IOException If encountered.
+     */
+    ByteBuffer compress(byte[] a, int off, int len, ByteBuffer b)
+            throws IOException;
+
+    /**
+     * Decompresses what remains in {@code b} into {@code a}.
+     *
+     * @param b The buffer to read from.
+     * @param a The array to fill with the decompressed bytes. The length of
+     * this is the number of bytes that were compressed.
+     * @throws IOException If the bytes cannot be decompressed.
+     */
+    void decompress(ByteBuffer b, byte[] a) throws IOException;
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link Generic_Compressor} that uses the JDK {@link Deflater} and
+ * {@link Inflater}. The compression level can be set, but this does not
+ * affect decompression, so all levels share the same identifier.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_CompressorDeflate implements Generic_Compressor {
+
+    /**
+     * The identifier of this compressor.
+     */
+    public static final byte ID = 1;
+
+    /**
+     * The compression level from 0 to 9 or -1 for the default.
+     */
+    protected final int level;
+
+    /**
+     * A deflater for each thread for each level, indexed by level plus 1.
+     * These are shared by all instances so the number of deflaters does not
+     * grow with the number of instances.
+     */
+    private static final ThreadLocal<Deflater>[] DEFLATERS = deflaters();
+
+    /**
+     * An inflater for each thread.
+     */
+    private static final ThreadLocal<Inflater> INFLATER
+            = ThreadLocal.withInitial(() -> new Inflater());
+
+    /**
+     * @param level The compression level from 0 to 9 or -1 for the default.
+     * Level 1 is fastest and level 9 compresses most.
+     */
+    public Generic_CompressorDeflate(int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("level must be from -1 to 9.");
+        }
+        this.level = level;
+    }
+
+    /**
+     * @return A ThreadLocal deflater for each level.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static ThreadLocal<Deflater>[] deflaters() {
+        ThreadLocal<Deflater>[] r = new ThreadLocal[11];
+        for (int i = 0; i < r.length; i++) {
+            int l = i - 1;
+            r[i] = ThreadLocal.withInitial(() -> new Deflater(l));
+        }
+        return r;
+    }
+
+    /**
+     * Create a new instance with the default compression level.
+     */
+    public Generic_CompressorDeflate() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    public byte getID() {
+        return ID;
+    }
+
+    /**
+     * @return {@link #level}.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public ByteBuffer compress(byte[] a, int off, int len, ByteBuffer b)
+            throws IOException {
+        Deflater d = DEFLATERS[level + 1].get();
+        d.reset();
+        d.setInput(a, off, len);
+        d.finish();
+        b = Generic_Codec.ensure(b, len / 2 + 64);
+        while (!d.finished()) {
+            int n = d.deflate(b.array(), b.arrayOffset() + b.position(),
+                    b.remaining());
+            b.position(b.position() + n);
+            if (!b.hasRemaining()) {
+                b = Generic_Codec.ensure(b, b.capacity());
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public void decompress(ByteBuffer b, byte[] a) throws IOException {
+        Inflater i = INFLATER.get();
+        i.reset();
+        if (b.hasArray()) {
+            i.setInput(b.array(), b.arrayOffset() + b.position(),
+                    b.remaining());
+        } else {
+            byte[] c = new byte[b.remaining()];
+            b.duplicate().get(c);
+            i.setInput(c);
+        }
+        try {
+            int n = 0;
+            while (n < a.length) {
+                int r = i.inflate(a, n, a.length - n);
+                if (r == 0 && (i.finished() || i.needsInput()
+                        || i.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload.");
+                }
+                n += r;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        }
+        b.position(b.limit());
+    }
+}
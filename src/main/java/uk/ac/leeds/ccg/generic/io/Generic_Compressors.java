@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of {@link Generic_Compressor} instances by identifier. The built
+ * in {@link Generic_CompressorDeflate} is registered. Other compressors must
+ * be registered before anything they have compressed is read.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_Compressors {
+
+    /**
+     * The built in deflate compressor with the default compression level.
+     */
+    public static final Generic_CompressorDeflate DEFLATE
+            = new Generic_CompressorDeflate();
+
+    /**
+     * For storing the compressors by identifier.
+     */
+    private static final ConcurrentHashMap<Byte, Generic_Compressor> COMPRESSORS
+            = new ConcurrentHashMap<>();
+
+    static {
+        COMPRESSORS.put(DEFLATE.getID(), DEFLATE);
+    }
+
+    private Generic_Compressors() {
+    }
+
+    /**
+     * Registers {@code c}.
+     *
+     * @param c The compressor to register.
+     * @throws IllegalArgumentException If the identifier of {@code c} is 0 or
+     * if a different compressor is already registered with the same
+     * identifier.
+     */
+    public static void register(Generic_Compressor c) {
+        if (c.getID() == 0) {
+            throw new IllegalArgumentException(
+                    "Compressor identifier cannot be 0.");
+        }
+        Generic_Compressor e = COMPRESSORS.putIfAbsent(c.getID(), c);
+        if (e != null && e != c) {
+            throw new IllegalArgumentException("A compressor is already "
+                    + "registered with the identifier " + c.getID() + ".");
+        }
+    }
+
+    /**
+     * @param id The identifier of the compressor to return.
+     * @return The compressor registered with the identifier {@code id} or null
+     * if there is no such compressor.
+     */
+    public static Generic_Compressor get(byte id) {
+        return COMPRESSORS.get(id);
+    }
+}
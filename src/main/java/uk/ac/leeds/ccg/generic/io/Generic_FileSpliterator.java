@@ -0,0 +1,298 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A Spliterator over the paths of all files (not directories) in a directory
+ * tree which lists directories as it goes, so files are supplied as they are
+ * found and only the directories waiting to be listed are held in memory.
+ * Symbolic links are not followed and are supplied as files.
+ *
+ * Splitting hands over half of the directories waiting to be listed, so the
+ * tree is shared between threads by subdirectory. If there are fewer than two
+ * waiting, such as at the top, a batch of entries is read from the directory
+ * being listed and handed over instead, so a wide directory is shared without
+ * being listed all at once. Batches start at {@link #MIN_BATCH} entries and
+ * double with each split up to {@link #MAX_BATCH}. A filter is applied to
+ * each file as it is found.
+ *
+ * Each directory is listed with a DirectoryStream which is closed as soon as
+ * it has been read. Any that are still open, because traversal stopped early,
+ * are closed by {@link #close()} on the Spliterator created for the top
+ * directory, which {@link Generic_IO#getFileStream(Path, Predicate, boolean)}
+ * arranges to happen when the Stream is closed.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileSpliterator implements Spliterator<Path>,
+        AutoCloseable {
+
+    /**
+     * The number of entries read for the first batch handed over by
+     * {@link #trySplit()}.
+     */
+    protected static final int MIN_BATCH = 64;
+
+    /**
+     * The most entries read for a batch handed over by {@link #trySplit()}.
+     */
+    protected static final int MAX_BATCH = 4096;
+
+    /**
+     * The directories waiting to be listed.
+     */
+    protected final ArrayDeque<Path> dirs;
+
+    /**
+     * The paths of files handed over by the Spliterator this was split from
+     * and not yet supplied.
+     */
+    protected final ArrayDeque<Path> files;
+
+    /**
+     * The filter for files.
+     */
+    protected final Predicate<Path> filter;
+
+    /**
+     * The DirectoryStreams open for this and all Spliterators split from it.
+     */
+    protected final Set<DirectoryStream<Path>> open;
+
+    /**
+     * The DirectoryStream being read or null.
+     */
+    protected DirectoryStream<Path> ds;
+
+    /**
+     * The iterator of {@link #ds} or null.
+     */
+    protected Iterator<Path> it;
+
+    /**
+     * The number of entries to read for the next batch handed over by
+     * {@link #trySplit()}.
+     */
+    protected int batch;
+
+    /**
+     * @param dir The top directory.
+     * @param filter The filter for files.
+     */
+    public Generic_FileSpliterator(Path dir, Predicate<Path> filter) {
+        this(new ArrayDeque<>(), new ArrayDeque<>(), filter,
+                ConcurrentHashMap.newKeySet());
+        dirs.add(dir);
+    }
+
+    /**
+     * @param dirs The directories to list.
+     * @param files The paths of files to supply before listing dirs.
+     * @param filter The filter for files.
+     * @param open The DirectoryStreams open for the Spliterator split from.
+     */
+    protected Generic_FileSpliterator(ArrayDeque<Path> dirs,
+            ArrayDeque<Path> files, Predicate<Path> filter,
+            Set<DirectoryStream<Path>> open) {
+        this.dirs = dirs;
+        this.files = files;
+        this.filter = filter;
+        this.open = open;
+        batch = MIN_BATCH;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Path> action) {
+        while (true) {
+            Path f = files.poll();
+            if (f != null) {
+                action.accept(f);
+                return true;
+            }
+            if (it == null) {
+                Path d = dirs.pollLast();
+                if (d == null) {
+                    return false;
+                }
+                openDir(d);
+            }
+            try {
+                while (it.hasNext()) {
+                    Path p = it.next();
+                    if (isDirectory(p)) {
+                        dirs.add(p);
+                    } else if (filter.test(p)) {
+                        action.accept(p);
+                        return true;
+                    }
+                }
+            } catch (DirectoryIteratorException ex) {
+                closeDir();
+                throw new UncheckedIOException(ex.getCause());
+            }
+            closeDir();
+        }
+    }
+
+    /**
+     * If there are at least two directories waiting to be listed then half
+     * are handed over. Otherwise up to {@link #batch} entries are read from
+     * the directory being listed, opening the one waiting if none is being
+     * listed, and the subdirectories and filtered files found are handed
+     * over. The directory is closed once it has all been read.
+     *
+     * @return A Spliterator for half of the directories waiting to be listed,
+     * or for a batch of entries, or null.
+     */
+    @Override
+    public Spliterator<Path> trySplit() {
+        int n = dirs.size() / 2;
+        if (n > 0) {
+            ArrayDeque<Path> split = new ArrayDeque<>(n);
+            for (int i = 0; i < n; i++) {
+                split.add(dirs.poll());
+            }
+            return new Generic_FileSpliterator(split, new ArrayDeque<>(),
+                    filter, open);
+        }
+        if (it == null) {
+            Path d = dirs.poll();
+            if (d == null) {
+                return null;
+            }
+            openDir(d);
+        }
+        ArrayDeque<Path> sd = new ArrayDeque<>();
+        ArrayDeque<Path> sf = new ArrayDeque<>();
+        try {
+            for (int i = 0; i < batch && it.hasNext(); i++) {
+                Path p = it.next();
+                if (isDirectory(p)) {
+                    sd.add(p);
+                } else if (filter.test(p)) {
+                    sf.add(p);
+                }
+            }
+            if (!it.hasNext()) {
+                closeDir();
+            }
+        } catch (DirectoryIteratorException ex) {
+            closeDir();
+            throw new UncheckedIOException(ex.getCause());
+        }
+        batch = Math.min(batch * 2, MAX_BATCH);
+        if (sd.isEmpty() && sf.isEmpty()) {
+            return null;
+        }
+        return new Generic_FileSpliterator(sd, sf, filter, open);
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL;
+    }
+
+    /**
+     * @param p The path.
+     * @return true if p is a directory and not a symbolic link.
+     */
+    protected static boolean isDirectory(Path p) {
+        try {
+            return Files.readAttributes(p, BasicFileAttributes.class,
+                    NOFOLLOW_LINKS).isDirectory();
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a DirectoryStream for d.
+     *
+     * @param d The directory.
+     */
+    protected void openDir(Path d) {
+        try {
+            ds = Files.newDirectoryStream(d);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        open.add(ds);
+        it = ds.iterator();
+    }
+
+    /**
+     * Closes the DirectoryStream being read.
+     */
+    protected void closeDir() {
+        if (ds != null) {
+            open.remove(ds);
+            try {
+                ds.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            ds = null;
+            it = null;
+        }
+    }
+
+    /**
+     * Closes any DirectoryStreams still open for this and all Spliterators
+     * split from it. Traversal should not carry on after this.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException e = null;
+        for (DirectoryStream<Path> s : open) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                e = ex;
+            }
+        }
+        open.clear();
+        ds = null;
+        it = null;
+        if (e != null) {
+            throw e;
+        }
+    }
+}
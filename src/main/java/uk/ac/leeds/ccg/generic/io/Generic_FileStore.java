@@ -15,16 +15,47 @@
  */
 package uk.ac.leeds.ccg.generic.io;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 import uk.ac.leeds.ccg.generic.core.Generic_Strings;
 import uk.ac.leeds.ccg.generic.math.Generic_Math;
 import uk.ac.leeds.ccg.generic.util.Generic_Collections;
@@ -145,7 +176,7 @@ import uk.ac.leeds.ccg.generic.util.Generic_Collections;
  * @author Andy Turner
  * @version 1.0.0
  */
-public class Generic_FileStore implements Serializable {
+public class Generic_FileStore implements Serializable, AutoCloseable {
 
     private static final long serialVersionUID = 1L;
 
@@ -155,6 +186,38 @@ public class Generic_FileStore implements Serializable {
      */
     protected static final String SEP = Generic_Strings.symbol_underscore;
 
+    /**
+     * The name of the manifest file which is stored in {@link #baseDir} next
+     * to {@link #root}. The manifest records {@link #rangeL}, {@link #levels},
+     * {@link #nextID}, {@link #ranges} and {@link #dirCounts} so that an
+     * existing file store can be reopened without walking the file system.
+     * It also records {@link #epoch}. It is written when the file store grows
+     * deeper, on {@link #commit()} and on {@link #close()}, so it may be
+     * behind by the directories added since. On reopening or refreshing, the
+     * leaf directories after the {@link #nextID} it records are looked for to
+     * catch up. It also records whether the file store was closed cleanly, so
+     * that {@link #recover()} is only run on reopening after it was not.
+     */
+    public static final String MANIFEST = "manifest";
+
+    /**
+     * The name of the file in {@link #baseDir} that is locked by the writer
+     * holding the writer lease (see {@link #openWriter(Path, short)}).
+     */
+    public static final String LOCK = "lock";
+
+    /**
+     * For checking the manifest is a manifest.
+     */
+    protected static final int MANIFEST_MAGIC = 0x47465331;
+
+    /**
+     * The version of the manifest format. Version 1 manifests, which have no
+     * epoch, and version 2 manifests, which do not record a clean close, can
+     * still be read.
+     */
+    protected static final int MANIFEST_VERSION = 3;
+
     /**
      * For storing the base directory path of the file store.
      */
@@ -235,6 +298,247 @@ public class Generic_FileStore implements Serializable {
      */
     protected long nextID;
 
+    /**
+     * The codec used to write Objects to the file store. If this is null then
+     * Objects are written using
+     * {@link Generic_IO#writeObject(java.lang.Object, java.nio.file.Path)}.
+     * Records written with a codec have a header recording which codec wrote
+     * them (see {@link Generic_FileStoreRecord}).
+     */
+    protected transient Generic_Codec<Object> codec;
+
+    /**
+     * The compressor used to compress Objects written to the file store. If
+     * this is null then Objects are not compressed.
+     */
+    protected transient Generic_Compressor compressor;
+
+    /**
+     * The number of bytes encoded by {@link #codec} before compression for
+     * the records written.
+     */
+    protected final LongAdder bytesIn = new LongAdder();
+
+    /**
+     * The number of payload bytes written for the records written.
+     */
+    protected final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * The time in nanoseconds taken to encode and compress the records
+     * written.
+     */
+    protected final LongAdder encodeNanos = new LongAdder();
+
+    /**
+     * An optional cache of deserialized Objects used by {@link #get(long)}.
+     */
+    protected transient Generic_FileStoreCache cache;
+
+    /**
+     * The identifiers deleted. This is loaded when first needed and is null
+     * if nothing has been deleted.
+     */
+    protected transient volatile Generic_FileStoreTombstones tombstones;
+
+    /**
+     * Set true once it is known whether there is a tombstone bitmap.
+     */
+    protected transient volatile boolean tombstonesChecked;
+
+    /**
+     * The secondary indexes registered, keyed by name. This is null until an
+     * index is registered.
+     */
+    protected transient volatile Map<String, Generic_FileStoreIndex> indexes;
+
+    /**
+     * Incremented each time the manifest is written and recorded in it, so
+     * readers can tell cheaply whether the layout has changed.
+     */
+    protected transient volatile long epoch;
+
+    /**
+     * The {@link #nextID} recorded in the manifest when it was last written or
+     * read.
+     */
+    protected transient long manifestNextID;
+
+    /**
+     * Whether the manifest records that the file store was closed cleanly.
+     * This is set true on closing and false once opened for writing.
+     */
+    protected transient boolean clean;
+
+    /**
+     * If true then this file store can only be read from.
+     */
+    protected transient volatile boolean readOnly;
+
+    /**
+     * The channel of the {@link #LOCK} file if this holds the writer lease.
+     */
+    protected transient FileChannel leaseChannel;
+
+    /**
+     * The writer lease if this holds it.
+     */
+    protected transient FileLock lease;
+
+    /**
+     * How durable writes are.
+     */
+    public enum Durability {
+
+        /**
+         * Writes are not forced to the storage device.
+         */
+        NONE,
+        /**
+         * Each write is forced to the storage device along with its leaf
+         * directory and the parent of that before add returns. Any other
+         * directories created for it, and the manifest when the file store
+         * grows deeper, are forced when they are created.
+         */
+        FSYNC,
+        /**
+         * Writes are forced to the storage device in groups. A group is
+         * committed once it has {@link #groupCommitCount} writes, once
+         * {@link #groupCommitNanos} have passed since its first write (by a
+         * background thread shared by all file stores), or when
+         * {@link #commit()} is called. Directories created since the last
+         * group commit are forced with the group.
+         */
+        GROUP_COMMIT
+    }
+
+    /**
+     * How durable writes are. If null this is {@link Durability#NONE}.
+     */
+    protected transient volatile Durability durability;
+
+    /**
+     * The maximum number of writes in a group commit.
+     */
+    protected transient int groupCommitCount;
+
+    /**
+     * The maximum time in nanoseconds from the first write in a group commit
+     * to it being committed.
+     */
+    protected transient long groupCommitNanos;
+
+    /**
+     * The files and directories to force in the next group commit. Access to
+     * this is synchronized on it.
+     */
+    protected transient Set<Path> pending;
+
+    /**
+     * The number of writes in the next group commit.
+     */
+    protected transient int pendingWrites;
+
+    /**
+     * The time of the first write in the next group commit.
+     */
+    protected transient long pendingStart;
+
+    /**
+     * For committing a group {@link #groupCommitNanos} after its first write.
+     * Access to this is synchronized on {@link #pending}.
+     */
+    protected transient ScheduledFuture<?> pendingFlush;
+
+    /**
+     * Held while forcing what is pending, so that what is pending has been
+     * forced by the time another thread gets to force what is pending.
+     */
+    protected final transient Object forceLock = new Object();
+
+    /**
+     * What went wrong committing a group in the background, which is thrown
+     * by the next {@link #commit()}.
+     */
+    protected transient volatile IOException pendingError;
+
+    /**
+     * The thread that commits groups in the background for all file stores.
+     */
+    private static final ScheduledThreadPoolExecutor FLUSHER;
+
+    static {
+        FLUSHER = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "Generic_FileStore-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        FLUSHER.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * The writer leases held in this process keyed by the path of the
+     * {@link #LOCK} file. All locking of {@link #LOCK} files in this process
+     * goes through this, so while a lease is held its channel is the only one
+     * open on the file. Closing any other channel on the file could release
+     * the lease.
+     */
+    private static final Map<String, FileLock> LEASES = new HashMap<>();
+
+    /**
+     * The number of entries in {@link #prefixCache}. This must be a power of 2.
+     */
+    protected static final int PREFIX_CACHE_SIZE = 1024;
+
+    /**
+     * A primitive copy of {@link #ranges} used for resolving paths. This is
+     * kept up to date with {@link #ranges} via {@link #initRangesArray()}.
+     */
+    protected transient volatile long[] rangesArray;
+
+    /**
+     * A direct mapped cache of the paths of the parents of leaf directories as
+     * Strings. The parent of the leaf directory for id has the index
+     * {@code id / rangeL} and this is stored in the cache at the index
+     * {@code (id / rangeL) & (PREFIX_CACHE_SIZE - 1)}. The cache is cleared
+     * whenever the file store grows deeper as all the paths then change and
+     * each entry records the ranges it was resolved with.
+     */
+    protected transient PrefixEntry[] prefixCache;
+
+    /**
+     * The name separator of the file system of the file store.
+     */
+    protected transient String separator;
+
+    /**
+     * For storing an entry in {@link #prefixCache}. Instances are immutable so
+     * can be safely shared.
+     */
+    protected static final class PrefixEntry {
+
+        /**
+         * The index of the parent of the leaf directory.
+         */
+        final long index;
+
+        /**
+         * The ranges the prefix was resolved with.
+         */
+        final long[] ranges;
+
+        /**
+         * The path of the parent of the leaf directory.
+         */
+        final String prefix;
+
+        PrefixEntry(long index, long[] ranges, String prefix) {
+            this.index = index;
+            this.ranges = ranges;
+            this.prefix = prefix;
+        }
+    }
+
     /**
      * Initialises a file store at {@code p} called {@code name} with 3 levels
      * allowing to store 100 files in each directory.
@@ -270,6 +574,7 @@ public class Generic_FileStore implements Serializable {
         this.name = name;
         rangeL = range;
         rangeBI = BigInteger.valueOf(range);
+        checkLease();
         levels = 2;
         nextID = 0;
         lps = new Generic_Path[2];
@@ -291,6 +596,8 @@ public class Generic_FileStore implements Serializable {
         dirCounts.add(1L);
         dirCounts.add(1L);
         root = lps[0];
+        initRangesArray();
+        writeManifest();
     }
 
     /**
@@ -301,6 +608,23 @@ public class Generic_FileStore implements Serializable {
      * @throws Exception If the existing file store is problematic.
      */
     public Generic_FileStore(Path p) throws IOException, Exception {
+        this(p, false);
+    }
+
+    /**
+     * Initialises a file store at {@code p} for an existing file store. If
+     * readOnly then nothing is written while initialising and there is no
+     * recovery of incomplete files, as another process may be writing to the
+     * file store.
+     *
+     * @param p The path of the existing file store base directory.
+     * @param readOnly If true then the file store can only be read from.
+     * @throws IOException If encountered.
+     * @throws Exception If the existing file store is problematic.
+     */
+    protected Generic_FileStore(Path p, boolean readOnly) throws IOException,
+            Exception {
+        this.readOnly = readOnly;
         name = p.getFileName().toString();
         baseDir = new Generic_Path(p);
         if (!Files.isDirectory(baseDir.getPath())) {
@@ -308,7 +632,7 @@ public class Generic_FileStore implements Serializable {
                     + "be a file store as it does not contain one element that "
                     + "is a directory.");
         }
-        List<Path> l = Generic_IO.getList(p);
+        List<Path> l = getRootCandidates(p);
         if (l.size() != 1) {
             throw new Exception("Path " + p.toString() + " does not appear to "
                     + "be a file store as it does not contain one element.");
@@ -357,137 +681,662 @@ public class Generic_FileStore implements Serializable {
             throw new Exception("range < 0 or > Short.MAX_VALUE.");
         }
         rangeBI = BigInteger.valueOf(rangeL);
-        testIntegrity();
-        initLevelsAndNextID();
-        ranges = getRanges(nextID, rangeL);
-        initLPs();
-        dirCounts = getDirCounts(nextID, rangeL);
-        initNextRange();
-    }
-
-    /**
-     * 
-     * @param dir The FileStore directory.
-     * @return The file store at {@code dir} creating it first if it does not 
-     * exist.
-     * @throws Exception If encountered.
-     */
-    public static Generic_FileStore getFileStore(Path dir) throws Exception {
-        Generic_FileStore fs;
-        if (Files.exists(dir)) {
-            fs = new Generic_FileStore(dir);
-        } else {
-            fs = new Generic_FileStore(dir.getParent(), 
-                    dir.getFileName().toString());
+        if (!readOnly) {
+            checkLease();
+        }
+        boolean init = initFromManifest();
+        if (!init) {
+            initFromFileSystem();
+            clean = false;
+        }
+        if (!readOnly) {
+            /**
+             * Record that the file store is open for writing, so that if it
+             * is not closed cleanly it is recovered when it is next opened.
+             */
+            boolean wasClean = clean;
+            clean = false;
+            if (!init || wasClean) {
+                writeManifest();
+            }
+            if (!wasClean) {
+                recover();
+            }
         }
-        return fs;
     }
-    
-    
+
     /**
-     * @return A String description of this.
+     * @param p The base directory of a file store.
+     * @return A list of the paths in {@code p} that might be the root
+     * directory of the file store. The manifest and other files are excluded.
+     * @throws IOException If encountered.
      */
-    @Override
-    public String toString() {
-        String r = "File store(baseDir=" + baseDir.s + ", root=" + root.s
-                + ", name=" + name + ", range=" + rangeBI.toString()
-                + ", nextRange=" + nextRange + ", levels=" + levels
-                + ", ranges=(length=" + ranges.size()
-                + ", ranges[0]=" + ranges.get(0);
-        for (int i = 0; i < ranges.size(); i++) {
-            r += ", ranges[" + i + "]=" + ranges.get(i);
-        }
-        r += "), dirCounts(length=" + dirCounts.size()
-                + ", dirCounts[0]=" + dirCounts.get(0);
-        for (int i = 0; i < dirCounts.size(); i++) {
-            r += ", dirCounts[" + i + "]=" + dirCounts.get(i);
-        }
-        r += "), lps(length=" + lps.length
-                + ", lps[0]=" + lps[0].s;
-        for (int i = 0; i < lps.length; i++) {
-            r += ", lps[" + i + "]=" + lps[i].s;
+    protected static List<Path> getRootCandidates(Path p) throws IOException {
+        List<Path> r = new ArrayList<>();
+        for (Path p2 : Generic_IO.getList(p)) {
+            if (p2.getFileName().toString().contains(SEP)
+                    && Files.isDirectory(p2)) {
+                r.add(p2);
+            }
         }
-        r += "), nextID=" + nextID + ")";
         return r;
     }
 
     /**
-     * Initialises {@link #nextRange}.
+     * Tests the integrity of the file store and initialises {@link #nextID},
+     * {@link #levels}, {@link #ranges}, {@link #lps}, {@link #dirCounts} and
+     * {@link #nextRange} by walking the file system.
+     *
+     * @throws IOException If the file store lacks integrity.
+     * @throws Exception If the existing file store is problematic.
      */
-    protected final void initNextRange() {
-        nextRange = BigInteger.valueOf(ranges.get(0)).multiply(rangeBI).longValueExact();
+    protected final void initFromFileSystem() throws IOException, Exception {
+        testIntegrity();
+        initLevelsAndNextID();
+        ranges = getRanges(nextID + 1L, rangeL);
+        initRangesArray();
+        initLPs();
+        dirCounts = getDirCounts(nextID + 1L, rangeL);
+        initNextRange();
     }
 
     /**
-     * Calculates and returns the number of levels needed for a file store with
-     * range of {@code range} and {@code n} total number of files to store. If
-     * the result is larger than {@link Generic_Math#SHORT_MAXVALUE} then this
-     * would be too deep. In such a case then it may still be possible to store
-     * all the files but only if {@code range} is increased.
+     * Initialises {@link #nextID}, {@link #levels}, {@link #ranges},
+     * {@link #lps}, {@link #dirCounts} and {@link #nextRange} from the
+     * manifest if there is one that is valid and not stale. The manifest is
+     * stale if the highest leaf it records does not exist or if there is a
+     * leaf directory for the identifier after it.
      *
-     * @param n the number of files
-     * @param range the range of the file store
-     * @return the number of levels needed for an file store with range of r and
-     * n total number of files to store.
+     * @return true if the file store was initialised from the manifest.
+     * @throws IOException If encountered.
      */
-    public static int getLevels(long n, long range) {
-        int r = 0;
-        if (n % range != 0) {
-            r += 1;
+    protected final boolean initFromManifest() throws IOException {
+        Manifest m = readManifest();
+        if (m == null || m.rangeL != rangeL || m.levels != m.ranges.length
+                || m.levels != m.dirCounts.length) {
+            return false;
         }
-        while (n >= range) {
-            n = n / range;
-            r++;
+        Generic_Path r = new Generic_Path(Paths.get(baseDir.s,
+                getName(0L, m.ranges[0] - 1L)));
+        if (!r.s.equals(root.s)) {
+            return false;
         }
-        if (r < 2) {
-            r = 2;
+        apply(m);
+        if (!Files.isDirectory(getPath(nextID))) {
+            return false;
         }
-        return r;
+        rollForward();
+        clean = m.clean;
+        return true;
     }
 
     /**
-     * {@link #levels} is for storing the number of levels in the file store.
-     * This is kept up to date as the file store grows. This method is a
-     * convenience method for users that want to know how many levels will be
-     * needed once the number of files stored reaches n. This effectively calls
-     * {@link #getLevels(long, long)} defaulting range to rangeL.
+     * Brings {@link #nextID}, {@link #lps} and {@link #dirCounts} up to date
+     * with any leaf directories added after {@link #nextID} without the file
+     * store growing deeper, as the manifest is not written each time a
+     * directory is added. As concurrent writers can create leaf directories
+     * out of order, the highest leaf directory is looked for in the parent
+     * directory of the leaf directory for {@link #nextID} and in each parent
+     * directory after it that exists.
      *
-     * @param n The number of files.
-     * @return The number of levels needed for this file store to store n total
-     * number of files.
+     * @return true if {@link #nextID} changed.
+     * @throws IOException If encountered.
      */
-    public int getLevels(long n) {
-        return getLevels(n, rangeL);
+    protected final boolean rollForward() throws IOException {
+        long c = getRangesArray()[0];
+        long n = nextID;
+        for (long f = (n / rangeL) * rangeL; f < c; f += rangeL) {
+            Path d = getPath(f).getParent();
+            if (!Files.isDirectory(d)) {
+                break;
+            }
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(d)) {
+                for (Path x : ds) {
+                    try {
+                        n = Math.max(n, Long.parseLong(
+                                x.getFileName().toString()));
+                    } catch (NumberFormatException ex) {
+                        // Not a leaf directory.
+                    }
+                }
+            }
+        }
+        if (n == nextID) {
+            return false;
+        }
+        nextID = n;
+        initLPs();
+        initDirCounts();
+        return true;
     }
 
     /**
-     * For initialising levels and nextID.
+     * Initialises {@link #dirCounts} from {@link #nextID}.
      *
-     * @throws java.io.IOException If there encountered in
-     * {@link #getHighestDir()}.
+     * @throws IOException If {@link #nextID} is too big for the range.
      */
-    protected final void initLevelsAndNextID() throws IOException {
-        Path p = findHighestLeaf();
-        nextID = Long.valueOf(p.getFileName().toString());
-        levels = p.getNameCount() - baseDir.getNameCount() - 1;
+    protected final void initDirCounts() throws IOException {
+        try {
+            dirCounts = getDirCounts(nextID + 1L, rangeL);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
     }
 
     /**
-     * @return {@link #levels}.
+     * Initialises {@link #root}, {@link #nextID}, {@link #levels},
+     * {@link #ranges}, {@link #dirCounts}, {@link #lps}, {@link #nextRange}
+     * and {@link #epoch} from m.
+     *
+     * @param m The manifest.
      */
-    public final long getLevels() {
-        return levels;
+    protected final void apply(Manifest m) {
+        root = new Generic_Path(Paths.get(baseDir.s,
+                getName(0L, m.ranges[0] - 1L)));
+        nextID = m.nextID;
+        levels = m.levels;
+        ArrayList<Long> rs = new ArrayList<>();
+        ArrayList<Long> dcs = new ArrayList<>();
+        for (int i = 0; i < m.levels; i++) {
+            rs.add(m.ranges[i]);
+            dcs.add(m.dirCounts[i]);
+        }
+        ranges = rs;
+        dirCounts = dcs;
+        initRangesArray();
+        initLPs();
+        initNextRange();
+        epoch = m.epoch;
+        manifestNextID = m.nextID;
     }
 
     /**
-     * @return {@link ranges} updated.
+     * Opens the file store at {@code dir} for reading only. Readers do not
+     * lock anything and never block on the writer. What a reader sees of the
+     * layout, including {@link #nextID}, is what was in the manifest when it
+     * was opened or last refreshed (see {@link #refresh()}). The manifest is
+     * replaced atomically so this is always consistent. If the writer grows
+     * the file store deeper a get by a reader refreshes and retries.
+     *
+     * @param dir The base directory of the file store.
+     * @return The file store.
+     * @throws IOException If encountered.
+     * @throws Exception If there is no file store at dir.
      */
-    protected final ArrayList<Long> getRanges() {
-        return ranges;
+    public static Generic_FileStore openReader(Path dir) throws IOException,
+            Exception {
+        return new Generic_FileStore(dir, true);
     }
 
     /**
-     * Calculates and returns the ranges given the number of files to be stored
+     * Opens the file store at {@code dir} for writing, creating it if it does
+     * not exist, once the writer lease is held. The lease is a lock on the
+     * {@link #LOCK} file so only one writer in any process can hold it at a
+     * time. This waits until the lease is free. The file store is initialised
+     * after the lease is acquired so it is up to date with what any previous
+     * writer did.
+     *
+     * @param dir The base directory of the file store.
+     * @param range The range if the file store is created.
+     * @return The file store.
+     * @throws IOException If encountered.
+     * @throws Exception If the existing file store is problematic.
+     */
+    public static Generic_FileStore openWriter(Path dir, short range)
+            throws IOException, Exception {
+        return openWriter(dir, range, true);
+    }
+
+    /**
+     * As {@link #openWriter(Path, short)} but does not wait.
+     *
+     * @param dir The base directory of the file store.
+     * @param range The range if the file store is created.
+     * @return The file store or null if another writer holds the lease.
+     * @throws IOException If encountered.
+     * @throws Exception If the existing file store is problematic.
+     */
+    public static Generic_FileStore tryOpenWriter(Path dir, short range)
+            throws IOException, Exception {
+        return openWriter(dir, range, false);
+    }
+
+    /**
+     * @param dir The base directory of the file store.
+     * @param range The range if the file store is created.
+     * @param wait If true then wait for the lease.
+     * @return The file store or null if wait is false and another writer
+     * holds the lease.
+     * @throws IOException If encountered.
+     * @throws Exception If the existing file store is problematic.
+     */
+    protected static Generic_FileStore openWriter(Path dir, short range,
+            boolean wait) throws IOException, Exception {
+        Files.createDirectories(dir);
+        Path lp = Paths.get(dir.toString(), LOCK);
+        FileLock l;
+        while ((l = tryLease(lp)) == null) {
+            if (!wait) {
+                return null;
+            }
+            Thread.sleep(10L);
+        }
+        try {
+            Generic_FileStore r;
+            if (getRootCandidates(dir).isEmpty()) {
+                r = new Generic_FileStore(dir.getParent(),
+                        dir.getFileName().toString(), range);
+            } else {
+                r = new Generic_FileStore(dir);
+            }
+            r.leaseChannel = l.channel();
+            r.lease = l;
+            return r;
+        } catch (Exception ex) {
+            releaseLease(lp, l);
+            throw ex;
+        }
+    }
+
+    /**
+     * @param p The path of a {@link #LOCK} file.
+     * @return The key for p in {@link #LEASES}.
+     */
+    private static String getLeaseKey(Path p) {
+        return p.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Tries to acquire the writer lease by locking the {@link #LOCK} file at
+     * p, creating it if it does not exist.
+     *
+     * @param p The path of the {@link #LOCK} file.
+     * @return The lease or null if it is held in this or another process.
+     * @throws IOException If encountered.
+     */
+    protected static FileLock tryLease(Path p) throws IOException {
+        String k = getLeaseKey(p);
+        synchronized (LEASES) {
+            if (LEASES.containsKey(k)) {
+                return null;
+            }
+            /**
+             * No lease on p is held in this process, so closing fc cannot
+             * release one.
+             */
+            FileChannel fc = FileChannel.open(p, CREATE, WRITE);
+            FileLock l;
+            try {
+                l = fc.tryLock();
+            } catch (IOException | RuntimeException ex) {
+                fc.close();
+                throw ex;
+            }
+            if (l == null) {
+                fc.close();
+                return null;
+            }
+            LEASES.put(k, l);
+            return l;
+        }
+    }
+
+    /**
+     * Releases a writer lease acquired with {@link #tryLease(Path)}.
+     *
+     * @param p The path of the {@link #LOCK} file.
+     * @param l The lease.
+     * @throws IOException If encountered.
+     */
+    protected static void releaseLease(Path p, FileLock l) throws IOException {
+        synchronized (LEASES) {
+            LEASES.remove(getLeaseKey(p));
+            try {
+                l.release();
+            } finally {
+                l.channel().close();
+            }
+        }
+    }
+
+    /**
+     * @return true if this holds the writer lease.
+     */
+    public boolean hasWriterLease() {
+        FileLock l = lease;
+        return l != null && l.isValid();
+    }
+
+    /**
+     * Commits and releases the writer lease after which this file store can
+     * only be read from.
+     *
+     * @throws IOException If encountered.
+     */
+    public synchronized void releaseWriterLease() throws IOException {
+        if (lease == null) {
+            return;
+        }
+        commit();
+        markClean();
+        readOnly = true;
+        try {
+            releaseLease(Paths.get(baseDir.s, LOCK), lease);
+        } finally {
+            lease = null;
+            leaseChannel = null;
+        }
+    }
+
+    /**
+     * Commits (which writes the manifest if it is out of date), closes the
+     * tombstone bitmap and any indexes and releases the writer lease if this
+     * holds it. After this the file store can only be read from.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        commit();
+        Map<String, Generic_FileStoreIndex> m = indexes;
+        indexes = null;
+        if (m != null) {
+            for (Generic_FileStoreIndex x : m.values()) {
+                x.close();
+            }
+        }
+        closeTombstones();
+        markClean();
+        releaseWriterLease();
+        readOnly = true;
+    }
+
+    /**
+     * Unless this file store can only be read from, writes the manifest
+     * recording that it was closed cleanly.
+     *
+     * @throws IOException If encountered.
+     */
+    protected void markClean() throws IOException {
+        if (!readOnly && !clean) {
+            clean = true;
+            writeManifest();
+        }
+    }
+
+    /**
+     * @return true if this file store can only be read from.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @throws IOException If this file store can only be read from.
+     */
+    protected void checkWritable() throws IOException {
+        if (readOnly) {
+            throw new IOException("File store " + baseDir + " is read only.");
+        }
+    }
+
+    /**
+     * Called when opening for writing without the writer lease to check that
+     * no other process holds it, by trying to acquire it and releasing it
+     * straight away. If the lease is held in this process this does not
+     * throw, so several file stores in this process can write to the same
+     * directory. This is only checked on opening, so where several processes
+     * use the same file store use {@link #openWriter(Path, short)}.
+     *
+     * @throws IOException If another process holds the writer lease.
+     */
+    protected void checkLease() throws IOException {
+        Path p = Paths.get(baseDir.s, LOCK);
+        if (lease != null || !Files.exists(p)) {
+            return;
+        }
+        synchronized (LEASES) {
+            if (LEASES.containsKey(getLeaseKey(p))) {
+                return;
+            }
+            FileLock l = tryLease(p);
+            if (l == null) {
+                throw new IOException("File store " + baseDir + " is being "
+                        + "written by another process.");
+            }
+            releaseLease(p, l);
+        }
+    }
+
+    /**
+     * @return {@link #epoch}.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Brings the layout up to date with the manifest if it has been written
+     * since this was initialised or last refreshed and with any leaf
+     * directories added since (see {@link #rollForward()}), and reloads the
+     * tombstone bitmap. This is for readers to see what a writer in another
+     * process has added or deleted. Nothing is locked.
+     *
+     * @return true if the layout changed.
+     * @throws IOException If encountered.
+     */
+    public synchronized boolean refresh() throws IOException {
+        closeTombstones();
+        return refreshLayout();
+    }
+
+    /**
+     * Brings the layout up to date with the manifest if it has been written
+     * since this was initialised or last refreshed, in which case the
+     * tombstone bitmap is reloaded, and with any leaf directories added since
+     * (see {@link #rollForward()}).
+     *
+     * @return true if the layout changed.
+     * @throws IOException If encountered.
+     */
+    protected synchronized boolean refreshLayout() throws IOException {
+        Manifest m = readManifest();
+        if (m == null || m.epoch == epoch || m.rangeL != rangeL
+                || m.levels != m.ranges.length
+                || m.levels != m.dirCounts.length) {
+            return rollForward();
+        }
+        closeTombstones();
+        apply(m);
+        rollForward();
+        return true;
+    }
+
+    /**
+     * Closes the tombstone bitmap so that it is reloaded when next needed.
+     *
+     * @throws IOException If encountered.
+     */
+    protected synchronized void closeTombstones() throws IOException {
+        Generic_FileStoreTombstones t = tombstones;
+        tombstones = null;
+        tombstonesChecked = false;
+        if (t != null) {
+            t.close();
+        }
+    }
+
+    /**
+     * Tests the integrity of the file store by walking the file system and
+     * reinitialises {@link #nextID}, {@link #levels}, {@link #ranges},
+     * {@link #lps}, {@link #dirCounts} and {@link #nextRange} from what is
+     * found. The manifest is rewritten.
+     *
+     * @return true if what was found is consistent with what was stored in
+     * memory prior to the verification.
+     * @throws IOException If the file store lacks integrity.
+     * @throws Exception If the existing file store is problematic.
+     */
+    public boolean verify() throws IOException, Exception {
+        long n = nextID;
+        int lvls = levels;
+        ArrayList<Long> dcs = new ArrayList<>(dirCounts);
+        initFromFileSystem();
+        writeManifest();
+        return n == nextID && lvls == levels && dcs.equals(dirCounts);
+    }
+
+    /**
+     * This does not coordinate with other processes beyond refusing to open
+     * while another process holds the writer lease. Where several processes
+     * use the same file store use {@link #openWriter(Path, short)} and
+     * {@link #openReader(Path)}.
+     *
+     * @param dir The FileStore directory.
+     * @return The file store at {@code dir} creating it first if it does not 
+     * exist.
+     * @throws Exception If encountered.
+     */
+    public static Generic_FileStore getFileStore(Path dir) throws Exception {
+        Generic_FileStore fs;
+        if (Files.exists(dir)) {
+            fs = new Generic_FileStore(dir);
+        } else {
+            fs = new Generic_FileStore(dir.getParent(), 
+                    dir.getFileName().toString());
+        }
+        return fs;
+    }
+    
+    
+    /**
+     * @return A String description of this.
+     */
+    @Override
+    public String toString() {
+        String r = "File store(baseDir=" + baseDir.s + ", root=" + root.s
+                + ", name=" + name + ", range=" + rangeBI.toString()
+                + ", nextRange=" + nextRange + ", levels=" + levels
+                + ", ranges=(length=" + ranges.size()
+                + ", ranges[0]=" + ranges.get(0);
+        for (int i = 0; i < ranges.size(); i++) {
+            r += ", ranges[" + i + "]=" + ranges.get(i);
+        }
+        r += "), dirCounts(length=" + dirCounts.size()
+                + ", dirCounts[0]=" + dirCounts.get(0);
+        for (int i = 0; i < dirCounts.size(); i++) {
+            r += ", dirCounts[" + i + "]=" + dirCounts.get(i);
+        }
+        r += "), lps(length=" + lps.length
+                + ", lps[0]=" + lps[0].s;
+        for (int i = 0; i < lps.length; i++) {
+            r += ", lps[" + i + "]=" + lps[i].s;
+        }
+        r += "), nextID=" + nextID + ")";
+        return r;
+    }
+
+    /**
+     * Initialises {@link #nextRange}.
+     */
+    protected final void initNextRange() {
+        nextRange = BigInteger.valueOf(ranges.get(0)).multiply(rangeBI).longValueExact();
+    }
+
+    /**
+     * Calculates and returns the number of levels needed for a file store with
+     * range of {@code range} and {@code n} total number of files to store. If
+     * the result is larger than {@link Generic_Math#SHORT_MAXVALUE} then this
+     * would be too deep. In such a case then it may still be possible to store
+     * all the files but only if {@code range} is increased.
+     *
+     * @param n the number of files
+     * @param range the range of the file store
+     * @return the number of levels needed for an file store with range of r and
+     * n total number of files to store.
+     */
+    public static int getLevels(long n, long range) {
+        int r = 1;
+        long c = range;
+        while (c < n) {
+            r++;
+            if (c > Long.MAX_VALUE / range) {
+                break;
+            }
+            c *= range;
+        }
+        if (r < 2) {
+            r = 2;
+        }
+        return r;
+    }
+
+    /**
+     * {@link #levels} is for storing the number of levels in the file store.
+     * This is kept up to date as the file store grows. This method is a
+     * convenience method for users that want to know how many levels will be
+     * needed once the number of files stored reaches n. This effectively calls
+     * {@link #getLevels(long, long)} defaulting range to rangeL.
+     *
+     * @param n The number of files.
+     * @return The number of levels needed for this file store to store n total
+     * number of files.
+     */
+    public int getLevels(long n) {
+        return getLevels(n, rangeL);
+    }
+
+    /**
+     * For initialising levels and nextID.
+     *
+     * @throws java.io.IOException If there encountered in
+     * {@link #getHighestDir()}.
+     */
+    protected final void initLevelsAndNextID() throws IOException {
+        Path p = findHighestLeaf();
+        nextID = Long.valueOf(p.getFileName().toString());
+        levels = p.getNameCount() - baseDir.getNameCount() - 1;
+    }
+
+    /**
+     * Initialises {@link #nextID}, {@link #levels}, {@link #ranges},
+     * {@link #root}, {@link #lps}, {@link #dirCounts} and {@link #nextRange}
+     * given {@code nextID} and {@link #rangeL}. This does not check or modify
+     * the file system.
+     *
+     * @param nextID What {@link #nextID} is set to.
+     * @throws Exception If nextID is too big for the range.
+     */
+    protected final void initFromNextID(long nextID) throws Exception {
+        this.nextID = nextID;
+        ranges = getRanges(nextID + 1L, rangeL);
+        levels = ranges.size();
+        root = new Generic_Path(Paths.get(baseDir.s,
+                getName(0L, ranges.get(0) - 1L)));
+        initRangesArray();
+        initLPs();
+        dirCounts = getDirCounts(nextID + 1L, rangeL);
+        initNextRange();
+    }
+
+    /**
+     * @return {@link #levels}.
+     */
+    public final long getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return {@link ranges} updated.
+     */
+    protected final ArrayList<Long> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Calculates and returns the ranges given the number of files to be stored
      * and the range. ranges[levels - 1] is range, ranges[levels -2] is range *
      * range, etc...
      *
@@ -506,217 +1355,1022 @@ public class Generic_FileStore implements Serializable {
         if (lvls > Integer.MAX_VALUE) {
             throw new Exception("n too big for the range");
         }
-        ArrayList<Long> r = new ArrayList<>();
-        for (int l = 0; l < lvls; l++) {
-            r.add(0, BigInteger.valueOf(range).pow(l + 1).longValueExact());
+        ArrayList<Long> r = new ArrayList<>();
+        for (int l = 0; l < lvls; l++) {
+            r.add(0, BigInteger.valueOf(range).pow(l + 1).longValueExact());
+        }
+        return r;
+    }
+
+    /**
+     * Calculates the number of directories needed at each level to store n
+     * files with range r. This first calculates the number of levels and the
+     * ranges for each level.
+     *
+     * @param n The number of files to store.
+     * @param range The range.
+     * @return The number of directories needed at each level to store n files
+     * with range range. The first element is the list is the number of
+     * directories in the root directory.
+     * @throws java.lang.Exception If n is too big for the range. If this is the
+     * case then maybe try to specify a bigger range or look to implementing
+     * something that can handle larger numbers of files as suggested in the
+     * class comment documentation.
+     */
+    public static final ArrayList<Long> getDirCounts(long n, long range)
+            throws Exception {
+        ArrayList<Long> dirCounts = new ArrayList<>();
+        long lvls = getLevels(n, range);
+        ArrayList<Long> rngs = getRanges(n, range);
+        /**
+         * Can safely cast here as getLevels(long, long) already throws an
+         * Exception if lvls is greater than Integer.MAX_VALUE
+         */
+        int li = (int) lvls;
+        ArrayList<Integer> dirIndexes = getDirIndexes(Math.max(0L, n - 1L),
+                li, rngs);
+        for (int i = 0; i < dirIndexes.size(); i++) {
+            dirCounts.add((long) dirIndexes.get(i) + 1L);
+        }
+        return dirCounts;
+    }
+
+    /**
+     * Gets the dir indexes for the directories at each level greater than zero
+     * for the element identified by id.
+     *
+     * @param id The identifier for which the dir indexes are returned.
+     * @param levels The number of levels.
+     * @param ranges The ranges at each level.
+     * @return The dir indexes for the directories at each level greater than
+     * zero for the element identified by id.
+     */
+    protected static ArrayList<Integer> getDirIndexes(long id, int levels,
+            ArrayList<Long> ranges) {
+        ArrayList<Integer> r = new ArrayList<>();
+        for (int lvl = levels - 1; lvl >= 0; lvl--) {
+            r.add(0, (int) (id / ranges.get(lvl)));
+        }
+        return r;
+    }
+
+    /**
+     * Gets the dir indexes for the directories at each level in the current
+     * storage of the element identified by id.
+     *
+     * This may result in a runtime exception if n is too big for the range. If
+     * this is the case then maybe try to specify a bigger range or look to
+     * implementing something that can handle larger numbers of files as
+     * suggested in the class comment documentation.
+     *
+     * @param id The identifier of the element to get the dirCounts for.
+     * @return The dir counts at each level for the current storage of the
+     * element identified by id.
+     */
+    protected final ArrayList<Integer> getDirIndexes(long id) {
+        int li = levels;
+        return getDirIndexes(id, li, ranges);
+    }
+
+    /**
+     * @return a copy of {@link #lps}[levels] this is the current highest leaf
+     * directory of the file store.
+     */
+    public Generic_Path getPathNext() {
+        return new Generic_Path(Paths.get(lps[levels - 1].toString(),
+                Long.toString(nextID)));
+    }
+
+    /**
+     * Calculates and returns the current path of the directory for storing the
+     * element identified by id. For efficiency, this does not check if id is
+     * less than or equal to {@link #nextID}, but it should be and if not then
+     * what is returned might not be useful.
+     *
+     * @param id The identifier of the element for which the current path is
+     * wanted.
+     * @return The current path of the directory for storing the element
+     * identified by id.
+     */
+    public Path getPath(long id) {
+        return Paths.get(getParentString(id), Long.toString(id));
+    }
+
+    /**
+     * Calculates and returns the current path of the parent of the leaf
+     * directory for storing the element identified by id as a String. The
+     * directory indexes are calculated using division so the cost is
+     * proportional to the number of levels rather than the size of id. The
+     * result is cached in {@link #prefixCache}.
+     *
+     * @param id The identifier of the element for which the path of the parent
+     * of the leaf directory is wanted.
+     * @return The current path of the parent of the leaf directory for storing
+     * the element identified by id.
+     */
+    protected String getParentString(long id) {
+        /**
+         * The root is derived from rs[0] rather than read from root so that
+         * the path is consistent with the snapshot of the ranges even if
+         * another thread grows the file store deeper.
+         */
+        long[] rs = getRangesArray();
+        PrefixEntry[] cache = getPrefixCache();
+        long index = id / rangeL;
+        int i = (int) (index & (PREFIX_CACHE_SIZE - 1));
+        PrefixEntry e = cache[i];
+        if (e != null && e.index == index && e.ranges == rs) {
+            return e.prefix;
+        }
+        StringBuilder sb = new StringBuilder(baseDir.s.length()
+                + rs.length * 16);
+        sb.append(baseDir.s).append(getSeparator()).append(0L).append(SEP)
+                .append(rs[0] - 1L);
+        for (int lvl = 1; lvl < rs.length; lvl++) {
+            long range = rs[lvl];
+            long l = (id / range) * range;
+            sb.append(getSeparator()).append(l).append(SEP)
+                    .append(l + range - 1L);
+        }
+        String r = sb.toString();
+        cache[i] = new PrefixEntry(index, rs, r);
+        return r;
+    }
+
+    /**
+     * @return {@link #prefixCache} initialising it first if it is null.
+     */
+    protected PrefixEntry[] getPrefixCache() {
+        if (prefixCache == null) {
+            prefixCache = new PrefixEntry[PREFIX_CACHE_SIZE];
+        }
+        return prefixCache;
+    }
+
+    /**
+     * @return {@link #rangesArray} initialising it first if it is null.
+     */
+    protected long[] getRangesArray() {
+        if (rangesArray == null) {
+            initRangesArray();
+        }
+        return rangesArray;
+    }
+
+    /**
+     * Initialises {@link #rangesArray} from {@link #ranges} and clears
+     * {@link #prefixCache}. This should be called whenever {@link #ranges} is
+     * changed.
+     */
+    protected final void initRangesArray() {
+        long[] r = new long[ranges.size()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = ranges.get(i);
+        }
+        rangesArray = r;
+        prefixCache = null;
+    }
+
+    /**
+     * @return {@link #separator} initialising it first if it is null.
+     */
+    protected String getSeparator() {
+        if (separator == null) {
+            separator = baseDir.getFileSystem().getSeparator();
+        }
+        return separator;
+    }
+
+    /**
+     * @param baseDir The baseDir of a file store for which the nextID is
+     * returned.
+     * @return The nextID of the file store with a baseDirectory baseDir.
+     * @throws Exception If encountered
+     */
+    public static Long getNextID(Generic_Path baseDir) throws Exception {
+        if (baseDir == null) {
+            return null;
+        }
+        return new Generic_FileStore(baseDir.getPath()).nextID;
+    }
+
+    /**
+     * @return The nextID of the file store with a base directory baseDir.
+     */
+    public long getNextID() {
+        return nextID;
+    }
+
+    protected final String getName(long l, long u) {
+        return Long.toString(l) + SEP + Long.toString(u);
+    }
+
+    /**
+     * Initialises lps. This should be called when the directory structure grows
+     * deeper. As the directory grows wider the appropriate paths in lps want
+     * updating.
+     */
+    protected final void initLPs() {
+        lps = new Generic_Path[levels];
+        lps[0] = root;
+        long[] rs = getRangesArray();
+        for (int lvl = 1; lvl < levels; lvl++) {
+            long range = rs[lvl];
+            long l = (nextID / range) * range;
+            long u = l + range - 1L;
+            lps[lvl] = new Generic_Path(Paths.get(lps[lvl - 1].s, getName(l, u)));
+        }
+    }
+
+    /**
+     * Serializes and writes o to
+     * {@code Paths.get(getHighestLeaf().toString(), name)};
+     *
+     * @param o The Object to be serialised and written out.
+     * @throws IOException If encountered.
+     */
+    public void add(Object o) throws IOException {
+        add(nextID, o);
+    }
+
+    /**
+     * Serializes and writes o to {@code Paths.get(getPath(id).toString(), name)}
+     * using {@link #codec} and {@link #compressor} if these are not null. The
+     * leaf directory for id must already exist and id must not be deleted.
+     * The file is written to a temporary file in the leaf directory and then
+     * moved into place atomically, so concurrent readers never see a
+     * partially written file.
+     *
+     * @param id The identifier of the leaf directory to write to.
+     * @param o The Object to be serialised and written out.
+     * @throws IOException If encountered.
+     */
+    public void add(long id, Object o) throws IOException {
+        checkWritable();
+        Path p = Paths.get(getParentString(id), Long.toString(id), name);
+        if (isDeleted(id)) {
+            throw new IOException("Identifier " + id + " is deleted.");
+        }
+        Durability d = durability;
+        boolean f = d == Durability.FSYNC;
+        Generic_Compressor z = compressor;
+        if (codec == null && z == null) {
+            Generic_FileStoreRecord.writeObject(p, o, f);
+        } else {
+            long t = System.nanoTime();
+            ByteBuffer b = Generic_FileStoreRecord.encode(o,
+                    codec == null ? Generic_Codecs.JAVA : codec, z);
+            encodeNanos.add(System.nanoTime() - t);
+            bytesIn.add(Generic_FileStoreRecord.getRawLength(b));
+            bytesOut.add(b.remaining() - Generic_FileStoreRecord.HEADER_LENGTH);
+            Generic_FileStoreRecord.write(p, b, f);
+        }
+        /**
+         * Invalidate after writing so that a get from another thread cannot
+         * cache what was there before.
+         */
+        Generic_FileStoreCache c = cache;
+        if (c != null) {
+            c.invalidate(id);
+        }
+        Map<String, Generic_FileStoreIndex> m = indexes;
+        if (m != null) {
+            for (Generic_FileStoreIndex x : m.values()) {
+                x.put(id, o);
+            }
+        }
+        if (f) {
+            Path leaf = p.getParent();
+            Generic_IO.force(leaf);
+            Generic_IO.force(leaf.getParent());
+        } else if (d == Durability.GROUP_COMMIT) {
+            addPending(p);
+        }
+    }
+
+    /**
+     * @return {@link #durability}.
+     */
+    public Durability getDurability() {
+        Durability d = durability;
+        return d == null ? Durability.NONE : d;
+    }
+
+    /**
+     * Sets how durable writes are. Any pending group commit is committed
+     * first.
+     *
+     * @param d What {@link #durability} is set to.
+     * @throws IOException If encountered.
+     */
+    public void setDurability(Durability d) throws IOException {
+        setDurability(d, 256, 10_000_000L);
+    }
+
+    /**
+     * Sets how durable writes are. Any pending group commit is committed
+     * first.
+     *
+     * @param d What {@link #durability} is set to.
+     * @param count The maximum number of writes in a group commit.
+     * @param nanos The maximum time in nanoseconds from the first write in a
+     * group commit to it being committed.
+     * @throws IOException If encountered.
+     */
+    public void setDurability(Durability d, int count, long nanos)
+            throws IOException {
+        commit();
+        groupCommitCount = count;
+        groupCommitNanos = nanos;
+        durability = d;
+    }
+
+    /**
+     * Adds the file at p, its leaf directory and the parent of that to the
+     * next group commit and commits if the group is full or old enough. If p
+     * is the first write of the group then a commit is scheduled for
+     * {@link #groupCommitNanos} later.
+     *
+     * @param p The path of the file written.
+     * @throws IOException If encountered.
+     */
+    protected void addPending(Path p) throws IOException {
+        Set<Path> ps = getPending();
+        boolean full;
+        synchronized (ps) {
+            if (pendingWrites == 0) {
+                pendingStart = System.nanoTime();
+                if (groupCommitNanos < Long.MAX_VALUE) {
+                    pendingFlush = FLUSHER.schedule(this::flushPending,
+                            groupCommitNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            Path leaf = p.getParent();
+            ps.add(p);
+            ps.add(leaf);
+            ps.add(leaf.getParent());
+            pendingWrites++;
+            full = pendingWrites >= groupCommitCount
+                    || System.nanoTime() - pendingStart >= groupCommitNanos;
+        }
+        if (full) {
+            commit();
+        }
+    }
+
+    /**
+     * Writes the manifest if {@link #nextID} has changed since it was last
+     * written and forces the files and directories written to since the last
+     * group commit to the storage device. Each file and directory is forced
+     * once however many writes there were to it. The tombstone bitmap and the
+     * logs of any indexes are also forced.
+     *
+     * @throws IOException If encountered.
+     */
+    public void commit() throws IOException {
+        IOException e = pendingError;
+        if (e != null) {
+            pendingError = null;
+            throw e;
+        }
+        if (!readOnly && nextID != manifestNextID) {
+            writeManifest();
+        }
+        forcePending();
+    }
+
+    /**
+     * Commits the group in the background, keeping anything that goes wrong
+     * in {@link #pendingError}.
+     */
+    protected void flushPending() {
+        try {
+            forcePending();
+        } catch (IOException ex) {
+            pendingError = ex;
+        }
+    }
+
+    /**
+     * Forces the tombstone bitmap, the logs of any indexes and the files and
+     * directories in {@link #pending} to the storage device.
+     *
+     * @throws IOException If encountered.
+     */
+    protected void forcePending() throws IOException {
+        synchronized (forceLock) {
+            Generic_FileStoreTombstones t = tombstones;
+            if (t != null) {
+                t.force();
+            }
+            Map<String, Generic_FileStoreIndex> m = indexes;
+            if (m != null) {
+                for (Generic_FileStoreIndex x : m.values()) {
+                    x.force();
+                }
+            }
+            Set<Path> ps = getPending();
+            Path[] a;
+            synchronized (ps) {
+                if (ps.isEmpty()) {
+                    return;
+                }
+                a = ps.toArray(new Path[ps.size()]);
+                ps.clear();
+                pendingWrites = 0;
+                if (pendingFlush != null) {
+                    pendingFlush.cancel(false);
+                    pendingFlush = null;
+                }
+            }
+            /**
+             * Force files before directories so that a directory entry is not
+             * made durable before the content it refers to.
+             */
+            for (Path x : a) {
+                if (!Files.isDirectory(x)) {
+                    Generic_IO.force(x);
+                }
+            }
+            for (Path x : a) {
+                if (Files.isDirectory(x)) {
+                    Generic_IO.force(x);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@link #pending} initialising it first if it is null.
+     */
+    protected Set<Path> getPending() {
+        Set<Path> r = pending;
+        if (r == null) {
+            synchronized (this) {
+                if (pending == null) {
+                    pending = new LinkedHashSet<>();
+                }
+                r = pending;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Checks the files in the leaf directories for identifiers from
+     * {@code fromID} to {@code toID} inclusive and deletes any that are not
+     * complete (see {@link Generic_FileStoreRecord#isComplete(Path)}), so
+     * those leaves are left empty. Any temporary files left by writes that did
+     * not finish are also deleted.
+     *
+     * @param fromID The first identifier.
+     * @param toID The last identifier.
+     * @return The number of files deleted.
+     * @throws IOException If encountered.
+     */
+    public long recover(long fromID, long toID) throws IOException {
+        checkWritable();
+        long r = 0L;
+        for (long id = Math.max(0L, fromID); id <= toID; id++) {
+            Path p = Paths.get(getParentString(id), Long.toString(id), name);
+            if (Files.isDirectory(p.getParent())) {
+                Generic_FileStoreRecord.deleteTmp(p.getParent(), name);
+            }
+            if (Files.exists(p) && !Generic_FileStoreRecord.isComplete(p)) {
+                Files.delete(p);
+                Generic_FileStoreCache c = cache;
+                if (c != null) {
+                    c.invalidate(id);
+                }
+                r++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Checks the leaves in the last two parent directories of leaves, which is
+     * where writes interrupted by a crash are expected, and deletes any files
+     * that are not complete.
+     *
+     * @return The number of files deleted.
+     * @throws IOException If encountered.
+     */
+    public long recover() throws IOException {
+        return recover((nextID / rangeL - 1L) * rangeL, nextID);
+    }
+
+    /**
+     * @return {@link #codec}.
+     */
+    public Generic_Codec<Object> getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codec used to write Objects to the file store. Whatever codec
+     * wrote an Object is recorded with it, so Objects can be read whatever
+     * the codec is set to.
+     *
+     * @param c What {@link #codec} is set to. If null then Objects are written
+     * using {@link Generic_IO#writeObject(java.lang.Object, java.nio.file.Path)}.
+     */
+    public void setCodec(Generic_Codec<Object> c) {
+        codec = c;
+    }
+
+    /**
+     * Deserializes an Object from file at
+     * {@code Paths.get(getPath(id).toString(), name)} using whichever codec
+     * wrote it, or returns it from {@link #cache} if it is cached there.
+     *
+     * @param id The identifier for the Object to be deserialized.
+     * @return The deserialized Object.
+     * @throws IOException If encountered. A
+     * {@link java.nio.file.NoSuchFileException} is thrown if id is deleted.
+     * @throws java.lang.ClassNotFoundException If for some reason the Object
+     * cannot otherwise be deserialized.
+     */
+    public Object get(long id) throws IOException, ClassNotFoundException {
+        Generic_FileStoreCache c = cache;
+        if (c != null) {
+            Object r = c.get(id);
+            if (r != null) {
+                return r;
+            }
+        }
+        Path p = Paths.get(getParentString(id), Long.toString(id), name);
+        if (isDeleted(id)) {
+            throw new NoSuchFileException(p.toString(), null, "Deleted.");
+        }
+        long v = c == null ? 0L : c.getVersion();
+        Object r;
+        try {
+            r = Generic_FileStoreRecord.read(p);
+        } catch (NoSuchFileException ex) {
+            if (!readOnly || !awaitLayoutChange()) {
+                throw ex;
+            }
+            return get(id);
+        }
+        if (c != null) {
+            c.put(id, r, v);
+        }
+        return r;
+    }
+
+    /**
+     * @return A sequential stream of the Objects in the file store in
+     * identifier order. Leaf directories without a file are skipped.
+     */
+    public Stream<Object> stream() {
+        return stream(0L, getNextID(), false);
+    }
+
+    /**
+     * @return A parallel stream of the Objects in the file store. The stream
+     * is split on the directory ranges of the file store so each part reads
+     * its own subtrees. Leaf directories without a file are skipped.
+     */
+    public Stream<Object> parallelStream() {
+        return stream(0L, getNextID(), true);
+    }
+
+    /**
+     * @param fromID The first identifier.
+     * @param toID The last identifier.
+     * @return A sequential stream of the Objects in the file store with
+     * identifiers from {@code fromID} to {@code toID} inclusive.
+     */
+    public Stream<Object> stream(long fromID, long toID) {
+        return stream(fromID, toID, false);
+    }
+
+    /**
+     * Each Object is only read and deserialized when the stream reaches it.
+     * Any IOException or ClassNotFoundException encountered is thrown as an
+     * {@link java.io.UncheckedIOException}.
+     *
+     * @param fromID The first identifier.
+     * @param toID The last identifier.
+     * @param parallel If true then the stream is parallel.
+     * @return A stream of the Objects in the file store with identifiers from
+     * {@code fromID} to {@code toID} inclusive.
+     */
+    public Stream<Object> stream(long fromID, long toID, boolean parallel) {
+        return StreamSupport.stream(new Generic_FileStoreSpliterator(this,
+                Math.max(0L, fromID), Math.min(toID, getNextID())), parallel);
+    }
+
+    /**
+     * @return The path of the tombstone bitmap.
+     */
+    public Path getTombstonesPath() {
+        return Paths.get(baseDir.toString(),
+                Generic_FileStoreTombstones.FILENAME);
+    }
+
+    /**
+     * @param create If true then the tombstone bitmap is created if there is
+     * not one.
+     * @return {@link #tombstones} loading it first if it is null, or null if
+     * there is no tombstone bitmap and create is false.
+     * @throws IOException If encountered.
+     */
+    protected Generic_FileStoreTombstones getTombstones(boolean create)
+            throws IOException {
+        Generic_FileStoreTombstones r = tombstones;
+        if (r == null && (create || !tombstonesChecked)) {
+            synchronized (this) {
+                if (tombstones == null) {
+                    Path p = getTombstonesPath();
+                    if (create || Files.exists(p)) {
+                        tombstones = new Generic_FileStoreTombstones(p,
+                                readOnly);
+                    }
+                    tombstonesChecked = true;
+                }
+                r = tombstones;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param id The identifier.
+     * @return true if id has been deleted.
+     * @throws IOException If encountered.
+     */
+    public boolean isDeleted(long id) throws IOException {
+        Generic_FileStoreTombstones t = getTombstones(false);
+        return t != null && t.isDeleted(id);
+    }
+
+    /**
+     * @param id The identifier to start from.
+     * @return The first identifier from id that has not been deleted.
+     * @throws IOException If encountered.
+     */
+    public long nextLive(long id) throws IOException {
+        Generic_FileStoreTombstones t = getTombstones(false);
+        return t == null ? id : t.nextLive(id);
+    }
+
+    /**
+     * @return The number of identifiers deleted.
+     * @throws IOException If encountered.
+     */
+    public long getDeletedCount() throws IOException {
+        Generic_FileStoreTombstones t = getTombstones(false);
+        return t == null ? 0L : t.getCount();
+    }
+
+    /**
+     * Deletes the Object for id. The identifier is marked in the tombstone
+     * bitmap and then the file in its leaf directory is deleted. The leaf
+     * directory is left for {@link #compact()} to remove. Deleted identifiers
+     * are not reused and the identifiers of other Objects do not change.
+     *
+     * @param id The identifier.
+     * @return false if id is not in the file store or was already deleted.
+     * @throws IOException If encountered.
+     */
+    public boolean delete(long id) throws IOException {
+        checkWritable();
+        if (id < 0L || id > getNextID()) {
+            return false;
+        }
+        Generic_FileStoreTombstones t = getTombstones(true);
+        if (!t.delete(id)) {
+            return false;
+        }
+        if (getDurability() == Durability.FSYNC) {
+            t.force();
+        }
+        Files.deleteIfExists(Paths.get(getParentString(id), Long.toString(id),
+                name));
+        Map<String, Generic_FileStoreIndex> m = indexes;
+        if (m != null) {
+            for (Generic_FileStoreIndex x : m.values()) {
+                x.remove(id);
+            }
+        }
+        Generic_FileStoreCache c = cache;
+        if (c != null) {
+            c.invalidate(id);
+        }
+        return true;
+    }
+
+    /**
+     * Reclaims the space of deleted identifiers by removing their leaf
+     * directories and any directory all of whose identifiers are deleted. The
+     * directories on the path to the highest leaf are never removed so the
+     * file store can still be added to.
+     *
+     * @return The number of directories removed (each with any directories
+     * within it).
+     * @throws IOException If encountered.
+     */
+    public long compact() throws IOException {
+        checkWritable();
+        Generic_FileStoreTombstones t = getTombstones(false);
+        if (t == null || t.getCount() == 0L) {
+            return 0L;
+        }
+        return compact(t, getRangesArray(), root.getPath(), 0, 0L,
+                getNextID());
+    }
+
+    /**
+     * Compacts in another thread of the common pool.
+     *
+     * @return A future for the result of {@link #compact()}. Any IOException
+     * is wrapped in an {@link UncheckedIOException}.
+     */
+    public CompletableFuture<Long> compactAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return compact();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    /**
+     * @param t The tombstone bitmap.
+     * @param rs The ranges.
+     * @param dir The directory for the identifiers from {@code l} to
+     * {@code l + rs[depth] - 1}.
+     * @param depth The depth of dir.
+     * @param l The lowest identifier for dir.
+     * @param last The highest identifier in the file store.
+     * @return The number of directories removed.
+     * @throws IOException If encountered.
+     */
+    protected long compact(Generic_FileStoreTombstones t, long[] rs, Path dir,
+            int depth, long l, long last) throws IOException {
+        long r = 0L;
+        long u = Math.min(l + rs[depth] - 1L, last - 1L);
+        if (depth == rs.length - 1) {
+            long id = t.nextDeleted(l);
+            while (id <= u) {
+                Path p = Paths.get(dir.toString(), Long.toString(id));
+                if (Files.exists(p)) {
+                    Generic_IO.delete(p, false);
+                    r++;
+                }
+                id = t.nextDeleted(id + 1L);
+            }
+            return r;
+        }
+        long span = rs[depth + 1];
+        for (long cl = l; cl <= u; cl += span) {
+            long cu = cl + span - 1L;
+            Path p = Paths.get(dir.toString(), getName(cl, cu));
+            if (!Files.exists(p)) {
+                continue;
+            }
+            if (cu < last && t.isDeleted(cl, cu)) {
+                Generic_IO.delete(p, false);
+                r++;
+            } else if (t.nextDeleted(cl) <= Math.min(cu, u)) {
+                r += compact(t, rs, p, depth + 1, cl, last);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Registers a secondary index which is then updated whenever an Object is
+     * added or deleted (see {@link Generic_FileStoreIndex}). If the index does
+     * not already exist it is built from the Objects already in the file
+     * store, otherwise Objects added beyond its high water mark are indexed.
+     * Indexes need registering each time the file store is opened.
+     *
+     * @param name The name of the index. This is used in the file names of
+     * the index so it should be a simple name and cannot contain {@link #SEP}.
+     * @param extractor Gives the value to index for an Object, or null if the
+     * Object is not to be indexed.
+     * @return The index.
+     * @throws IOException If encountered.
+     */
+    public synchronized Generic_FileStoreIndex addIndex(String name,
+            Function<Object, Long> extractor) throws IOException {
+        Map<String, Generic_FileStoreIndex> m = indexes;
+        if (m == null) {
+            m = new ConcurrentHashMap<>();
+        }
+        Generic_FileStoreIndex r = m.get(name);
+        if (r != null) {
+            r.close();
+        }
+        r = new Generic_FileStoreIndex(this, name, extractor);
+        if (r.exists()) {
+            r.catchUp();
+        } else {
+            r.rebuild();
         }
+        m.put(name, r);
+        indexes = m;
         return r;
     }
 
     /**
-     * Calculates the number of directories needed at each level to store n
-     * files with range r. This first calculates the number of levels and the
-     * ranges for each level.
+     * @param name The name of the index.
+     * @return The index registered as name or null if there is not one.
+     */
+    public Generic_FileStoreIndex getIndex(String name) {
+        Map<String, Generic_FileStoreIndex> m = indexes;
+        return m == null ? null : m.get(name);
+    }
+
+    /**
+     * Called by a reader when a file is not found. If the root directory
+     * for the current layout no longer exists then the writer is growing
+     * the file store deeper, so this waits for the manifest to be updated and
+     * refreshes. Otherwise the layout is only refreshed if the manifest has
+     * been written since, so a leaf directory without a file costs a read of
+     * the manifest and nothing is locked.
      *
-     * @param n The number of files to store.
-     * @param range The range.
-     * @return The number of directories needed at each level to store n files
-     * with range range. The first element is the list is the number of
-     * directories in the root directory.
-     * @throws java.lang.Exception If n is too big for the range. If this is the
-     * case then maybe try to specify a bigger range or look to implementing
-     * something that can handle larger numbers of files as suggested in the
-     * class comment documentation.
+     * @return true if the layout changed.
+     * @throws IOException If encountered.
      */
-    public static final ArrayList<Long> getDirCounts(long n, long range)
-            throws Exception {
-        ArrayList<Long> dirCounts = new ArrayList<>();
-        long lvls = getLevels(n, range);
-        ArrayList<Long> rngs = getRanges(n, range);
-        /**
-         * Can safely cast here as getLevels(long, long) already throws an
-         * Exception if lvls is greater than Integer.MAX_VALUE
-         */
-        int li = (int) lvls;
-        ArrayList<Integer> dirIndexes = getDirIndexes(n, li, rngs);
-        for (int i = 0; i < dirIndexes.size(); i++) {
-            dirCounts.add((long) dirIndexes.get(i) + 1L);
+    protected boolean awaitLayoutChange() throws IOException {
+        long[] rs = getRangesArray();
+        if (Files.exists(Paths.get(baseDir.s, getName(0L, rs[0] - 1L)))) {
+            /**
+             * The file is not there in the current layout, so unless the
+             * manifest has been written since there is nothing to refresh.
+             */
+            Manifest m = readManifest();
+            return m != null && m.epoch != epoch && refreshLayout();
         }
-        return dirCounts;
+        for (int i = 0; i < 1000; i++) {
+            if (refreshLayout()) {
+                return true;
+            }
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
     }
 
     /**
-     * Gets the dir indexes for the directories at each level greater than zero
-     * for the element identified by id.
+     * Exports the files in the file store to a single archive file (see
+     * {@link Generic_FileStoreArchive}). The file store should not be added to
+     * while this is happening.
      *
-     * @param id The identifier for which the dir indexes are returned.
-     * @param levels The number of levels.
-     * @param ranges The ranges at each level.
-     * @return The dir indexes for the directories at each level greater than
-     * zero for the element identified by id.
+     * @param archive The path of the archive which must not already exist.
+     * @return The number of entries written.
+     * @throws IOException If encountered.
      */
-    protected static ArrayList<Integer> getDirIndexes(long id, int levels,
-            ArrayList<Long> ranges) {
-        ArrayList<Integer> r = new ArrayList<>();
-        for (int lvl = levels - 1; lvl >= 0; lvl--) {
-            long id2 = id;
-            long range = ranges.get(lvl);
-            int c = 0;
-            id2 -= range;
-            while (id2 >= 0) {
-                id2 -= range;
-                c++;
+    public long exportTo(Path archive) throws IOException {
+        return Generic_FileStoreArchive.exportTo(this, archive);
+    }
+
+    /**
+     * Imports the files in an archive written by {@link #exportTo(Path)} into
+     * this file store in parallel keeping their identifiers. Any indexes
+     * registered are then brought up to date.
+     *
+     * @param archive The path of the archive.
+     * @return The number of entries imported.
+     * @throws IOException If encountered.
+     * @throws Exception If this file store is not new.
+     */
+    public long importFrom(Path archive) throws IOException, Exception {
+        long r = Generic_FileStoreArchive.importFrom(this, archive);
+        Map<String, Generic_FileStoreIndex> m = indexes;
+        if (m != null) {
+            for (Generic_FileStoreIndex x : m.values()) {
+                x.catchUp();
             }
-            r.add(0, c);
         }
         return r;
     }
 
     /**
-     * Gets the dir indexes for the directories at each level in the current
-     * storage of the element identified by id.
-     *
-     * This may result in a runtime exception if n is too big for the range. If
-     * this is the case then maybe try to specify a bigger range or look to
-     * implementing something that can handle larger numbers of files as
-     * suggested in the class comment documentation.
+     * Rebuilds this file store with a different range in {@code target} by
+     * hard linking each leaf file, so this file store is left as it is (see
+     * {@link Generic_FileStoreReranger}). If a previous call was interrupted
+     * then calling again carries on from where it got to.
      *
-     * @param id The identifier of the element to get the dirCounts for.
-     * @return The dir counts at each level for the current storage of the
-     * element identified by id.
+     * @param target The base directory of the new file store.
+     * @param range The range of the new file store.
+     * @return The new file store.
+     * @throws IOException If encountered.
+     * @throws Exception If target exists and is not an unfinished rebuild of
+     * this file store with the same range.
      */
-    protected final ArrayList<Integer> getDirIndexes(long id) {
-        int li = levels;
-        return getDirIndexes(id, li, ranges);
+    public Generic_FileStore rerange(Path target, short range)
+            throws IOException, Exception {
+        return new Generic_FileStoreReranger(this, target, range,
+                Generic_FileStoreReranger.Mode.LINK, null).run();
     }
 
     /**
-     * @return a copy of {@link #lps}[levels] this is the current highest leaf
-     * directory of the file store.
+     * Each Object is read ahead on background threads with up to
+     * {@code prefetchDepth} reads in flight (see
+     * {@link Generic_FileStorePrefetcher}). The iterator should be closed if it
+     * is not iterated to the end.
+     *
+     * @param fromID The first identifier.
+     * @param prefetchDepth The maximum number of reads in flight.
+     * @return An iterator over the Objects in the file store from
+     * {@code fromID} in identifier order. Deleted identifiers and leaf
+     * directories without a file are skipped.
      */
-    public Generic_Path getPathNext() {
-        return new Generic_Path(Paths.get(lps[levels - 1].toString(),
-                Long.toString(nextID)));
+    public Generic_FileStorePrefetcher iterator(long fromID,
+            int prefetchDepth) {
+        return new Generic_FileStorePrefetcher(this, Math.max(0L, fromID),
+                getNextID(), prefetchDepth);
     }
 
     /**
-     * Calculates and returns the current path of the directory for storing the
-     * element identified by id. For efficiency, this does not check if id is
-     * less than or equal to {@link #nextID}, but it should be and if not then
-     * what is returned might not be useful.
-     *
-     * @param id The identifier of the element for which the current path is
-     * wanted.
-     * @return The current path of the directory for storing the element
-     * identified by id.
+     * @return {@link #compressor}.
      */
-    public Path getPath(long id) {
-        Path[] paths = new Path[levels - 1];
-        ArrayList<Integer> dirIndexes = getDirIndexes(id);
-        Path p = root;
-        for (int lvl = levels - 2; lvl >= 0; lvl--) {
-            long range = ranges.get(lvl + 1);
-            long l = range * dirIndexes.get(lvl + 1);
-            //long l = range * dirIndexes.get(lvl);
-            long u = l + range - 1L;
-            paths[lvl] = Paths.get(p.toString(), getName(l, u));
-            p = paths[lvl];
-        }
-        p = Paths.get(p.toString(), Long.toString(id));
-        return p;
+    public Generic_Compressor getCompressor() {
+        return compressor;
     }
 
     /**
-     * @param baseDir The baseDir of a file store for which the nextID is
-     * returned.
-     * @return The nextID of the file store with a baseDirectory baseDir.
-     * @throws Exception If encountered
+     * Sets the compressor used to compress Objects written to the file store.
+     * Whatever compressor compressed an Object is recorded with it, so Objects
+     * can be read whatever the compressor is set to. If {@link #codec} is null
+     * then compressed Objects are encoded with {@link Generic_Codecs#JAVA}.
+     *
+     * @param z What {@link #compressor} is set to. If null then Objects are
+     * not compressed.
      */
-    public static Long getNextID(Generic_Path baseDir) throws Exception {
-        if (baseDir == null) {
-            return null;
-        }
-        return new Generic_FileStore(baseDir.getPath()).nextID;
+    public void setCompressor(Generic_Compressor z) {
+        compressor = z;
     }
 
     /**
-     * @return The nextID of the file store with a base directory baseDir.
-     * @throws Exception If encountered
+     * @return The number of bytes encoded before compression for the records
+     * written with a codec or compressor.
      */
-    public long getNextID() throws Exception {
-        return nextID;
+    public long getBytesIn() {
+        return bytesIn.sum();
     }
 
-    protected final String getName(long l, long u) {
-        return Long.toString(l) + SEP + Long.toString(u);
+    /**
+     * @return The number of payload bytes written for the records written
+     * with a codec or compressor.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
     }
 
     /**
-     * Initialises lps. This should be called when the directory structure grows
-     * deeper. As the directory grows wider the appropriate paths in lps want
-     * updating.
+     * @return The time in nanoseconds taken to encode and compress the
+     * records written with a codec or compressor.
      */
-    protected final void initLPs() {
-        lps = new Generic_Path[levels];
-        lps[0] = root;
-        ArrayList<Integer> dirIndexes = getDirIndexes(nextID, levels, ranges);
-        for (int lvl = 1; lvl < levels; lvl++) {
-            long range = ranges.get(lvl);
-            long l = range * dirIndexes.get(lvl);
-            long u = l + range - 1L;
-            lps[lvl] = new Generic_Path(Paths.get(lps[lvl - 1].s, getName(l, u)));
-        }
+    public long getEncodeNanos() {
+        return encodeNanos.sum();
     }
 
     /**
-     * Serializes and writes o to
-     * {@code Paths.get(getHighestLeaf().toString(), name)};
-     *
-     * @param o The Object to be serialised and written out.
-     * @throws IOException If encountered.
+     * @return {@link #cache}.
      */
-    public void add(Object o) throws IOException {
-        Path p = Paths.get(getHighestLeaf().toString(), name);
-        Generic_IO.writeObject(o, p);
+    public Generic_FileStoreCache getCache() {
+        return cache;
     }
 
     /**
-     * Deserializes an Object from file at
-     * {@code Paths.get(getPath(id).toString(), name)}.
+     * Sets the cache used by {@link #get(long)}. With a cache, repeated gets
+     * for the same identifier return the same Object, so Objects that are got
+     * should not be modified unless they are then added back.
      *
-     * @param id The identifier for the Object to be deserialized.
-     * @return The deserialized Object.
-     * @throws IOException If encountered.
-     * @throws java.lang.ClassNotFoundException If for some reason the Object
-     * cannot otherwise be deserialized.
+     * @param c What {@link #cache} is set to. If null then nothing is cached.
      */
-    public Object get(long id) throws IOException, ClassNotFoundException {
-        Path p = Paths.get(getPath(id).toString(), name);
-        return Generic_IO.readObject(p);
+    public void setCache(Generic_FileStoreCache c) {
+        cache = c;
     }
 
     /**
      * Adds a new directory to the file store for storing item identified by
-     * {@link #nextID}.
+     * {@link #nextID}. The manifest is only written if the file store grows
+     * deeper.
      *
      * @throws IOException If encountered.
      */
     public void addDir() throws IOException {
+        checkWritable();
         nextID++;
-        if (nextID % rangeL == 0) {
+        boolean deeper = false;
+        boolean made = nextID % rangeL == 0;
+        if (made) {
             // Grow
             if (nextID == ranges.get(0)) {
-                // Grow deeper.
-                ranges.add(0, nextRange);
-                root = new Generic_Path(Paths.get(baseDir.s, getName(0L, nextRange - 1)));
-                initNextRange();
-                Files.createDirectory(root.getPath());
-                //System.out.println(root.toString());
-                Path target = Paths.get(root.s,
-                        lps[0].getFileName().toString());
-                Files.move(lps[0].getPath(), target);
-                dirCounts.add(0, 1L);
-                levels++;
+                growDeeper();
+                deeper = true;
                 lps = new Generic_Path[levels];
                 lps[0] = root;
                 // Add width.
@@ -765,6 +2419,326 @@ public class Generic_FileStore implements Serializable {
         Path p = Files.createDirectory(
                 Paths.get(lps[levels - 1].s, Long.toString(nextID)));
         //System.out.println(p.toString());
+        if (made) {
+            createdDirs(List.of(lps[levels - 1].getPath()));
+        }
+        if (deeper) {
+            writeManifest();
+        }
+    }
+
+    /**
+     * Makes the creation of directories durable as set by
+     * {@link #durability}. For {@link Durability#FSYNC} each directory in
+     * dirs and each of its ancestors up to and including {@link #baseDir} is
+     * forced now, and for {@link Durability#GROUP_COMMIT} these are added to
+     * the next group commit.
+     *
+     * @param dirs Directories in which directories have been created.
+     * @throws IOException If encountered.
+     */
+    protected void createdDirs(Collection<Path> dirs) throws IOException {
+        Durability d = durability;
+        if (d == null || d == Durability.NONE) {
+            return;
+        }
+        Path b = baseDir.getPath();
+        Set<Path> s = new LinkedHashSet<>();
+        for (Path x : dirs) {
+            while (x != null && s.add(x) && !x.equals(b)) {
+                x = x.getParent();
+            }
+        }
+        if (d == Durability.FSYNC) {
+            for (Path x : s) {
+                Generic_IO.force(x);
+            }
+        } else {
+            Set<Path> ps = getPending();
+            synchronized (ps) {
+                ps.addAll(s);
+            }
+        }
+    }
+
+    /**
+     * Grows the file store deeper by adding a new root directory and moving
+     * the existing root directory into it. This updates {@link #ranges},
+     * {@link #root}, {@link #nextRange}, {@link #dirCounts} and
+     * {@link #levels}, but not {@link #lps}.
+     *
+     * @throws IOException If encountered.
+     */
+    protected void growDeeper() throws IOException {
+        if (getDurability() == Durability.GROUP_COMMIT) {
+            // What is pending is about to move.
+            forcePending();
+        }
+        Generic_Path oldRoot = root;
+        ranges.add(0, nextRange);
+        root = new Generic_Path(Paths.get(baseDir.s, getName(0L, nextRange - 1)));
+        initRangesArray();
+        initNextRange();
+        Files.createDirectory(root.getPath());
+        //System.out.println(root.toString());
+        Path target = Paths.get(root.s, oldRoot.getFileName().toString());
+        Files.move(oldRoot.getPath(), target);
+        dirCounts.add(0, 1L);
+        levels++;
+        createdDirs(List.of(root.getPath()));
+    }
+
+    /**
+     * Adds {@code n} new directories to the file store in one pass. This is
+     * equivalent to calling {@link #addDir()} {@code n} times, but the file
+     * store grows deeper as needed first, each parent directory is created
+     * once, and {@link #nextID}, {@link #lps}, {@link #dirCounts} and the
+     * manifest are only updated at the end.
+     *
+     * @param n The number of directories to add.
+     * @return The identifiers of the first and last directories added.
+     * @throws IOException If encountered.
+     * @throws Exception If n is less than 1 or too big for the range.
+     */
+    public long[] addDirs(long n) throws IOException, Exception {
+        return addDirs(n, false);
+    }
+
+    /**
+     * Adds {@code n} new directories to the file store in one pass. This is
+     * equivalent to calling {@link #addDir()} {@code n} times, but the file
+     * store grows deeper as needed first, each parent directory is created
+     * once, and {@link #nextID}, {@link #lps}, {@link #dirCounts} and the
+     * manifest are only updated at the end. Creating each leaf directory is
+     * still a system call, so for a file system where that dominates this is
+     * not much faster than the loop unless {@code parallel} is true and the
+     * file system can create directories in different parents at once.
+     *
+     * @param n The number of directories to add.
+     * @param parallel If true then the directories are created using a
+     * parallel stream with each parent directory being processed separately.
+     * @return The identifiers of the first and last directories added.
+     * @throws IOException If encountered.
+     * @throws Exception If n is less than 1 or too big for the range.
+     */
+    public long[] addDirs(long n, boolean parallel) throws IOException,
+            Exception {
+        if (n < 1) {
+            throw new Exception("n cannot be < 1.");
+        }
+        checkWritable();
+        long first = nextID + 1L;
+        long last = Math.addExact(nextID, n);
+        while (last >= ranges.get(0)) {
+            growDeeper();
+        }
+        createDirs(first, last, parallel);
+        nextID = last;
+        initLPs();
+        dirCounts = getDirCounts(nextID + 1L, rangeL);
+        writeManifest();
+        return new long[]{first, last};
+    }
+
+    /**
+     * Creates the leaf directories for the identifiers from {@code first} to
+     * {@code last} inclusive along with any parent directories that do not
+     * already exist. The file store must be deep enough to store
+     * {@code last}.
+     *
+     * @param first The identifier of the first leaf directory to create.
+     * @param last The identifier of the last leaf directory to create.
+     * @param parallel If true then the directories are created using a
+     * parallel stream with each parent directory being processed separately.
+     * @throws IOException If encountered.
+     */
+    protected void createDirs(long first, long last, boolean parallel)
+            throws IOException {
+        LongStream s = LongStream.rangeClosed(first / rangeL, last / rangeL);
+        if (parallel) {
+            s = s.parallel();
+        }
+        Set<Path> parents = ConcurrentHashMap.newKeySet();
+        try {
+            s.forEach(i -> {
+                long l = Math.max(first, i * rangeL);
+                long u = Math.min(last, i * rangeL + rangeL - 1L);
+                Path parent = Paths.get(getParentString(l));
+                parents.add(parent);
+                try {
+                    Files.createDirectories(parent);
+                    for (long id = l; id <= u; id++) {
+                        Files.createDirectory(parent.resolve(
+                                Long.toString(id)));
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        createdDirs(parents);
+    }
+
+    /**
+     * @return The path of the manifest file.
+     */
+    public Path getManifestPath() {
+        return Paths.get(baseDir.s, MANIFEST);
+    }
+
+    /**
+     * Writes the manifest. The manifest is written to a temporary file which
+     * is then moved into place so that an existing manifest is atomically
+     * replaced. Unless {@link #durability} is {@link Durability#NONE} the
+     * temporary file is forced before it is moved and {@link #baseDir} is
+     * forced after.
+     *
+     * @throws IOException If encountered.
+     */
+    protected void writeManifest() throws IOException {
+        long n = nextID;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(MANIFEST_MAGIC);
+            dos.writeInt(MANIFEST_VERSION);
+            dos.writeLong(rangeL);
+            dos.writeInt(levels);
+            dos.writeLong(n);
+            dos.writeLong(++epoch);
+            dos.writeBoolean(clean);
+            for (int i = 0; i < levels; i++) {
+                dos.writeLong(ranges.get(i));
+            }
+            for (int i = 0; i < levels; i++) {
+                dos.writeLong(dirCounts.get(i));
+            }
+        }
+        byte[] b = baos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        boolean force = getDurability() != Durability.NONE;
+        Path tmp = Paths.get(baseDir.s, MANIFEST + ".tmp");
+        try (FileChannel fc = FileChannel.open(tmp, CREATE, WRITE,
+                TRUNCATE_EXISTING)) {
+            ByteBuffer bb = ByteBuffer.allocate(b.length + 8);
+            bb.put(b).putLong(crc.getValue()).flip();
+            while (bb.hasRemaining()) {
+                fc.write(bb);
+            }
+            if (force) {
+                fc.force(false);
+            }
+        }
+        try {
+            Files.move(tmp, getManifestPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, getManifestPath(), REPLACE_EXISTING);
+        }
+        if (force) {
+            Generic_IO.force(baseDir.getPath());
+        }
+        manifestNextID = n;
+    }
+
+    /**
+     * @return The manifest or null if there is no manifest or if the manifest
+     * is corrupt.
+     * @throws IOException If encountered.
+     */
+    protected Manifest readManifest() throws IOException {
+        Path p = getManifestPath();
+        if (!Files.exists(p)) {
+            return null;
+        }
+        byte[] b = Files.readAllBytes(p);
+        if (b.length < 8) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, b.length - 8);
+        ByteBuffer bb = ByteBuffer.wrap(b);
+        if (bb.getLong(b.length - 8) != crc.getValue()) {
+            return null;
+        }
+        try {
+            if (bb.getInt() != MANIFEST_MAGIC) {
+                return null;
+            }
+            int v = bb.getInt();
+            if (v < 1 || v > MANIFEST_VERSION) {
+                return null;
+            }
+            Manifest m = new Manifest();
+            m.rangeL = bb.getLong();
+            m.levels = bb.getInt();
+            m.nextID = bb.getLong();
+            if (v > 1) {
+                m.epoch = bb.getLong();
+            }
+            if (v > 2) {
+                m.clean = bb.get() == 1;
+            }
+            m.ranges = new long[m.levels];
+            for (int i = 0; i < m.levels; i++) {
+                m.ranges[i] = bb.getLong();
+            }
+            m.dirCounts = new long[m.levels];
+            for (int i = 0; i < m.levels; i++) {
+                m.dirCounts[i] = bb.getLong();
+            }
+            return m;
+        } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * For holding what is read from a manifest.
+     */
+    protected static class Manifest {
+
+        /**
+         * The range.
+         */
+        long rangeL;
+
+        /**
+         * The number of levels.
+         */
+        int levels;
+
+        /**
+         * The nextID.
+         */
+        long nextID;
+
+        /**
+         * The ranges.
+         */
+        long[] ranges;
+
+        /**
+         * The dirCounts.
+         */
+        long[] dirCounts;
+
+        /**
+         * The epoch.
+         */
+        long epoch;
+
+        /**
+         * Whether the file store was closed cleanly.
+         */
+        boolean clean;
+
+        /**
+         * Creates a new instance to be populated from a manifest file.
+         */
+        protected Manifest() {
+        }
     }
 
     /**
@@ -862,17 +2836,22 @@ public class Generic_FileStore implements Serializable {
     /**
      * @param p The directory to find the highest directory in.
      * @return The path to the highest directory in the directory at {@code p}.
+     * Only directories named like "l_u" are considered, so files such as the
+     * manifest and indexes in {@link #baseDir} are ignored.
      * @throws IOException If encountered.
      */
     protected Path getHighestDir0(Path p) throws IOException {
-        List<Path> l = Generic_IO.getList(p);
         TreeMap<Long, Path> m = new TreeMap<>();
-        l.forEach((p2) -> {
-            String fn = p2.getFileName().toString();
-            if (fn.contains(SEP)) {
-                m.put(Long.valueOf(fn.split(SEP)[1]), p2);
+        for (Path p2 : getRootCandidates(p)) {
+            String[] split = p2.getFileName().toString().split(SEP);
+            if (split.length == 2) {
+                try {
+                    m.put(Long.valueOf(split[1]), p2);
+                } catch (NumberFormatException ex) {
+                    // Not a directory of the file store.
+                }
             }
-        });
+        }
         if (m.isEmpty()) {
             return p;
         }
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.LongStream;
+
+/**
+ * For exporting all the files of a {@link Generic_FileStore} to a single
+ * archive file and importing them again. This avoids the per file overheads
+ * of copying a file store with many small files between machines.
+ *
+ * The archive starts with a {@link #HEADER_LENGTH} byte header:
+ * {@link #MAGIC}, {@link #VERSION}, the range and nextID of the file store
+ * exported, the number of entries and the offset of the index. Then there is
+ * an entry for each identifier with a file or that is deleted, in identifier
+ * order, each being the identifier and the length of the file followed by the
+ * bytes of the file. The length is -1 for deleted identifiers. The index at
+ * the end has the offset of each entry so entries can be imported in
+ * parallel. The header is written last so an archive that was not finished
+ * is not recognised as one.
+ *
+ * File bytes are copied as they are with {@link FileChannel#transferTo} both
+ * ways, so whatever codec and compressor wrote them they are read the same
+ * way after importing.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreArchive {
+
+    /**
+     * For checking a file is an archive.
+     */
+    protected static final int MAGIC = 0x47464131;
+
+    /**
+     * The version of the archive format.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * The length of the header.
+     */
+    protected static final int HEADER_LENGTH = 40;
+
+    /**
+     * The length of the identifier and length at the start of each entry.
+     */
+    protected static final int ENTRY_HEADER_LENGTH = 16;
+
+    private Generic_FileStoreArchive() {
+    }
+
+    /**
+     * Exports the files in fs to a new archive at p.
+     *
+     * @param fs The file store.
+     * @param p The path of the archive which must not already exist.
+     * @return The number of entries written.
+     * @throws IOException If encountered.
+     */
+    public static long exportTo(Generic_FileStore fs, Path p)
+            throws IOException {
+        long last = fs.getNextID();
+        Path ip = Files.createTempFile(p.toAbsolutePath().getParent(),
+                "index", null);
+        try (FileChannel a = FileChannel.open(p, CREATE_NEW, WRITE);
+                FileChannel ic = FileChannel.open(ip, WRITE)) {
+            ByteBuffer eh = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+            ByteBuffer ib = ByteBuffer.allocate(8 * 1024);
+            long pos = HEADER_LENGTH;
+            long n = 0L;
+            for (long id = 0L; id <= last; id++) {
+                long len;
+                FileChannel f = null;
+                if (fs.isDeleted(id)) {
+                    len = -1L;
+                } else {
+                    Path fp = Paths.get(fs.getParentString(id),
+                            Long.toString(id), fs.name);
+                    try {
+                        f = FileChannel.open(fp, READ);
+                    } catch (NoSuchFileException ex) {
+                        continue;
+                    }
+                    len = f.size();
+                }
+                try {
+                    eh.clear();
+                    eh.putLong(id).putLong(len).flip();
+                    write(a, eh, pos);
+                    if (f != null) {
+                        transfer(f, 0L, len, a, pos + ENTRY_HEADER_LENGTH);
+                    }
+                } finally {
+                    if (f != null) {
+                        f.close();
+                    }
+                }
+                if (!ib.hasRemaining()) {
+                    ib.flip();
+                    while (ib.hasRemaining()) {
+                        ic.write(ib);
+                    }
+                    ib.clear();
+                }
+                ib.putLong(pos);
+                pos += ENTRY_HEADER_LENGTH + Math.max(0L, len);
+                n++;
+            }
+            ib.flip();
+            while (ib.hasRemaining()) {
+                ic.write(ib);
+            }
+            ic.force(false);
+            try (FileChannel ir = FileChannel.open(ip, READ)) {
+                transfer(ir, 0L, n * 8L, a, pos);
+            }
+            ByteBuffer h = ByteBuffer.allocate(HEADER_LENGTH);
+            h.putInt(MAGIC).putInt(VERSION).putLong(fs.rangeL).putLong(last)
+                    .putLong(n).putLong(pos).flip();
+            write(a, h, 0L);
+            a.force(true);
+            return n;
+        } finally {
+            Files.deleteIfExists(ip);
+        }
+    }
+
+    /**
+     * Imports the entries in the archive at p into fs in parallel. The leaf
+     * directories are created first and then the files are copied into them.
+     * The identifiers are the same as in the file store exported, but the
+     * range of fs can be different. Deleted identifiers are deleted from fs.
+     *
+     * @param fs The file store which must be new, so that only identifier 0
+     * has a leaf directory, and not be added to while importing.
+     * @param p The path of the archive.
+     * @return The number of entries imported.
+     * @throws IOException If encountered or if p is not a complete archive.
+     * @throws Exception If fs is not new.
+     */
+    public static long importFrom(Generic_FileStore fs, Path p)
+            throws IOException, Exception {
+        if (fs.getNextID() != 0L) {
+            throw new Exception("File store " + fs.getBaseDir() + " is not "
+                    + "new.");
+        }
+        try (FileChannel a = FileChannel.open(p, READ)) {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_LENGTH);
+            read(a, h, 0L);
+            if (h.getInt() != MAGIC) {
+                throw new IOException("Path " + p + " is not an archive.");
+            }
+            int v = h.getInt();
+            if (v != VERSION) {
+                throw new IOException("Unsupported archive version " + v
+                        + " in " + p + ".");
+            }
+            h.getLong();
+            long last = h.getLong();
+            long n = h.getLong();
+            long ipos = h.getLong();
+            if (ipos < HEADER_LENGTH || ipos + n * 8L > a.size()) {
+                throw new IOException("Archive " + p + " is incomplete.");
+            }
+            if (last > 0L) {
+                fs.addDirs(last, true);
+            }
+            LongBuffer index = a.map(FileChannel.MapMode.READ_ONLY, ipos,
+                    n * 8L).asLongBuffer();
+            Generic_FileStore.Durability d = fs.getDurability();
+            try {
+                LongStream.range(0L, n).parallel().forEach(i -> {
+                    try {
+                        importEntry(fs, a, index.get((int) i), d);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            if (fs instanceof Generic_FileStoreConcurrent) {
+                ((Generic_FileStoreConcurrent) fs).sync();
+            } else {
+                fs.commit();
+            }
+            Generic_FileStoreCache c = fs.getCache();
+            if (c != null) {
+                c.clear();
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Imports the entry at pos.
+     *
+     * @param fs The file store.
+     * @param a The archive.
+     * @param pos The position of the entry.
+     * @param d The durability of fs.
+     * @throws IOException If encountered.
+     */
+    protected static void importEntry(Generic_FileStore fs, FileChannel a,
+            long pos, Generic_FileStore.Durability d) throws IOException {
+        ByteBuffer eh = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+        read(a, eh, pos);
+        long id = eh.getLong();
+        long len = eh.getLong();
+        if (len < 0L) {
+            fs.delete(id);
+            return;
+        }
+        Path fp = Paths.get(fs.getParentString(id), Long.toString(id),
+                fs.name);
+        try (FileChannel f = FileChannel.open(fp, CREATE, TRUNCATE_EXISTING,
+                WRITE)) {
+            transfer(a, pos + ENTRY_HEADER_LENGTH, len, f, 0L);
+            if (d == Generic_FileStore.Durability.FSYNC) {
+                f.force(true);
+            }
+        }
+        if (d == Generic_FileStore.Durability.GROUP_COMMIT) {
+            fs.addPending(fp);
+        }
+    }
+
+    /**
+     * Transfers len bytes from position pos of src to position dpos of dst.
+     *
+     * @param src The source.
+     * @param pos The position in src.
+     * @param len The number of bytes.
+     * @param dst The destination.
+     * @param dpos The position in dst.
+     * @throws IOException If encountered or if src ends too soon.
+     */
+    protected static void transfer(FileChannel src, long pos, long len,
+            FileChannel dst, long dpos) throws IOException {
+        long done = 0L;
+        while (done < len) {
+            long t = src.transferTo(pos + done, len - done,
+                    dst.position(dpos + done));
+            if (t <= 0L) {
+                if (pos + done >= src.size()) {
+                    throw new IOException("Unexpected end of file.");
+                }
+                continue;
+            }
+            done += t;
+        }
+    }
+
+    /**
+     * Writes b at position pos of c.
+     *
+     * @param c The channel.
+     * @param b The buffer.
+     * @param pos The position.
+     * @throws IOException If encountered.
+     */
+    protected static void write(FileChannel c, ByteBuffer b, long pos)
+            throws IOException {
+        while (b.hasRemaining()) {
+            pos += c.write(b, pos);
+        }
+    }
+
+    /**
+     * Fills b from position pos of c and flips it.
+     *
+     * @param c The channel.
+     * @param b The buffer.
+     * @param pos The position.
+     * @throws IOException If encountered or if c ends too soon.
+     */
+    protected static void read(FileChannel c, ByteBuffer b, long pos)
+            throws IOException {
+        while (b.hasRemaining()) {
+            int r = c.read(b, pos);
+            if (r < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            pos += r;
+        }
+        b.flip();
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import uk.ac.leeds.ccg.generic.memory.Generic_MemoryManager;
+
+/**
+ * A least recently used cache of deserialized Objects for a
+ * {@link Generic_FileStore} keyed by identifier. Each Object is given a weight
+ * by {@link #weigher} and the least recently used Objects are evicted when the
+ * total weight would exceed {@link #maxWeight}. With the default weigher every
+ * Object weighs 1, so {@link #maxWeight} is the maximum number of Objects.
+ *
+ * Entries are also evicted when free memory is low. This is checked before an
+ * Object is put in the cache and whenever {@link #checkAndMaybeFreeMemory()}
+ * is called. Garbage collection is not forced, so the memory is only freed
+ * when the garbage collector next runs.
+ *
+ * {@link #version} is incremented each time an Object is invalidated, so a
+ * reader that takes the version before reading a file can put what it read
+ * with {@link #put(long, Object, long)}, which does nothing if a write
+ * invalidated anything in the meantime. This stops a stale Object read
+ * before a write being cached after it.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreCache extends Generic_MemoryManager {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The maximum total weight of the cached Objects.
+     */
+    protected final long maxWeight;
+
+    /**
+     * For weighing Objects.
+     */
+    protected final ToLongFunction<Object> weigher;
+
+    /**
+     * The cached Objects and their weights in access order.
+     */
+    protected final LinkedHashMap<Long, Entry> map;
+
+    /**
+     * The total weight of the cached Objects.
+     */
+    protected long weight;
+
+    /**
+     * The number of times get found an Object.
+     */
+    protected long hits;
+
+    /**
+     * The number of times get did not find an Object.
+     */
+    protected long misses;
+
+    /**
+     * The number of Objects evicted.
+     */
+    protected long evictions;
+
+    /**
+     * Incremented each time an Object is invalidated or the cache is cleared.
+     */
+    protected long version;
+
+    /**
+     * A cached Object and its weight.
+     */
+    protected static class Entry {
+
+        /**
+         * The Object.
+         */
+        final Object o;
+
+        /**
+         * The weight of {@link #o}.
+         */
+        final long weight;
+
+        Entry(Object o, long weight) {
+            this.o = o;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Creates a cache for up to {@code maxSize} Objects.
+     *
+     * @param maxSize The maximum number of Objects to cache.
+     */
+    public Generic_FileStoreCache(long maxSize) {
+        this(maxSize, o -> 1L);
+    }
+
+    /**
+     * Creates a cache for Objects with a total weight up to {@code maxWeight}.
+     *
+     * @param maxWeight The maximum total weight of the cached Objects.
+     * @param weigher For weighing Objects. Weights must not be negative.
+     */
+    public Generic_FileStoreCache(long maxWeight,
+            ToLongFunction<Object> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        map = new LinkedHashMap<>(16, 0.75f, true);
+        Memory_Threshold = Default_Memory_Threshold;
+    }
+
+    /**
+     * @param id The identifier.
+     * @return The cached Object for id or null if there is not one.
+     */
+    public synchronized Object get(long id) {
+        Entry e = map.get(id);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.o;
+    }
+
+    /**
+     * Caches o for id evicting the least recently used Objects as needed. If
+     * o is null or heavier than {@link #maxWeight} then it is not cached.
+     *
+     * @param id The identifier.
+     * @param o The Object.
+     */
+    public synchronized void put(long id, Object o) {
+        remove(id);
+        if (o == null) {
+            return;
+        }
+        long w = weigher.applyAsLong(o);
+        if (w > maxWeight) {
+            return;
+        }
+        if (getTotalFreeMemory() < Memory_Threshold) {
+            freeMemory();
+        }
+        while (weight + w > maxWeight && evictEldest()) {
+        }
+        map.put(id, new Entry(o, w));
+        weight += w;
+    }
+
+    /**
+     * Caches o for id as {@link #put(long, Object)} does, but only if
+     * {@link #version} is still {@code v}.
+     *
+     * @param id The identifier.
+     * @param o The Object.
+     * @param v The {@link #version} from before o was read.
+     * @return true if {@link #version} was still {@code v}.
+     */
+    public synchronized boolean put(long id, Object o, long v) {
+        if (version != v) {
+            return false;
+        }
+        put(id, o);
+        return true;
+    }
+
+    /**
+     * @return {@link #version}.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Removes any cached Object for id and increments {@link #version}.
+     *
+     * @param id The identifier.
+     */
+    public synchronized void invalidate(long id) {
+        version++;
+        remove(id);
+    }
+
+    /**
+     * Removes any cached Object for id.
+     *
+     * @param id The identifier.
+     */
+    protected void remove(long id) {
+        Entry e = map.remove(id);
+        if (e != null) {
+            weight -= e.weight;
+        }
+    }
+
+    /**
+     * Removes all the cached Objects and increments {@link #version}.
+     */
+    public synchronized void clear() {
+        version++;
+        map.clear();
+        weight = 0L;
+    }
+
+    /**
+     * Evicts the least recently used Object.
+     *
+     * @return true if an Object was evicted and false if the cache was empty.
+     */
+    protected boolean evictEldest() {
+        Iterator<Map.Entry<Long, Entry>> ite = map.entrySet().iterator();
+        if (!ite.hasNext()) {
+            return false;
+        }
+        weight -= ite.next().getValue().weight;
+        ite.remove();
+        evictions++;
+        return true;
+    }
+
+    /**
+     * Evicts the least recently used quarter of the cached Objects (at least
+     * one). Garbage collection is not forced, so free memory does not go up
+     * until the garbage collector next runs. If it is still low then, more
+     * are evicted the next time this is called.
+     *
+     * @return true if any Objects were evicted.
+     */
+    protected boolean freeMemory() {
+        int n = Math.max(1, map.size() / 4);
+        boolean r = false;
+        for (int i = 0; i < n && evictEldest(); i++) {
+            r = true;
+        }
+        return r;
+    }
+
+    /**
+     * Evicts the least recently used half of the cached Objects.
+     *
+     * @return true if any Objects were evicted.
+     */
+    @Override
+    public synchronized boolean swapSomeData() {
+        int n = (map.size() + 1) / 2;
+        for (int i = 0; i < n; i++) {
+            evictEldest();
+        }
+        return n > 0;
+    }
+
+    /**
+     * Evicts the least recently used half of the cached Objects.
+     *
+     * @param hoome Ignored as evicting does not need memory.
+     * @return true if any Objects were evicted.
+     */
+    @Override
+    public boolean swapSomeData(boolean hoome) {
+        return swapSomeData();
+    }
+
+    /**
+     * Evicts cached Objects if free memory is below
+     * {@link #Memory_Threshold}.
+     *
+     * @return true if there is at least {@link #Memory_Threshold} free memory.
+     * As garbage collection is not forced, this may be false straight after
+     * evicting.
+     */
+    @Override
+    public synchronized boolean checkAndMaybeFreeMemory() {
+        if (getTotalFreeMemory() < Memory_Threshold) {
+            freeMemory();
+        }
+        return getTotalFreeMemory() >= Memory_Threshold;
+    }
+
+    /**
+     * @return The number of cached Objects.
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * @return {@link #weight}.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return {@link #hits}.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return {@link #misses}.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return {@link #evictions}.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "(size=" + map.size()
+                + ", weight=" + weight + ", maxWeight=" + maxWeight
+                + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + ")";
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link Generic_FileStore} that can be written to by many threads at once.
+ *
+ * Identifiers are reserved using an atomic counter. The parent directories of
+ * leaf directories are created once, guarded by striped locks. Growing the
+ * file store deeper (which moves the root directory) is done holding the
+ * write lock of {@link #layoutLock} and writers hold the read lock of this
+ * whilst creating directories and writing, so no writer is ever part way
+ * through using a path that is moved. Readers do not lock at all. Instead
+ * {@link #layoutVersion} is incremented before and after the file store grows
+ * deeper and if a read fails because a file is not found while this is
+ * happening the read is retried with the new layout.
+ *
+ * {@link #nextID}, {@link #lps}, {@link #dirCounts} and the manifest are only
+ * brought up to date with the reserved identifiers by {@link #sync()} or
+ * {@link #close()}, which should be called once the writers are finished. The
+ * manifest is also written when the file store grows deeper.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreConcurrent extends Generic_FileStore {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of locks in {@link #locks}. This must be a power of 2.
+     */
+    protected static final int NLOCKS = 64;
+
+    /**
+     * The highest reserved identifier.
+     */
+    protected final AtomicLong counter;
+
+    /**
+     * Striped locks for creating parent directories of leaf directories. The
+     * lock for the parent of the leaf directory for id is
+     * {@code locks[(int) ((id / rangeL) & (NLOCKS - 1))]}.
+     */
+    protected final ReentrantLock[] locks;
+
+    /**
+     * Writers hold the read lock and growing deeper holds the write lock.
+     */
+    protected final ReentrantReadWriteLock layoutLock;
+
+    /**
+     * Incremented before and after the file store grows deeper, so it is odd
+     * while this is happening.
+     */
+    protected volatile long layoutVersion;
+
+    /**
+     * Initialises a file store at {@code p} called {@code name} with 3 levels
+     * allowing to store {@code range} number of files in each directory.
+     *
+     * @param p The path to where the file store will be initialised.
+     * @param name The directory file name for the {@link #baseDir} of the file
+     * store.
+     * @param range The maximum number of directories in each level of the file
+     * store.
+     * @throws IOException If encountered.
+     * @throws Exception If range is less than 0.
+     */
+    public Generic_FileStoreConcurrent(Path p, String name, short range)
+            throws IOException, Exception {
+        super(p, name, range);
+        counter = new AtomicLong(nextID);
+        locks = initLocks();
+        layoutLock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Initialises a file store at {@code p} for an existing file store.
+     *
+     * @param p The path of the existing file store base directory.
+     * @throws IOException If encountered.
+     * @throws Exception If the existing file store is problematic.
+     */
+    public Generic_FileStoreConcurrent(Path p) throws IOException, Exception {
+        super(p);
+        counter = new AtomicLong(nextID);
+        locks = initLocks();
+        layoutLock = new ReentrantReadWriteLock();
+    }
+
+    private static ReentrantLock[] initLocks() {
+        ReentrantLock[] r = new ReentrantLock[NLOCKS];
+        for (int i = 0; i < NLOCKS; i++) {
+            r[i] = new ReentrantLock();
+        }
+        return r;
+    }
+
+    /**
+     * Deletes the Object for id. This waits if the file store is being grown
+     * deeper.
+     *
+     * @param id The identifier.
+     * @return false if id is not in the file store or was already deleted.
+     * @throws IOException If encountered.
+     */
+    @Override
+    public boolean delete(long id) throws IOException {
+        layoutLock.readLock().lock();
+        try {
+            return super.delete(id);
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reclaims the space of deleted identifiers. The file store is not grown
+     * deeper while this is happening.
+     *
+     * @return The number of directories removed.
+     * @throws IOException If encountered.
+     */
+    @Override
+    public long compact() throws IOException {
+        layoutLock.readLock().lock();
+        try {
+            return super.compact();
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reserves the next identifier and creates the leaf directory for it.
+     *
+     * @return The identifier reserved.
+     * @throws IOException If encountered.
+     */
+    public long reserve() throws IOException {
+        checkWritable();
+        long id = reserveID();
+        createLeaf(id);
+        return id;
+    }
+
+    /**
+     * Reserves the next identifier without creating the leaf directory for it.
+     * {@link #createLeaf(long)} should be called with the identifier before
+     * anything is added for it.
+     *
+     * @return The identifier reserved.
+     */
+    public long reserveID() {
+        return counter.incrementAndGet();
+    }
+
+    /**
+     * Reserves all the identifiers up to and including id if they are not
+     * already reserved. {@link #createLeaf(long)} should be called with id
+     * before anything is added for it.
+     *
+     * @param id The identifier.
+     */
+    public void reserveID(long id) {
+        counter.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Creates the leaf directory for a reserved identifier.
+     *
+     * @param id The identifier.
+     * @throws IOException If encountered.
+     */
+    public void createLeaf(long id) throws IOException {
+        ensureDepth(id);
+        layoutLock.readLock().lock();
+        try {
+            String parent = getParentString(id);
+            createParent(id, parent);
+            Files.createDirectory(Paths.get(parent, Long.toString(id)));
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reserves the next identifier, creates the leaf directory for it and
+     * serializes and writes o to it.
+     *
+     * @param o The Object to be serialised and written out.
+     * @return The identifier reserved.
+     * @throws IOException If encountered.
+     */
+    public long put(Object o) throws IOException {
+        long id = reserve();
+        add(id, o);
+        return id;
+    }
+
+    /**
+     * Serializes and writes o to the leaf directory for id which must already
+     * have been reserved.
+     *
+     * @param id The identifier of the leaf directory to write to.
+     * @param o The Object to be serialised and written out.
+     * @throws IOException If encountered.
+     */
+    @Override
+    public void add(long id, Object o) throws IOException {
+        layoutLock.readLock().lock();
+        try {
+            super.add(id, o);
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Serializes and writes o to the highest reserved leaf directory.
+     *
+     * @param o The Object to be serialised and written out.
+     * @throws IOException If encountered.
+     */
+    @Override
+    public void add(Object o) throws IOException {
+        add(counter.get(), o);
+    }
+
+    /**
+     * Deserializes an Object from the leaf directory for id. If the file store
+     * is grown deeper while this is happening, the read is retried.
+     *
+     * @param id The identifier for the Object to be deserialized.
+     * @return The deserialized Object.
+     * @throws IOException If encountered.
+     * @throws java.lang.ClassNotFoundException If for some reason the Object
+     * cannot otherwise be deserialized.
+     */
+    @Override
+    public Object get(long id) throws IOException, ClassNotFoundException {
+        while (true) {
+            long v = layoutVersion;
+            try {
+                return super.get(id);
+            } catch (NoSuchFileException ex) {
+                if (v % 2L == 0L && v == layoutVersion) {
+                    throw ex;
+                }
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Reserves the next identifier and creates the leaf directory for it.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    public void addDir() throws IOException {
+        reserve();
+    }
+
+    /**
+     * Reserves the next {@code n} identifiers and creates the leaf directories
+     * for them.
+     *
+     * @param n The number of directories to add.
+     * @param parallel If true then the directories are created using a
+     * parallel stream with each parent directory being processed separately.
+     * @return The identifiers of the first and last directories added.
+     * @throws IOException If encountered.
+     * @throws Exception If n is less than 1.
+     */
+    @Override
+    public long[] addDirs(long n, boolean parallel) throws IOException,
+            Exception {
+        if (n < 1) {
+            throw new Exception("n cannot be < 1.");
+        }
+        checkWritable();
+        long last = counter.addAndGet(n);
+        long first = last - n + 1L;
+        ensureDepth(last);
+        layoutLock.readLock().lock();
+        try {
+            createDirs(first, last, parallel);
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+        return new long[]{first, last};
+    }
+
+    /**
+     * Creates the parent directory of the leaf directory for id if it does not
+     * already exist.
+     *
+     * @param id The identifier.
+     * @param parent The path of the parent directory.
+     * @throws IOException If encountered.
+     */
+    protected void createParent(long id, String parent) throws IOException {
+        Path p = Paths.get(parent);
+        if (!Files.isDirectory(p)) {
+            ReentrantLock lock = locks[(int) ((id / rangeL) & (NLOCKS - 1))];
+            lock.lock();
+            try {
+                if (!Files.isDirectory(p)) {
+                    Files.createDirectories(p);
+                    createdDirs(List.of(p));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Grows the file store deeper if needed to store id.
+     *
+     * @param id The identifier.
+     * @throws IOException If encountered.
+     */
+    protected void ensureDepth(long id) throws IOException {
+        if (id >= getRangesArray()[0]) {
+            layoutLock.writeLock().lock();
+            try {
+                if (id >= ranges.get(0)) {
+                    while (id >= ranges.get(0)) {
+                        growDeeper();
+                    }
+                    writeManifest();
+                }
+            } finally {
+                layoutLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Grows the file store deeper incrementing {@link #layoutVersion} before
+     * and after. This must be called holding the write lock of
+     * {@link #layoutLock}.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    protected void growDeeper() throws IOException {
+        layoutVersion++;
+        try {
+            super.growDeeper();
+        } finally {
+            layoutVersion++;
+        }
+    }
+
+    /**
+     * @return The highest reserved identifier.
+     */
+    @Override
+    public long getNextID() {
+        return counter.get();
+    }
+
+    /**
+     * @return The leaf directory for the highest reserved identifier.
+     */
+    @Override
+    public Path getHighestLeaf() {
+        return getPath(counter.get());
+    }
+
+    /**
+     * Brings {@link #nextID}, {@link #lps}, {@link #dirCounts} and the manifest
+     * up to date with the reserved identifiers and commits any pending group
+     * commit. This should only be called when all the reserved leaf
+     * directories have been created.
+     *
+     * @throws IOException If encountered.
+     * @throws Exception If encountered.
+     */
+    public void sync() throws IOException, Exception {
+        layoutLock.writeLock().lock();
+        try {
+            syncLayout();
+            writeManifest();
+            commit();
+        } finally {
+            layoutLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Brings {@link #nextID}, {@link #lps} and {@link #dirCounts} up to date
+     * with the reserved identifiers. This must be called holding the write
+     * lock of {@link #layoutLock}.
+     *
+     * @throws IOException If encountered.
+     */
+    protected void syncLayout() throws IOException {
+        nextID = counter.get();
+        initLPs();
+        initDirCounts();
+    }
+
+    /**
+     * Brings {@link #nextID}, {@link #lps} and {@link #dirCounts} up to date
+     * with the reserved identifiers and then closes as
+     * {@link Generic_FileStore#close()}. This should only be called when all
+     * the reserved leaf directories have been created.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        layoutLock.writeLock().lock();
+        try {
+            syncLayout();
+            super.close();
+        } finally {
+            layoutLock.writeLock().unlock();
+        }
+    }
+}
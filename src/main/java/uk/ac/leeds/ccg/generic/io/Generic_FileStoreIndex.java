@@ -0,0 +1,689 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Function;
+
+/**
+ * A persistent secondary index of the Objects in a {@link Generic_FileStore}
+ * on a long valued attribute given by an extractor function. The index
+ * answers equality and range queries on the attribute with the identifiers
+ * of the Objects without reading any leaves. Indexes are registered with
+ * {@link Generic_FileStore#addIndex(String, Function)} and are then updated
+ * whenever an Object is added or deleted.
+ *
+ * The index is kept as two sorted primitive arrays of attribute values and
+ * identifiers in a base file, and an append only log of changes since. Each
+ * change is 17 bytes appended to the log. When the log has
+ * {@link #MERGE_THRESHOLD} entries it is merged into a new base file which
+ * replaces the old one atomically and the log is emptied. A query is a binary
+ * search of the base arrays and a scan of the log entries, which are also
+ * held in memory.
+ *
+ * The value for each identifier is also held in memory in an array indexed
+ * by identifier so that entries made stale by an Object being overwritten or
+ * deleted can be ignored without reading anything. This limits identifiers to
+ * less than {@link Integer#MAX_VALUE}.
+ *
+ * The highest identifier indexed, the high water mark, is kept in the base
+ * file and recovered from the log. Extractors are code and so are not
+ * persisted, so indexes need registering each time a file store is opened.
+ * When registered, Objects added beyond the high water mark while the index
+ * was not registered, including those imported, are indexed by
+ * {@link #catchUp()}. Objects overwritten or deleted below the high water mark
+ * while an index was not registered are not, so {@link #rebuild()} is needed
+ * for those.
+ *
+ * If the durability of the file store is
+ * {@link Generic_FileStore.Durability#FSYNC} the log is forced after each
+ * change.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreIndex implements AutoCloseable {
+
+    /**
+     * The prefix of the file names of indexes in the base directory of the
+     * file store.
+     */
+    public static final String PREFIX = "index.";
+
+    /**
+     * The suffix of the log file name.
+     */
+    public static final String LOG_SUFFIX = ".log";
+
+    /**
+     * For checking a file is an index base file.
+     */
+    protected static final int MAGIC = 0x47495831;
+
+    /**
+     * The version of the file format.
+     */
+    protected static final int VERSION = 2;
+
+    /**
+     * The length of the header of the base file.
+     */
+    protected static final int HEADER_LENGTH = 24;
+
+    /**
+     * The length of each log entry: the identifier, the value and whether the
+     * identifier has a value.
+     */
+    protected static final int LOG_ENTRY_LENGTH = 17;
+
+    /**
+     * The number of log entries at which the log is merged into the base.
+     */
+    protected static final int MERGE_THRESHOLD = 8192;
+
+    /**
+     * The file store.
+     */
+    protected final Generic_FileStore fs;
+
+    /**
+     * The name of the index.
+     */
+    protected final String name;
+
+    /**
+     * Gives the value to index for an Object, or null if the Object is not to
+     * be indexed.
+     */
+    protected final Function<Object, Long> extractor;
+
+    /**
+     * The base file.
+     */
+    protected final Path basePath;
+
+    /**
+     * The log file.
+     */
+    protected final Path logPath;
+
+    /**
+     * The log file channel.
+     */
+    protected FileChannel log;
+
+    /**
+     * The values in the base in ascending order.
+     */
+    protected long[] keys;
+
+    /**
+     * The identifiers in the base in the same order as {@link #keys} and for
+     * equal keys in ascending order.
+     */
+    protected long[] ids;
+
+    /**
+     * The values in the log.
+     */
+    protected long[] logKeys;
+
+    /**
+     * The identifiers in the log.
+     */
+    protected long[] logIDs;
+
+    /**
+     * The number of entries in {@link #logKeys} and {@link #logIDs}.
+     */
+    protected int logSize;
+
+    /**
+     * The value for each identifier that has one.
+     */
+    protected long[] keyOf;
+
+    /**
+     * The identifiers that have a value.
+     */
+    protected final BitSet has;
+
+    /**
+     * The highest identifier indexed or -1.
+     */
+    protected long high;
+
+    /**
+     * The value of {@link #high} in the base file.
+     */
+    protected long baseHigh;
+
+    /**
+     * Opens the index called name of fs creating it if it does not exist.
+     *
+     * @param fs The file store.
+     * @param name The name of the index. This cannot contain
+     * {@link Generic_FileStore#SEP} as names containing that in the base
+     * directory are for the directories of the file store.
+     * @param extractor Gives the value to index for an Object, or null if the
+     * Object is not to be indexed.
+     * @throws IOException If encountered.
+     * @throws IllegalArgumentException If name contains
+     * {@link Generic_FileStore#SEP}.
+     */
+    public Generic_FileStoreIndex(Generic_FileStore fs, String name,
+            Function<Object, Long> extractor) throws IOException {
+        if (name.contains(Generic_FileStore.SEP)) {
+            throw new IllegalArgumentException("Index name " + name
+                    + " cannot contain " + Generic_FileStore.SEP + ".");
+        }
+        this.fs = fs;
+        this.name = name;
+        this.extractor = extractor;
+        basePath = Paths.get(fs.getBaseDir().toString(), PREFIX + name);
+        logPath = Paths.get(fs.getBaseDir().toString(), PREFIX + name
+                + LOG_SUFFIX);
+        has = new BitSet();
+        keyOf = new long[16];
+        logKeys = new long[16];
+        logIDs = new long[16];
+        keys = new long[0];
+        ids = new long[0];
+        high = -1L;
+        baseHigh = -1L;
+        if (Files.exists(basePath)) {
+            readBase();
+        }
+        log = FileChannel.open(logPath, CREATE, READ, WRITE);
+        replayLog();
+    }
+
+    /**
+     * @return true if the index has a base file.
+     */
+    public boolean exists() {
+        return Files.exists(basePath);
+    }
+
+    /**
+     * Reads the base file.
+     *
+     * @throws IOException If encountered or if the file is not an index.
+     */
+    protected final void readBase() throws IOException {
+        try (FileChannel c = FileChannel.open(basePath, READ)) {
+            ByteBuffer b = c.map(FileChannel.MapMode.READ_ONLY, 0L, c.size());
+            if (b.remaining() < HEADER_LENGTH || b.getInt() != MAGIC) {
+                throw new IOException("Path " + basePath + " is not an index.");
+            }
+            int v = b.getInt();
+            if (v != VERSION) {
+                throw new IOException("Unsupported index version " + v
+                        + " in " + basePath + ".");
+            }
+            int n = (int) b.getLong();
+            high = b.getLong();
+            baseHigh = high;
+            keys = new long[n];
+            ids = new long[n];
+            b.asLongBuffer().get(keys);
+            b.position(b.position() + n * 8);
+            b.asLongBuffer().get(ids);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            set(ids[i], keys[i]);
+        }
+    }
+
+    /**
+     * Replays the log ignoring any partial entry at the end.
+     *
+     * @throws IOException If encountered.
+     */
+    protected final void replayLog() throws IOException {
+        long n = log.size() / LOG_ENTRY_LENGTH;
+        if (n == 0L) {
+            log.truncate(0L);
+            return;
+        }
+        ByteBuffer b = log.map(FileChannel.MapMode.READ_ONLY, 0L,
+                n * LOG_ENTRY_LENGTH);
+        for (long i = 0L; i < n; i++) {
+            long id = b.getLong();
+            long k = b.getLong();
+            if (b.get() == 1) {
+                set(id, k);
+                addLog(id, k);
+                high = Math.max(high, id);
+            } else {
+                has.clear(toInt(id));
+            }
+        }
+        log.truncate(n * LOG_ENTRY_LENGTH);
+        log.position(n * LOG_ENTRY_LENGTH);
+    }
+
+    /**
+     * @param id The identifier.
+     * @return id as an int.
+     * @throws IllegalArgumentException If id is too big.
+     */
+    protected static int toInt(long id) {
+        if (id < 0L || id >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Identifier " + id
+                    + " cannot be indexed.");
+        }
+        return (int) id;
+    }
+
+    /**
+     * Sets the value of id in memory.
+     *
+     * @param id The identifier.
+     * @param k The value.
+     */
+    protected void set(long id, long k) {
+        int i = toInt(id);
+        if (i >= keyOf.length) {
+            keyOf = Arrays.copyOf(keyOf, Math.max(i + 1, keyOf.length * 2));
+        }
+        keyOf[i] = k;
+        has.set(i);
+    }
+
+    /**
+     * Adds an entry to the log in memory.
+     *
+     * @param id The identifier.
+     * @param k The value.
+     */
+    protected void addLog(long id, long k) {
+        if (logSize == logKeys.length) {
+            logKeys = Arrays.copyOf(logKeys, logSize * 2);
+            logIDs = Arrays.copyOf(logIDs, logSize * 2);
+        }
+        logKeys[logSize] = k;
+        logIDs[logSize] = id;
+        logSize++;
+    }
+
+    /**
+     * @param id The identifier.
+     * @param k The value.
+     * @return true if the current value of id is k.
+     */
+    protected boolean isCurrent(long id, long k) {
+        return id < keyOf.length && has.get((int) id) && keyOf[(int) id] == k;
+    }
+
+    /**
+     * Updates the index for o being added for id.
+     *
+     * @param id The identifier.
+     * @param o The Object.
+     * @throws IOException If encountered.
+     */
+    public synchronized void put(long id, Object o) throws IOException {
+        high = Math.max(high, id);
+        Long k = extractor.apply(o);
+        if (k == null) {
+            remove(id);
+            return;
+        }
+        if (isCurrent(id, k)) {
+            return;
+        }
+        set(id, k);
+        appendLog(id, k, true);
+        addLog(id, k);
+        if (logSize >= MERGE_THRESHOLD) {
+            merge();
+        }
+    }
+
+    /**
+     * Removes id from the index.
+     *
+     * @param id The identifier.
+     * @throws IOException If encountered.
+     */
+    public synchronized void remove(long id) throws IOException {
+        if (id < keyOf.length && has.get((int) id)) {
+            has.clear((int) id);
+            appendLog(id, 0L, false);
+        }
+    }
+
+    /**
+     * Appends an entry to the log file.
+     *
+     * @param id The identifier.
+     * @param k The value.
+     * @param present Whether id has a value.
+     * @throws IOException If encountered.
+     */
+    protected void appendLog(long id, long k, boolean present)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(LOG_ENTRY_LENGTH);
+        b.putLong(id).putLong(k).put((byte) (present ? 1 : 0)).flip();
+        while (b.hasRemaining()) {
+            log.write(b);
+        }
+        if (fs.getDurability() == Generic_FileStore.Durability.FSYNC) {
+            log.force(false);
+        }
+    }
+
+    /**
+     * Writes a new base file with all the current values and empties the
+     * log.
+     *
+     * @throws IOException If encountered.
+     */
+    public synchronized void merge() throws IOException {
+        // Sort the log entries by value and then identifier.
+        Integer[] order = new Integer[logSize];
+        for (int i = 0; i < logSize; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> {
+            int c = Long.compare(logKeys[x], logKeys[y]);
+            return c != 0 ? c : Long.compare(logIDs[x], logIDs[y]);
+        });
+        int n = has.cardinality();
+        long[] nks = new long[n];
+        long[] nids = new long[n];
+        int i = 0;
+        int j = 0;
+        int m = 0;
+        while (i < keys.length || j < logSize) {
+            long k;
+            long id;
+            if (j == logSize || (i < keys.length
+                    && compare(keys[i], ids[i], logKeys[order[j]],
+                            logIDs[order[j]]) <= 0)) {
+                k = keys[i];
+                id = ids[i];
+                i++;
+            } else {
+                k = logKeys[order[j]];
+                id = logIDs[order[j]];
+                j++;
+            }
+            if (isCurrent(id, k) && (m == 0 || nks[m - 1] != k
+                    || nids[m - 1] != id)) {
+                nks[m] = k;
+                nids[m] = id;
+                m++;
+            }
+        }
+        keys = nks;
+        ids = nids;
+        writeBase();
+        logSize = 0;
+        log.truncate(0L);
+        log.position(0L);
+    }
+
+    /**
+     * @param k0 A value.
+     * @param id0 An identifier.
+     * @param k1 Another value.
+     * @param id1 Another identifier.
+     * @return A comparison of (k0, id0) and (k1, id1).
+     */
+    protected static int compare(long k0, long id0, long k1, long id1) {
+        int c = Long.compare(k0, k1);
+        return c != 0 ? c : Long.compare(id0, id1);
+    }
+
+    /**
+     * Writes the base file to a temporary file and moves that into place.
+     *
+     * @throws IOException If encountered.
+     */
+    protected void writeBase() throws IOException {
+        Path tmp = Paths.get(basePath.toString() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(keys.length);
+            dos.writeLong(high);
+            for (long k : keys) {
+                dos.writeLong(k);
+            }
+            for (long id : ids) {
+                dos.writeLong(id);
+            }
+        }
+        Generic_IO.force(tmp);
+        Files.move(tmp, basePath, ATOMIC_MOVE, REPLACE_EXISTING);
+        baseHigh = high;
+    }
+
+    /**
+     * Reindexes every Object in the file store and merges.
+     *
+     * @throws IOException If encountered.
+     */
+    public synchronized void rebuild() throws IOException {
+        has.clear();
+        logSize = 0;
+        keys = new long[0];
+        ids = new long[0];
+        long last = fs.getNextID();
+        high = last;
+        try {
+            for (long id = fs.nextLive(0L); id <= last;
+                    id = fs.nextLive(id + 1L)) {
+                Object o;
+                try {
+                    o = fs.get(id);
+                } catch (NoSuchFileException ex) {
+                    continue;
+                }
+                Long k = extractor.apply(o);
+                if (k != null) {
+                    set(id, k);
+                    addLog(id, k);
+                }
+            }
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        }
+        merge();
+    }
+
+    /**
+     * Indexes the Objects with identifiers from one more than the high water
+     * mark to the highest identifier in the file store.
+     *
+     * @throws IOException If encountered.
+     */
+    public synchronized void catchUp() throws IOException {
+        long last = fs.getNextID();
+        try {
+            for (long id = fs.nextLive(high + 1L); id <= last;
+                    id = fs.nextLive(id + 1L)) {
+                Object o;
+                try {
+                    o = fs.get(id);
+                } catch (NoSuchFileException ex) {
+                    continue;
+                }
+                put(id, o);
+            }
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        }
+        high = Math.max(high, last);
+    }
+
+    /**
+     * @return The highest identifier indexed or -1.
+     */
+    public synchronized long getHigh() {
+        return high;
+    }
+
+    /**
+     * @param k The value.
+     * @return The identifiers with value k in ascending order.
+     */
+    public long[] equal(long k) {
+        return range(k, k);
+    }
+
+    /**
+     * @param a The lowest value.
+     * @param b The highest value.
+     * @return The identifiers with a value from a to b inclusive in ascending
+     * order.
+     */
+    public synchronized long[] range(long a, long b) {
+        if (a > b) {
+            return new long[0];
+        }
+        int lo = lowerBound(keys, a);
+        int hi = upperBound(keys, b);
+        long[] r = new long[hi - lo + logSize];
+        int n = 0;
+        for (int i = lo; i < hi; i++) {
+            if (isCurrent(ids[i], keys[i])) {
+                r[n++] = ids[i];
+            }
+        }
+        for (int i = 0; i < logSize; i++) {
+            long k = logKeys[i];
+            if (k >= a && k <= b && isCurrent(logIDs[i], k)) {
+                r[n++] = logIDs[i];
+            }
+        }
+        Arrays.sort(r, 0, n);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (m == 0 || r[m - 1] != r[i]) {
+                r[m++] = r[i];
+            }
+        }
+        return Arrays.copyOf(r, m);
+    }
+
+    /**
+     * @param a The sorted array.
+     * @param k The value.
+     * @return The index of the first element of a that is not less than k.
+     */
+    protected static int lowerBound(long[] a, long k) {
+        int lo = 0;
+        int hi = a.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < k) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param a The sorted array.
+     * @param k The value.
+     * @return The index of the first element of a that is greater than k.
+     */
+    protected static int upperBound(long[] a, long k) {
+        int lo = 0;
+        int hi = a.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] <= k) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return The number of identifiers indexed.
+     */
+    public synchronized int size() {
+        return has.cardinality();
+    }
+
+    /**
+     * @return The name of the index.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Forces the log to the storage device.
+     *
+     * @throws IOException If encountered.
+     */
+    public synchronized void force() throws IOException {
+        log.force(false);
+    }
+
+    /**
+     * Merges if there is anything in the log or the high water mark has
+     * changed and closes the log.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (log.isOpen()) {
+            if (log.size() > 0L || !exists() || high != baseHigh) {
+                merge();
+            }
+            log.close();
+        }
+    }
+
+    /**
+     * A long that sorts the same way as d, for indexing double values.
+     *
+     * @param d The double.
+     * @return A long that sorts the same way as d.
+     */
+    public static long sortable(double d) {
+        long l = Double.doubleToLongBits(d);
+        return l < 0L ? l ^ Long.MAX_VALUE : l;
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * A key-value layer on top of a {@link Generic_FileStore}. Keys are Strings or
+ * byte arrays. Each key and its value are stored together as an entry in a
+ * leaf of the file store and a memory mapped open addressing hash index maps
+ * a 64 bit hash of the key to the identifier of the leaf. So looking up a key
+ * does not need a map of all the keys in memory and the index persists with
+ * the file store.
+ *
+ * Each entry is stored as a byte array: the length of the key as an int; the
+ * key; the identifier of the codec used to encode the value; and the encoded
+ * value. So entries can be written whatever codec the file store is set to.
+ * The value is encoded with the codec of the file store, or
+ * {@link Generic_Codecs#JAVA} if that is null. Entries in leaves that have
+ * been deleted are treated as absent.
+ *
+ * The index file {@link #INDEX} is in the base directory of the file store. It
+ * starts with a header of {@link #HEADER_LENGTH} bytes (a magic number, a
+ * version, the number of slots and the number of keys) followed by the slots.
+ * Each slot is two longs: the hash of a key, or 0 if the slot is empty; and
+ * the identifier for the key. Slots are probed linearly. As different keys
+ * can have the same hash, the key stored in the entry is compared with the
+ * key looked up. The index is doubled in size when it becomes half full.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreMap implements AutoCloseable {
+
+    /**
+     * The name of the index file.
+     */
+    public static final String INDEX = "hashindex";
+
+    /**
+     * For checking the index is an index.
+     */
+    protected static final int MAGIC = 0x47484931;
+
+    /**
+     * The version of the index format.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * The length of the index header in bytes.
+     */
+    protected static final int HEADER_LENGTH = 32;
+
+    /**
+     * The length of each slot in bytes.
+     */
+    protected static final int SLOT_LENGTH = 16;
+
+    /**
+     * The initial number of slots.
+     */
+    protected static final int INITIAL_SLOTS = 1024;
+
+    /**
+     * The file store.
+     */
+    protected final Generic_FileStore fs;
+
+    /**
+     * The path of the index file.
+     */
+    protected final Path indexPath;
+
+    /**
+     * The channel of the index file.
+     */
+    protected FileChannel channel;
+
+    /**
+     * The memory mapped index.
+     */
+    protected MappedByteBuffer index;
+
+    /**
+     * The number of slots. This is a power of 2.
+     */
+    protected long slots;
+
+    /**
+     * The number of keys.
+     */
+    protected long size;
+
+    /**
+     * The entry read by the last call to {@link #find(byte[], long)} that
+     * found the key looked for, so it need not be read again.
+     */
+    protected byte[] entry;
+
+    /**
+     * Opens the key-value layer for fs creating the index if it does not
+     * exist.
+     *
+     * @param fs The file store.
+     * @throws IOException If encountered or if the index is not valid.
+     */
+    public Generic_FileStoreMap(Generic_FileStore fs) throws IOException {
+        this.fs = fs;
+        indexPath = Paths.get(fs.getBaseDir().toString(), INDEX);
+        if (Files.exists(indexPath)) {
+            channel = FileChannel.open(indexPath, READ, WRITE);
+            ByteBuffer h = ByteBuffer.allocate(HEADER_LENGTH);
+            while (h.hasRemaining() && channel.read(h, h.position()) >= 0) {
+            }
+            h.flip();
+            if (h.remaining() < HEADER_LENGTH || h.getInt() != MAGIC
+                    || h.getInt() != VERSION) {
+                channel.close();
+                throw new IOException("Path " + indexPath
+                        + " is not a valid index.");
+            }
+            slots = h.getLong();
+            size = h.getLong();
+            index = map(channel, slots);
+        } else {
+            channel = create(indexPath, INITIAL_SLOTS);
+            slots = INITIAL_SLOTS;
+            size = 0L;
+            index = map(channel, slots);
+        }
+    }
+
+    /**
+     * Creates an empty index file.
+     *
+     * @param p The path of the file.
+     * @param n The number of slots.
+     * @return A channel for the file.
+     * @throws IOException If encountered.
+     */
+    private static FileChannel create(Path p, long n) throws IOException {
+        FileChannel r = FileChannel.open(p, CREATE, READ, WRITE,
+                TRUNCATE_EXISTING);
+        ByteBuffer h = ByteBuffer.allocate(HEADER_LENGTH);
+        h.putInt(MAGIC);
+        h.putInt(VERSION);
+        h.putLong(n);
+        h.putLong(0L);
+        h.flip();
+        while (h.hasRemaining()) {
+            r.write(h, h.position());
+        }
+        return r;
+    }
+
+    /**
+     * @param fc The channel of an index file.
+     * @param n The number of slots.
+     * @return The mapped index.
+     * @throws IOException If the index would be too big to map.
+     */
+    private static MappedByteBuffer map(FileChannel fc, long n)
+            throws IOException {
+        long length = HEADER_LENGTH + n * SLOT_LENGTH;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Index too big.");
+        }
+        return fc.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    /**
+     * @param key The key.
+     * @return The bytes of key encoded as UTF-8.
+     */
+    protected static byte[] toBytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of key with the bits mixed. This is never 0, as 0
+     * marks an empty slot.
+     *
+     * @param key The key.
+     * @return The hash.
+     */
+    protected static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0L ? 1L : h;
+    }
+
+    /**
+     * @param i The slot.
+     * @return The position in {@link #index} of slot i.
+     */
+    private static int position(long i) {
+        return (int) (HEADER_LENGTH + i * SLOT_LENGTH);
+    }
+
+    /**
+     * Finds the slot for key.
+     *
+     * @param key The key.
+     * @param h The hash of key.
+     * @return The slot holding key, or if key is not in the index then minus
+     * the empty slot where it would go minus 1. If key is found its entry is
+     * kept in {@link #entry}.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    protected long find(byte[] key, long h) throws IOException,
+            ClassNotFoundException {
+        long mask = slots - 1L;
+        long i = h & mask;
+        while (true) {
+            int p = position(i);
+            long h2 = index.getLong(p);
+            if (h2 == 0L) {
+                return -i - 1L;
+            }
+            if (h2 == h) {
+                byte[] e = getEntry(index.getLong(p + 8));
+                if (e != null && Arrays.equals(key, getKey(e))) {
+                    entry = e;
+                    return i;
+                }
+            }
+            i = (i + 1L) & mask;
+        }
+    }
+
+    /**
+     * @param id The identifier of a leaf.
+     * @return The entry stored in the leaf for id or null if id is deleted or
+     * has no entry.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    protected byte[] getEntry(long id) throws IOException,
+            ClassNotFoundException {
+        try {
+            return (byte[]) fs.get(id);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes key and v as an entry.
+     *
+     * @param key The key.
+     * @param v The value.
+     * @return The entry.
+     * @throws IOException If v cannot be encoded.
+     */
+    protected byte[] toEntry(byte[] key, Object v) throws IOException {
+        Generic_Codec<Object> c = fs.getCodec();
+        if (c == null) {
+            c = Generic_Codecs.JAVA;
+        }
+        ByteBuffer b = ByteBuffer.allocate(key.length + 64);
+        b.putInt(key.length).put(key).put(c.getID());
+        b = c.write(v, b);
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    /**
+     * @param e An entry.
+     * @return The key of e.
+     */
+    protected static byte[] getKey(byte[] e) {
+        int n = ByteBuffer.wrap(e).getInt();
+        return Arrays.copyOfRange(e, 4, 4 + n);
+    }
+
+    /**
+     * @param e An entry.
+     * @return The value of e.
+     * @throws IOException If the value cannot be decoded.
+     * @throws ClassNotFoundException If the value cannot be decoded.
+     */
+    protected static Object getValue(byte[] e) throws IOException,
+            ClassNotFoundException {
+        ByteBuffer b = ByteBuffer.wrap(e);
+        b.position(4 + b.getInt());
+        byte id = b.get();
+        Generic_Codec<?> c = Generic_Codecs.get(id);
+        if (c == null) {
+            throw new IOException("Unknown codec " + id + ".");
+        }
+        return c.read(b);
+    }
+
+    /**
+     * Associates v with key.
+     *
+     * @param key The key.
+     * @param v The value.
+     * @return The identifier of the leaf storing key and v.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    public long put(String key, Object v) throws IOException,
+            ClassNotFoundException {
+        return put(toBytes(key), v);
+    }
+
+    /**
+     * Associates v with key.
+     *
+     * @param key The key.
+     * @param v The value.
+     * @return The identifier of the leaf storing key and v.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    public synchronized long put(byte[] key, Object v) throws IOException,
+            ClassNotFoundException {
+        long h = hash(key);
+        long i = find(key, h);
+        byte[] e = toEntry(key, v);
+        if (i >= 0L) {
+            long id = index.getLong(position(i) + 8);
+            fs.add(id, e);
+            return id;
+        }
+        long id = nextFreeLeaf();
+        fs.add(id, e);
+        int p = position(-i - 1L);
+        index.putLong(p + 8, id);
+        index.putLong(p, h);
+        size++;
+        index.putLong(16, size);
+        if (size * 2L > slots) {
+            resize(slots * 2L);
+        }
+        return id;
+    }
+
+    /**
+     * @return The identifier of an empty leaf, adding a directory to the file
+     * store unless the highest leaf is empty.
+     * @throws IOException If encountered.
+     */
+    protected long nextFreeLeaf() throws IOException {
+        if (Files.exists(Paths.get(fs.getHighestLeaf().toString(), fs.name))) {
+            fs.addDir();
+        }
+        return fs.getNextID();
+    }
+
+    /**
+     * Rebuilds the index with n slots.
+     *
+     * @param n The number of slots.
+     * @throws IOException If encountered.
+     */
+    protected void resize(long n) throws IOException {
+        Path tmp = Paths.get(indexPath.toString() + ".tmp");
+        FileChannel fc = create(tmp, n);
+        MappedByteBuffer m = map(fc, n);
+        long mask = n - 1L;
+        for (long i = 0; i < slots; i++) {
+            int p = position(i);
+            long h = index.getLong(p);
+            if (h != 0L) {
+                long j = h & mask;
+                while (m.getLong(position(j)) != 0L) {
+                    j = (j + 1L) & mask;
+                }
+                m.putLong(position(j), h);
+                m.putLong(position(j) + 8, index.getLong(p + 8));
+            }
+        }
+        m.putLong(16, size);
+        m.force();
+        index.force();
+        channel.close();
+        try {
+            Files.move(tmp, indexPath, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, indexPath, REPLACE_EXISTING);
+        }
+        channel = fc;
+        index = m;
+        slots = n;
+    }
+
+    /**
+     * @param key The key.
+     * @return The value associated with key or null if there is none.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    public Object get(String key) throws IOException, ClassNotFoundException {
+        return get(toBytes(key));
+    }
+
+    /**
+     * @param key The key.
+     * @return The value associated with key or null if there is none.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    public synchronized Object get(byte[] key) throws IOException,
+            ClassNotFoundException {
+        long i = find(key, hash(key));
+        if (i < 0L) {
+            return null;
+        }
+        byte[] e = entry;
+        entry = null;
+        return getValue(e);
+    }
+
+    /**
+     * @param key The key.
+     * @return true if there is a value associated with key.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    public boolean contains(String key) throws IOException,
+            ClassNotFoundException {
+        return contains(toBytes(key));
+    }
+
+    /**
+     * @param key The key.
+     * @return true if there is a value associated with key.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    public synchronized boolean contains(byte[] key) throws IOException,
+            ClassNotFoundException {
+        return find(key, hash(key)) >= 0L;
+    }
+
+    /**
+     * @param key The key.
+     * @return The identifier of the leaf storing key or -1 if there is none.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If an entry cannot be deserialized.
+     */
+    public synchronized long getID(String key) throws IOException,
+            ClassNotFoundException {
+        byte[] k = toBytes(key);
+        long i = find(k, hash(k));
+        return i < 0L ? -1L : index.getLong(position(i) + 8);
+    }
+
+    /**
+     * @return The number of keys.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Forces the index to the storage device.
+     */
+    public synchronized void force() {
+        index.force();
+    }
+
+    /**
+     * Forces and closes the index.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        index.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An iterator over the Objects in a {@link Generic_FileStore} in ascending
+ * identifier order that reads ahead. Reads for the next identifiers are
+ * issued to a pool of background threads so that several are in flight at
+ * once and the Objects are handed back in order. Deleted identifiers and leaf
+ * directories without a file are skipped.
+ *
+ * The number of reads in flight, the window, adapts between 1 and
+ * {@link #maxDepth}. By Little's law the window needed to keep up is the time
+ * a read takes divided by the time the caller takes between calls to
+ * {@link #next()}, so the window is set to one more than this using moving
+ * averages of both times. A slow reader with a fast disk keeps a small window
+ * and so holds few Objects in memory, and a fast reader with a slow disk gets
+ * the whole window.
+ *
+ * The iterator should be closed if it is not iterated to the end. If it is
+ * not, the reader threads still stop once they have been idle for
+ * {@link #KEEP_ALIVE} seconds.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStorePrefetcher implements Iterator<Object>,
+        AutoCloseable {
+
+    /**
+     * The weight given to each new time in the moving averages.
+     */
+    protected static final double ALPHA = 0.25d;
+
+    /**
+     * How long in seconds a reader thread waits idle before it stops.
+     */
+    protected static final long KEEP_ALIVE = 1L;
+
+    /**
+     * Read in place of an Object when there is no file.
+     */
+    protected static final Object MISSING = new Object();
+
+    /**
+     * An Object read and how long it took to read.
+     */
+    protected static class Entry {
+
+        /**
+         * The Object or {@link Generic_FileStorePrefetcher#MISSING} if there
+         * was no file.
+         */
+        final Object o;
+
+        /**
+         * The time taken to read in nanoseconds.
+         */
+        final long nanos;
+
+        Entry(Object o, long nanos) {
+            this.o = o;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * The file store.
+     */
+    protected final Generic_FileStore fs;
+
+    /**
+     * The last identifier.
+     */
+    protected final long last;
+
+    /**
+     * The maximum window.
+     */
+    protected final int maxDepth;
+
+    /**
+     * The reader threads.
+     */
+    protected final ExecutorService executor;
+
+    /**
+     * The reads in flight in identifier order.
+     */
+    protected final ArrayDeque<CompletableFuture<Entry>> window;
+
+    /**
+     * The next identifier to issue a read for.
+     */
+    protected long submitID;
+
+    /**
+     * The current window.
+     */
+    protected int depth;
+
+    /**
+     * The moving average time taken to read in nanoseconds.
+     */
+    protected double latency;
+
+    /**
+     * The moving average time taken by the caller between calls to
+     * {@link #next()} in nanoseconds.
+     */
+    protected double interval;
+
+    /**
+     * When {@link #next()} last returned or 0.
+     */
+    protected long lastReturn;
+
+    /**
+     * The next Object to return if {@link #ready}.
+     */
+    protected Object next;
+
+    /**
+     * Set true when {@link #next} has been read and not yet returned.
+     */
+    protected boolean ready;
+
+    /**
+     * Set true once closed.
+     */
+    protected boolean closed;
+
+    /**
+     * @param fs The file store.
+     * @param first The first identifier.
+     * @param last The last identifier.
+     * @param maxDepth The maximum number of reads in flight which is also the
+     * number of reader threads.
+     */
+    public Generic_FileStorePrefetcher(Generic_FileStore fs, long first,
+            long last, int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth cannot be < 1.");
+        }
+        this.fs = fs;
+        this.last = last;
+        this.maxDepth = maxDepth;
+        submitID = first;
+        depth = maxDepth;
+        window = new ArrayDeque<>(maxDepth);
+        ThreadPoolExecutor e = new ThreadPoolExecutor(maxDepth, maxDepth,
+                KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, getClass().getSimpleName());
+                    t.setDaemon(true);
+                    return t;
+                });
+        e.allowCoreThreadTimeOut(true);
+        executor = e;
+    }
+
+    /**
+     * Issues reads until there are {@link #depth} in flight or there are no
+     * more identifiers.
+     *
+     * @throws IOException If encountered.
+     */
+    protected void fill() throws IOException {
+        while (window.size() < depth && submitID <= last) {
+            long id = fs.nextLive(submitID);
+            if (id > last) {
+                submitID = last + 1L;
+                return;
+            }
+            submitID = id + 1L;
+            window.add(CompletableFuture.supplyAsync(() -> read(id),
+                    executor));
+        }
+    }
+
+    /**
+     * @param id The identifier.
+     * @return The Object for id and how long it took to read.
+     */
+    protected Entry read(long id) {
+        long t = System.nanoTime();
+        try {
+            Object o;
+            try {
+                o = fs.get(id);
+            } catch (NoSuchFileException ex) {
+                o = MISSING;
+            }
+            return new Entry(o, System.nanoTime() - t);
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new CompletionException(new IOException(ex));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready) {
+            return true;
+        }
+        while (!closed) {
+            CompletableFuture<Entry> f;
+            try {
+                fill();
+                f = window.poll();
+                if (f == null) {
+                    close();
+                    return false;
+                }
+                Entry e = f.join();
+                latency = latency == 0d ? e.nanos
+                        : latency + ALPHA * (e.nanos - latency);
+                if (e.o != MISSING) {
+                    next = e.o;
+                    ready = true;
+                    return true;
+                }
+            } catch (IOException ex) {
+                close();
+                throw new UncheckedIOException(ex);
+            } catch (CompletionException ex) {
+                close();
+                Throwable c = ex.getCause();
+                if (c instanceof IOException) {
+                    throw new UncheckedIOException((IOException) c);
+                }
+                throw ex;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Object next() {
+        long t = System.nanoTime();
+        if (lastReturn != 0L) {
+            long d = t - lastReturn;
+            interval = interval == 0d ? d : interval + ALPHA * (d - interval);
+            adapt();
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object r = next;
+        next = null;
+        ready = false;
+        lastReturn = System.nanoTime();
+        return r;
+    }
+
+    /**
+     * Sets {@link #depth} from {@link #latency} and {@link #interval}.
+     */
+    protected void adapt() {
+        double w = Math.ceil(latency / Math.max(interval, 1d)) + 1d;
+        depth = (int) Math.max(1d, Math.min(maxDepth, w));
+    }
+
+    /**
+     * @return The current window.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return The moving average time taken to read in nanoseconds.
+     */
+    public long getLatency() {
+        return (long) latency;
+    }
+
+    /**
+     * Cancels any reads in flight and stops the reader threads.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (CompletableFuture<Entry> f : window) {
+            f.cancel(false);
+        }
+        window.clear();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * For encoding and decoding the records stored by a {@link Generic_FileStore}.
+ * A record is a header followed by a payload. The header is
+ * {@link #HEADER_LENGTH} bytes:
+ * <ul>
+ * <li>2 bytes {@link #MAGIC0} and {@link #MAGIC1};</li>
+ * <li>1 byte, the identifier of the {@link Generic_Codec} that encoded the
+ * payload;</li>
+ * <li>1 byte, the identifier of the {@link Generic_Compressor} that
+ * compressed the payload or 0 if the payload is not compressed;</li>
+ * <li>4 bytes, the length of the payload;</li>
+ * <li>4 bytes, the CRC32 checksum of the payload.</li>
+ * </ul>
+ * Records written by
+ * {@link Generic_IO#writeObject(java.lang.Object, java.nio.file.Path)} have
+ * no header and are recognised by the Java serialization stream magic number,
+ * so stores written with a mix of these and codecs remain readable.
+ *
+ * Records are written to a temporary file next to where they belong which is
+ * then moved into place atomically, so a reader sees either the old file or
+ * the new one and never a partially written one.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreRecord {
+
+    /**
+     * The first byte of a record header.
+     */
+    public static final byte MAGIC0 = 'G';
+
+    /**
+     * The second byte of a record header.
+     */
+    public static final byte MAGIC1 = 'R';
+
+    /**
+     * The length of a record header in bytes.
+     */
+    public static final int HEADER_LENGTH = 12;
+
+    /**
+     * The suffix of the temporary file a record is written to before being
+     * moved into place.
+     */
+    public static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * A buffer for each thread for encoding records.
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER
+            = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    /**
+     * A buffer for each thread for compressing records.
+     */
+    private static final ThreadLocal<ByteBuffer> ZBUFFER
+            = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    private Generic_FileStoreRecord() {
+    }
+
+    /**
+     * Encodes {@code o} using {@code c} into a record.
+     *
+     * @param o The Object to encode.
+     * @param c The codec to encode with.
+     * @return A buffer containing the record from its position to its limit.
+     * The buffer is reused by subsequent calls in the same thread, so it
+     * should be written out or copied before encoding again.
+     * @throws IOException If encountered.
+     */
+    public static ByteBuffer encode(Object o, Generic_Codec<Object> c)
+            throws IOException {
+        return encode(o, c, null);
+    }
+
+    /**
+     * Encodes {@code o} using {@code c} and compresses the payload using
+     * {@code z} into a record. The payload of a compressed record is the
+     * length of the uncompressed payload as an int followed by the compressed
+     * bytes.
+     *
+     * @param o The Object to encode.
+     * @param c The codec to encode with.
+     * @param z The compressor to compress with. If null then the payload is
+     * not compressed.
+     * @return A buffer containing the record from its position to its limit.
+     * The buffer is reused by subsequent calls in the same thread, so it
+     * should be written out or copied before encoding again.
+     * @throws IOException If encountered.
+     */
+    public static ByteBuffer encode(Object o, Generic_Codec<Object> c,
+            Generic_Compressor z) throws IOException {
+        ByteBuffer b = BUFFER.get();
+        b.clear();
+        b.position(HEADER_LENGTH);
+        ByteBuffer b2 = c.write(o, b);
+        if (b2 != b) {
+            BUFFER.set(b2);
+            b = b2;
+        }
+        int length = b.position() - HEADER_LENGTH;
+        byte zid = 0;
+        if (z != null) {
+            ByteBuffer zb = ZBUFFER.get();
+            zb.clear();
+            zb.position(HEADER_LENGTH);
+            zb.putInt(length);
+            ByteBuffer zb2 = z.compress(b.array(), b.arrayOffset()
+                    + HEADER_LENGTH, length, zb);
+            if (zb2 != zb) {
+                ZBUFFER.set(zb2);
+            }
+            b = zb2;
+            length = b.position() - HEADER_LENGTH;
+            zid = z.getID();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), b.arrayOffset() + HEADER_LENGTH, length);
+        b.put(0, MAGIC0);
+        b.put(1, MAGIC1);
+        b.put(2, c.getID());
+        b.put(3, zid);
+        b.putInt(4, length);
+        b.putInt(8, (int) crc.getValue());
+        b.flip();
+        return b;
+    }
+
+    /**
+     * @param b A buffer containing a record from its position.
+     * @return The length of the payload of the record before it was
+     * compressed.
+     */
+    public static int getRawLength(ByteBuffer b) {
+        int p = b.position();
+        if (b.get(p + 3) == 0) {
+            return b.getInt(p + 4);
+        }
+        return b.getInt(p + HEADER_LENGTH);
+    }
+
+    /**
+     * Wraps an already encoded payload in a record.
+     *
+     * @param id The identifier of the codec that encoded the payload.
+     * @param payload The payload.
+     * @return A new buffer containing the record from its position to its
+     * limit.
+     */
+    public static ByteBuffer wrap(byte id, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        b.put(MAGIC0);
+        b.put(MAGIC1);
+        b.put(id);
+        b.put((byte) 0);
+        b.putInt(payload.length);
+        b.putInt((int) crc.getValue());
+        b.put(payload);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Decodes a record.
+     *
+     * @param b A buffer containing the record from its position.
+     * @return The decoded Object.
+     * @throws IOException If the record is truncated or corrupt or if the
+     * codec that encoded it is not registered.
+     * @throws ClassNotFoundException If the class of the Object cannot be
+     * found.
+     */
+    public static Object decode(ByteBuffer b) throws IOException,
+            ClassNotFoundException {
+        int p = b.position();
+        if (b.remaining() >= 2 && b.get(p) == MAGIC0 && b.get(p + 1) == MAGIC1) {
+            if (b.remaining() < HEADER_LENGTH) {
+                throw new IOException("Truncated record header.");
+            }
+            byte id = b.get(p + 2);
+            int length = b.getInt(p + 4);
+            int crc = b.getInt(p + 8);
+            if (length < 0 || length > b.remaining() - HEADER_LENGTH) {
+                throw new IOException("Truncated record.");
+            }
+            ByteBuffer payload = b.duplicate();
+            payload.position(p + HEADER_LENGTH);
+            payload.limit(p + HEADER_LENGTH + length);
+            payload = payload.slice();
+            CRC32 c = new CRC32();
+            c.update(payload.duplicate());
+            if ((int) c.getValue() != crc) {
+                throw new IOException("Record checksum mismatch.");
+            }
+            Generic_Codec<?> codec = Generic_Codecs.get(id);
+            if (codec == null) {
+                throw new IOException("No codec registered with identifier "
+                        + id + ".");
+            }
+            byte zid = b.get(p + 3);
+            if (zid != 0) {
+                Generic_Compressor z = Generic_Compressors.get(zid);
+                if (z == null) {
+                    throw new IOException("No compressor registered with "
+                            + "identifier " + zid + ".");
+                }
+                if (length < 4) {
+                    throw new IOException("Truncated record.");
+                }
+                int raw = payload.getInt();
+                if (raw < 0) {
+                    throw new IOException("Corrupt record.");
+                }
+                byte[] a = new byte[raw];
+                z.decompress(payload, a);
+                payload = ByteBuffer.wrap(a);
+            }
+            b.position(p + HEADER_LENGTH + length);
+            return codec.read(payload);
+        } else {
+            return Generic_Codecs.JAVA.read(b);
+        }
+    }
+
+    /**
+     * Encodes {@code o} using {@code c} and writes the record to a file at
+     * {@code p} replacing any existing file.
+     *
+     * @param p The path of the file to write.
+     * @param o The Object to encode.
+     * @param c The codec to encode with.
+     * @throws IOException If encountered.
+     */
+    public static void write(Path p, Object o, Generic_Codec<Object> c)
+            throws IOException {
+        write(p, encode(o, c));
+    }
+
+    /**
+     * Writes a record to a file at {@code p} atomically replacing any existing
+     * file.
+     *
+     * @param p The path of the file to write.
+     * @param b A buffer containing the record from its position to its limit.
+     * @throws IOException If encountered.
+     */
+    public static void write(Path p, ByteBuffer b) throws IOException {
+        write(p, b, false);
+    }
+
+    /**
+     * Writes a record to a temporary file (see {@link #getTmpPath(Path)})
+     * which is then moved to {@code p} atomically replacing any existing file.
+     *
+     * @param p The path of the file to write.
+     * @param b A buffer containing the record from its position to its limit.
+     * @param force If true then the temporary file is forced to the storage
+     * device before it is moved.
+     * @throws IOException If encountered.
+     */
+    public static void write(Path p, ByteBuffer b, boolean force)
+            throws IOException {
+        Path t = getTmpPath(p);
+        try {
+            try (FileChannel fc = FileChannel.open(t, CREATE, WRITE,
+                    TRUNCATE_EXISTING)) {
+                while (b.hasRemaining()) {
+                    fc.write(b);
+                }
+                if (force) {
+                    fc.force(false);
+                }
+            }
+            move(t, p);
+        } catch (IOException ex) {
+            Files.deleteIfExists(t);
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes {@code o} using Java serialization as
+     * {@link Generic_IO#writeObject(java.lang.Object, java.nio.file.Path)}
+     * does, but to a temporary file (see {@link #getTmpPath(Path)}) which is
+     * then moved to {@code p} atomically replacing any existing file.
+     *
+     * @param p The path of the file to write.
+     * @param o The Object to write.
+     * @param force If true then the temporary file is forced to the storage
+     * device before it is moved.
+     * @throws IOException If encountered.
+     */
+    public static void writeObject(Path p, Object o, boolean force)
+            throws IOException {
+        Path t = getTmpPath(p);
+        try {
+            try (FileChannel fc = FileChannel.open(t, CREATE, WRITE,
+                    TRUNCATE_EXISTING)) {
+                ObjectOutputStream oos = new ObjectOutputStream(
+                        Channels.newOutputStream(fc));
+                oos.writeUnshared(o);
+                oos.flush();
+                oos.reset();
+                if (force) {
+                    fc.force(false);
+                }
+            }
+            move(t, p);
+        } catch (IOException ex) {
+            Files.deleteIfExists(t);
+            throw ex;
+        }
+    }
+
+    /**
+     * @param p The path of a file.
+     * @return The path of the temporary file that the current thread writes
+     * to before moving it to {@code p}. This is in the same directory as
+     * {@code p} and is named after it, the thread and {@link #TMP_SUFFIX}.
+     */
+    public static Path getTmpPath(Path p) {
+        return p.resolveSibling(p.getFileName().toString() + "."
+                + Thread.currentThread().getId() + TMP_SUFFIX);
+    }
+
+    /**
+     * Moves the temporary file {@code t} to {@code p} atomically if the file
+     * system supports that.
+     *
+     * @param t The path of the temporary file.
+     * @param p The path to move to.
+     * @throws IOException If encountered.
+     */
+    protected static void move(Path t, Path p) throws IOException {
+        try {
+            Files.move(t, p, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(t, p, REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes any temporary files left in the directory {@code dir} by writes
+     * of files called {@code name} that did not finish.
+     *
+     * @param dir The directory.
+     * @param name The name of the file written.
+     * @return The number of temporary files deleted.
+     * @throws IOException If encountered.
+     */
+    public static int deleteTmp(Path dir, String name) throws IOException {
+        int r = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir,
+                p -> {
+                    String fn = p.getFileName().toString();
+                    return fn.startsWith(name + ".")
+                            && fn.endsWith(TMP_SUFFIX);
+                })) {
+            for (Path p : ds) {
+                Files.delete(p);
+                r++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Checks if the file at {@code p} holds a complete record or starts with a
+     * Java serialization stream header. Files are written to a temporary file
+     * and moved into place, so a file can only be incomplete after a crash if
+     * its content was not made durable, in which case it is usually empty or
+     * shorter than its record header says. Java serialized Objects are not
+     * read, as that would run their readObject methods; {@link #isValid(Path)}
+     * reads them.
+     *
+     * @param p The path of the file to check.
+     * @return true if the file is complete.
+     * @throws IOException If encountered reading the file.
+     */
+    public static boolean isComplete(Path p) throws IOException {
+        try (FileChannel fc = FileChannel.open(p, READ)) {
+            long size = fc.size();
+            if (size == 0L) {
+                return false;
+            }
+            ByteBuffer b = ByteBuffer.allocate(HEADER_LENGTH);
+            while (b.hasRemaining() && fc.read(b) >= 0) {
+            }
+            b.flip();
+            if (b.remaining() >= 2 && b.get(0) == MAGIC0
+                    && b.get(1) == MAGIC1) {
+                /**
+                 * The header is written first, so a partially written record
+                 * is shorter than the header says it should be. The checksum
+                 * is checked when the record is read.
+                 */
+                return b.remaining() == HEADER_LENGTH
+                        && size == HEADER_LENGTH + (long) b.getInt(4);
+            }
+            return b.remaining() >= 4
+                    && b.getShort(0) == ObjectStreamConstants.STREAM_MAGIC
+                    && b.getShort(2) == ObjectStreamConstants.STREAM_VERSION;
+        }
+    }
+
+    /**
+     * Checks the file at {@code p} holds a record with a payload that matches
+     * its checksum, or a Java serialized Object that can be read.
+     *
+     * @param p The path of the file to check.
+     * @return true if the file is valid.
+     * @throws IOException If encountered reading the file.
+     */
+    public static boolean isValid(Path p) throws IOException {
+        byte[] b = Files.readAllBytes(p);
+        if (b.length >= 2 && b[0] == MAGIC0 && b[1] == MAGIC1) {
+            if (b.length < HEADER_LENGTH) {
+                return false;
+            }
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            int length = bb.getInt(4);
+            if (length < 0 || length != b.length - HEADER_LENGTH) {
+                return false;
+            }
+            CRC32 c = new CRC32();
+            c.update(b, HEADER_LENGTH, length);
+            return (int) c.getValue() == bb.getInt(8);
+        }
+        try {
+            Generic_Codecs.JAVA.read(ByteBuffer.wrap(b));
+        } catch (ClassNotFoundException ex) {
+            // The stream is complete enough to name a class.
+        } catch (IOException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads and decodes a record from a file at {@code p}.
+     *
+     * @param p The path of the file to read.
+     * @return The decoded Object.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If the class of the Object cannot be
+     * found.
+     */
+    public static Object read(Path p) throws IOException,
+            ClassNotFoundException {
+        return decode(ByteBuffer.wrap(Files.readAllBytes(p)));
+    }
+}
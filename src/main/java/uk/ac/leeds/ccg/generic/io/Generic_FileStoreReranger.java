@@ -0,0 +1,347 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+
+/**
+ * For rebuilding an existing {@link Generic_FileStore} with a different range.
+ * A new file store is created with the new range and the file in each leaf of
+ * the existing file store is hard linked or moved into the same identifier of
+ * the new file store, so no file content is copied. Identifiers are processed
+ * in chunks of {@link #CHUNK} in parallel.
+ *
+ * Progress is recorded in the {@link #PROGRESS} file in the base directory of
+ * the new file store as the highest identifier below which everything is
+ * done. The progress file is written before the new file store is created.
+ * If the rebuild is interrupted then running it again with the same arguments
+ * carries on from there, creating the new file store if it was not created.
+ * The progress file is deleted when the rebuild is finished.
+ *
+ * With {@link Mode#LINK} the existing file store is left as it was and can
+ * still be read from and added to while the rebuild is going on. Identifiers
+ * added during the rebuild are picked up at the end, but Objects overwritten
+ * in place may not be, so writers should be stopped before the end.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreReranger {
+
+    /**
+     * The name of the progress file.
+     */
+    public static final String PROGRESS = "rerange";
+
+    /**
+     * The number of identifiers in each chunk.
+     */
+    protected static final long CHUNK = 4096L;
+
+    /**
+     * How leaf files get into the new file store.
+     */
+    public enum Mode {
+
+        /**
+         * Hard link each file so it is in both file stores. The file stores
+         * must be on the same file system.
+         */
+        LINK,
+        /**
+         * Move each file. This leaves the existing file store with empty
+         * leaves.
+         */
+        MOVE
+    }
+
+    /**
+     * The existing file store.
+     */
+    protected final Generic_FileStore source;
+
+    /**
+     * The base directory of the new file store.
+     */
+    protected final Path target;
+
+    /**
+     * The range of the new file store.
+     */
+    protected final short range;
+
+    /**
+     * How leaf files get into the new file store.
+     */
+    protected final Mode mode;
+
+    /**
+     * Called with the number of identifiers done each time a chunk is done.
+     * May be null.
+     */
+    protected final LongConsumer listener;
+
+    /**
+     * The number of identifiers done.
+     */
+    protected final LongAdder done;
+
+    /**
+     * The number of identifiers to do.
+     */
+    protected volatile long total;
+
+    /**
+     * @param source The existing file store.
+     * @param target The base directory of the new file store.
+     * @param range The range of the new file store.
+     * @param mode How leaf files get into the new file store.
+     * @param listener Called with the number of identifiers done each time a
+     * chunk is done. May be null.
+     */
+    public Generic_FileStoreReranger(Generic_FileStore source, Path target,
+            short range, Mode mode, LongConsumer listener) {
+        this.source = source;
+        this.target = target;
+        this.range = range;
+        this.mode = mode;
+        this.listener = listener;
+        done = new LongAdder();
+    }
+
+    /**
+     * @return The number of identifiers done.
+     */
+    public long getDone() {
+        return done.sum();
+    }
+
+    /**
+     * @return The number of identifiers to do.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return The path of the progress file.
+     */
+    public Path getProgressPath() {
+        return Paths.get(target.toString(), PROGRESS);
+    }
+
+    /**
+     * Rebuilds the file store or carries on rebuilding it.
+     *
+     * @return The new file store.
+     * @throws IOException If encountered.
+     * @throws Exception If target exists and is not an unfinished rebuild of
+     * source with the same range and mode.
+     */
+    public Generic_FileStore run() throws IOException, Exception {
+        Path pp = getProgressPath();
+        Generic_FileStore t;
+        long from;
+        if (Files.exists(pp)) {
+            Properties p = new Properties();
+            try (Reader r = Files.newBufferedReader(pp)) {
+                p.load(r);
+            }
+            if (!source.getBaseDir().toString().equals(p.getProperty("source"))
+                    || !Short.toString(range).equals(p.getProperty("range"))
+                    || !mode.name().equals(p.getProperty("mode"))) {
+                throw new Exception("Progress file " + pp + " is for a "
+                        + "different rebuild.");
+            }
+            from = Long.parseLong(p.getProperty("done")) + 1L;
+            if (Generic_FileStore.getRootCandidates(target).isEmpty()) {
+                t = create();
+            } else {
+                t = new Generic_FileStore(target);
+            }
+        } else {
+            if (Files.exists(target)) {
+                throw new Exception("Path " + target + " already exists.");
+            }
+            Files.createDirectories(target);
+            writeProgress(-1L);
+            t = create();
+            from = 0L;
+        }
+        done.reset();
+        done.add(from);
+        long last;
+        do {
+            last = source.getNextID();
+            total = last + 1L;
+            if (t.getNextID() < last) {
+                t.addDirs(last - t.getNextID(), true);
+            }
+            relayout(t, from, last);
+            from = last + 1L;
+        } while (source.getNextID() != last);
+        copySidecars(t);
+        Files.delete(pp);
+        return t;
+    }
+
+    /**
+     * @return A new file store at {@link #target} with {@link #range}.
+     * @throws IOException If encountered.
+     * @throws Exception If encountered.
+     */
+    protected Generic_FileStore create() throws IOException, Exception {
+        return new Generic_FileStore(target.getParent(),
+                target.getFileName().toString(), range);
+    }
+
+    /**
+     * Relayouts the identifiers from {@code from} to {@code last} in chunks
+     * in parallel recording progress as the chunks are done.
+     *
+     * @param t The new file store.
+     * @param from The first identifier.
+     * @param last The last identifier.
+     * @throws IOException If encountered.
+     */
+    protected void relayout(Generic_FileStore t, long from, long last)
+            throws IOException {
+        if (from > last) {
+            return;
+        }
+        long n = (last - from) / CHUNK + 1L;
+        BitSet completed = new BitSet();
+        int[] next = new int[1];
+        try {
+            LongStream.range(0L, n).parallel().forEach(k -> {
+                long l = from + k * CHUNK;
+                long u = Math.min(l + CHUNK - 1L, last);
+                try {
+                    for (long id = l; id <= u; id++) {
+                        relayout(t, id);
+                    }
+                    done.add(u - l + 1L);
+                    synchronized (completed) {
+                        completed.set((int) k);
+                        int j = next[0];
+                        while (completed.get(j)) {
+                            j++;
+                        }
+                        if (j != next[0]) {
+                            next[0] = j;
+                            writeProgress(Math.min(from + j * CHUNK - 1L,
+                                    last));
+                        }
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                if (listener != null) {
+                    listener.accept(done.sum());
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Links or moves the file for id into the new file store. This does
+     * nothing if it has already been done, so it is safe to repeat.
+     *
+     * @param t The new file store.
+     * @param id The identifier.
+     * @throws IOException If encountered.
+     */
+    protected void relayout(Generic_FileStore t, long id) throws IOException {
+        if (source.isDeleted(id)) {
+            t.delete(id);
+            return;
+        }
+        Path s = Paths.get(source.getParentString(id), Long.toString(id),
+                source.name);
+        Path d = Paths.get(t.getParentString(id), Long.toString(id), t.name);
+        try {
+            if (mode == Mode.LINK) {
+                Files.createLink(d, s);
+            } else {
+                Files.move(s, d, ATOMIC_MOVE);
+            }
+        } catch (NoSuchFileException | FileAlreadyExistsException ex) {
+            // There is no file for id or it has already been done.
+        }
+    }
+
+    /**
+     * Copies the files in the base directory of the existing file store that
+     * are not specific to its layout, such as the files of
+     * {@link Generic_FileStoreMap} and {@link Generic_FileStoreIndex}. These
+     * are still valid as identifiers do not change.
+     *
+     * @param t The new file store.
+     * @throws IOException If encountered.
+     */
+    protected void copySidecars(Generic_FileStore t) throws IOException {
+        for (Path p : Generic_IO.getList(source.getBaseDir().getPath())) {
+            String fn = p.getFileName().toString();
+            if (!Files.isRegularFile(p)
+                    || fn.equals(Generic_FileStore.MANIFEST)
+                    || fn.equals(Generic_FileStoreTombstones.FILENAME)
+                    || fn.equals(Generic_FileStoreVerifier.CHECKPOINT)
+                    || fn.equals(PROGRESS)) {
+                continue;
+            }
+            Files.copy(p, Paths.get(t.getBaseDir().toString(), fn),
+                    REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the progress file.
+     *
+     * @param d The highest identifier below which everything is done.
+     * @throws IOException If encountered.
+     */
+    protected void writeProgress(long d) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("source", source.getBaseDir().toString());
+        p.setProperty("range", Short.toString(range));
+        p.setProperty("mode", mode.name());
+        p.setProperty("done", Long.toString(d));
+        Path pp = getProgressPath();
+        Path tmp = Paths.get(pp.toString() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp)) {
+            p.store(w, getClass().getSimpleName());
+        }
+        Files.move(tmp, pp, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * A facade over a number of {@link Generic_FileStoreConcurrent} shards, each
+ * of which can be on a different disk, that stripes identifiers across the
+ * shards. An existing file store can join as shard 0, in which case the
+ * identifiers it already has ({@link #base} and below) stay in it as they are.
+ * After that the identifiers are routed round robin: identifier {@code id}
+ * goes to shard {@code (id - base - 1) % n}.
+ *
+ * The shards and {@link #base} are recorded in a configuration file so the
+ * sharded file store can be reopened. {@link #sync()} should be called when
+ * adding is finished to bring the shards and the configuration file up to
+ * date. On reopening, the highest reserved identifier is worked out from the
+ * shards, so it is right even if the configuration file is out of date.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreSharded {
+
+    /**
+     * The shards.
+     */
+    protected final Generic_FileStoreConcurrent[] shards;
+
+    /**
+     * The highest identifier of shard 0 when it joined, or -1 if it was a new
+     * file store.
+     */
+    protected final long base;
+
+    /**
+     * The highest reserved identifier.
+     */
+    protected final AtomicLong counter;
+
+    /**
+     * The configuration file.
+     */
+    protected final Path config;
+
+    /**
+     * @param config The configuration file.
+     * @param shards The shards.
+     * @param base The highest identifier of shard 0 when it joined.
+     * @param last The highest reserved identifier.
+     */
+    protected Generic_FileStoreSharded(Path config,
+            Generic_FileStoreConcurrent[] shards, long base, long last) {
+        this.config = config;
+        this.shards = shards;
+        this.base = base;
+        this.counter = new AtomicLong(last);
+    }
+
+    /**
+     * Creates a new sharded file store with a new file store called
+     * {@code name} in each of {@code dirs}.
+     *
+     * @param config The configuration file to write.
+     * @param dirs The directories in which to create the shards.
+     * @param name The name of each shard file store.
+     * @param range The range of each shard file store.
+     * @return The sharded file store.
+     * @throws IOException If encountered.
+     * @throws Exception If encountered.
+     */
+    public static Generic_FileStoreSharded create(Path config, List<Path> dirs,
+            String name, short range) throws IOException, Exception {
+        Generic_FileStoreConcurrent[] shards
+                = new Generic_FileStoreConcurrent[dirs.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Generic_FileStoreConcurrent(dirs.get(i), name,
+                    range);
+        }
+        Generic_FileStoreSharded r = new Generic_FileStoreSharded(config,
+                shards, -1L, -1L);
+        r.writeConfig();
+        return r;
+    }
+
+    /**
+     * Creates a sharded file store with an existing file store as shard 0 and
+     * new file stores called {@code name} in each of {@code dirs}.
+     *
+     * @param config The configuration file to write.
+     * @param existing The base directory of the existing file store.
+     * @param dirs The directories in which to create the other shards.
+     * @param name The name of each new shard file store.
+     * @param range The range of each new shard file store.
+     * @return The sharded file store.
+     * @throws IOException If encountered.
+     * @throws Exception If encountered.
+     */
+    public static Generic_FileStoreSharded join(Path config, Path existing,
+            List<Path> dirs, String name, short range) throws IOException,
+            Exception {
+        Generic_FileStoreConcurrent[] shards
+                = new Generic_FileStoreConcurrent[dirs.size() + 1];
+        shards[0] = new Generic_FileStoreConcurrent(existing);
+        for (int i = 1; i < shards.length; i++) {
+            shards[i] = new Generic_FileStoreConcurrent(dirs.get(i - 1), name,
+                    range);
+        }
+        long b = shards[0].getNextID();
+        Generic_FileStoreSharded r = new Generic_FileStoreSharded(config,
+                shards, b, b);
+        r.writeConfig();
+        return r;
+    }
+
+    /**
+     * Opens a sharded file store from its configuration file. The highest
+     * reserved identifier is the highest identifier of any shard mapped back
+     * from its identifier in that shard (see {@link #getID(int, long)}).
+     *
+     * @param config The configuration file.
+     * @return The sharded file store.
+     * @throws IOException If encountered.
+     * @throws Exception If the configuration or a shard is problematic.
+     */
+    public static Generic_FileStoreSharded open(Path config)
+            throws IOException, Exception {
+        Properties p = new Properties();
+        try (Reader r = Files.newBufferedReader(config)) {
+            p.load(r);
+        }
+        int n = Integer.parseInt(p.getProperty("shards"));
+        Generic_FileStoreConcurrent[] shards
+                = new Generic_FileStoreConcurrent[n];
+        for (int i = 0; i < n; i++) {
+            String s = p.getProperty("shard." + i);
+            if (s == null) {
+                throw new Exception("No shard." + i + " in " + config + ".");
+            }
+            shards[i] = new Generic_FileStoreConcurrent(Paths.get(s));
+        }
+        long b = Long.parseLong(p.getProperty("base"));
+        Generic_FileStoreSharded r = new Generic_FileStoreSharded(config,
+                shards, b, b);
+        for (int i = 0; i < n; i++) {
+            long l = shards[i].getNextID();
+            if (l == 0L && !Files.exists(Paths.get(
+                    shards[i].getPath(0L).toString(), shards[i].name))) {
+                // Nothing has been added to this shard.
+                continue;
+            }
+            if (i == 0 && l <= b) {
+                continue;
+            }
+            r.counter.accumulateAndGet(r.getID(i, l), Math::max);
+        }
+        return r;
+    }
+
+    /**
+     * Writes the configuration file.
+     *
+     * @throws IOException If encountered.
+     */
+    protected void writeConfig() throws IOException {
+        Properties p = new Properties();
+        p.setProperty("shards", Integer.toString(shards.length));
+        p.setProperty("base", Long.toString(base));
+        p.setProperty("last", Long.toString(counter.get()));
+        for (int i = 0; i < shards.length; i++) {
+            p.setProperty("shard." + i, shards[i].getBaseDir().toString());
+        }
+        Path tmp = Paths.get(config.toString() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp)) {
+            p.store(w, getClass().getSimpleName());
+        }
+        try {
+            Files.move(tmp, config, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, config, REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @param id The identifier.
+     * @return The index of the shard for id.
+     */
+    public int getShard(long id) {
+        if (id <= base) {
+            return 0;
+        }
+        return (int) ((id - base - 1L) % shards.length);
+    }
+
+    /**
+     * @param id The identifier.
+     * @return The identifier in its shard of id.
+     */
+    public long getLocalID(long id) {
+        if (id <= base) {
+            return id;
+        }
+        long k = (id - base - 1L) / shards.length;
+        return getShard(id) == 0 ? base + 1L + k : k;
+    }
+
+    /**
+     * @param shard The index of the shard.
+     * @param l The identifier in the shard.
+     * @return The identifier that is {@code l} in {@code shard}.
+     */
+    public long getID(int shard, long l) {
+        if (shard == 0) {
+            if (l <= base) {
+                return l;
+            }
+            return base + 1L + (l - base - 1L) * shards.length;
+        }
+        return base + 1L + l * shards.length + shard;
+    }
+
+    /**
+     * @param i The index of the shard.
+     * @return The shard.
+     */
+    public Generic_FileStoreConcurrent getShardStore(int i) {
+        return shards[i];
+    }
+
+    /**
+     * @return The number of shards.
+     */
+    public int getShards() {
+        return shards.length;
+    }
+
+    /**
+     * @return The highest reserved identifier.
+     */
+    public long getNextID() {
+        return counter.get();
+    }
+
+    /**
+     * Reserves the next identifier and writes o to it in its shard.
+     *
+     * @param o The Object to be serialised and written out.
+     * @return The identifier.
+     * @throws IOException If encountered.
+     */
+    public long put(Object o) throws IOException {
+        long id = counter.incrementAndGet();
+        add(id, o);
+        return id;
+    }
+
+    /**
+     * Writes o for a reserved identifier creating its leaf directory in its
+     * shard if it does not already exist.
+     *
+     * @param id The identifier.
+     * @param o The Object to be serialised and written out.
+     * @throws IOException If encountered.
+     */
+    protected void add(long id, Object o) throws IOException {
+        Generic_FileStoreConcurrent s = shards[getShard(id)];
+        long l = getLocalID(id);
+        s.reserveID(l);
+        try {
+            s.createLeaf(l);
+        } catch (FileAlreadyExistsException ex) {
+            if (l != 0L) {
+                throw ex;
+            }
+            // Leaf 0 of a new shard already exists.
+        }
+        s.add(l, o);
+    }
+
+    /**
+     * Reserves identifiers for os and writes them to their shards in
+     * parallel.
+     *
+     * @param os The Objects to be serialised and written out.
+     * @return The identifiers in the same order as os.
+     * @throws IOException If encountered.
+     */
+    public long[] putAll(List<?> os) throws IOException {
+        int n = os.size();
+        long[] r = new long[n];
+        if (n == 0) {
+            return r;
+        }
+        long first = counter.addAndGet(n) - n + 1L;
+        try {
+            IntStream.range(0, n).parallel().forEach(i -> {
+                r[i] = first + i;
+                try {
+                    add(first + i, os.get(i));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        return r;
+    }
+
+    /**
+     * @param id The identifier.
+     * @return The Object for id deserialized from its shard.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If the class of the Object cannot be
+     * found.
+     */
+    public Object get(long id) throws IOException, ClassNotFoundException {
+        return shards[getShard(id)].get(getLocalID(id));
+    }
+
+    /**
+     * Gets the Objects for ids from their shards in parallel.
+     *
+     * @param ids The identifiers.
+     * @return The Objects in the same order as ids.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If the class of an Object cannot be
+     * found.
+     */
+    public Object[] getAll(long[] ids) throws IOException,
+            ClassNotFoundException {
+        Object[] r = new Object[ids.length];
+        try {
+            IntStream.range(0, ids.length).parallel().forEach(i -> {
+                try {
+                    r[i] = get(ids[i]);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                } catch (ClassNotFoundException ex) {
+                    throw new UncheckedIOException(new IOException(ex));
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            if (ex.getCause().getCause() instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) ex.getCause().getCause();
+            }
+            throw ex.getCause();
+        }
+        return r;
+    }
+
+    /**
+     * Syncs each shard and writes the configuration file. This should be
+     * called when adding is finished.
+     *
+     * @throws IOException If encountered.
+     * @throws Exception If encountered.
+     */
+    public void sync() throws IOException, Exception {
+        for (Generic_FileStoreConcurrent s : shards) {
+            s.sync();
+        }
+        writeConfig();
+    }
+}
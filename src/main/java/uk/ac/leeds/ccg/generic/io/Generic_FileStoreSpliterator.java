@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Spliterator} over the Objects stored in a {@link Generic_FileStore}
+ * for a range of identifiers. Splitting is done on the directory ranges of the
+ * file store, so each part covers whole subtrees where possible. Objects are
+ * only read and deserialized as they are advanced to. Deleted identifiers are
+ * skipped using the tombstone bitmap without touching the file system and
+ * leaf directories without a file are also skipped.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreSpliterator implements Spliterator<Object> {
+
+    /**
+     * Ranges below this size within a single parent directory are not split.
+     */
+    protected static final long MIN_SPLIT = 16L;
+
+    /**
+     * The file store.
+     */
+    protected final Generic_FileStore fs;
+
+    /**
+     * The next identifier.
+     */
+    protected long id;
+
+    /**
+     * The last identifier.
+     */
+    protected final long last;
+
+    /**
+     * @param fs The file store.
+     * @param first The first identifier.
+     * @param last The last identifier.
+     */
+    public Generic_FileStoreSpliterator(Generic_FileStore fs, long first,
+            long last) {
+        this.fs = fs;
+        this.id = first;
+        this.last = last;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Object> action) {
+        while (id <= last) {
+            long i;
+            Object o;
+            try {
+                i = fs.nextLive(id);
+                if (i > last) {
+                    id = last + 1L;
+                    return false;
+                }
+                id = i + 1L;
+                o = fs.get(i);
+            } catch (NoSuchFileException ex) {
+                continue;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } catch (ClassNotFoundException ex) {
+                throw new UncheckedIOException(new IOException(ex));
+            }
+            action.accept(o);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Splits off the first half of the subtrees of the largest directory level
+     * that the remaining identifiers span.
+     *
+     * @return A spliterator for the split off identifiers or null if the
+     * remaining identifiers are too few to split.
+     */
+    @Override
+    public Spliterator<Object> trySplit() {
+        if (last <= id) {
+            return null;
+        }
+        long[] rs = fs.getRangesArray();
+        long mid = -1L;
+        for (int i = 0; i < rs.length - 1; i++) {
+            /**
+             * rs[i + 1] is the number of identifiers in a subtree of a
+             * directory at the level with rs[i] identifiers.
+             */
+            long r = rs[i + 1];
+            long k0 = id / r;
+            long k1 = last / r;
+            if (k0 < k1) {
+                mid = ((k0 + k1 + 1L) / 2L) * r;
+                break;
+            }
+        }
+        if (mid < 0L) {
+            if (last - id + 1L < MIN_SPLIT) {
+                return null;
+            }
+            mid = id + (last - id + 1L) / 2L;
+        }
+        Spliterator<Object> r = new Generic_FileStoreSpliterator(fs, id,
+                mid - 1L);
+        id = mid;
+        return r;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Math.max(0L, last - id + 1L);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED;
+    }
+}
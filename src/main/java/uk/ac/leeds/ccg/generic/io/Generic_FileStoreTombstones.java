@@ -0,0 +1,253 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A bitmap of the identifiers deleted from a {@link Generic_FileStore}. There
+ * is one bit for each identifier, so a million identifiers take 125KB. The
+ * bitmap is held in memory and kept in a file in the base directory of the
+ * file store. Deleting an identifier only writes the 8 byte word of the file
+ * with its bit in.
+ *
+ * The file has a {@link #HEADER_LENGTH} byte header of {@link #MAGIC} and
+ * {@link #VERSION} and then the words in order.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreTombstones implements AutoCloseable {
+
+    /**
+     * The name of the file in the base directory of the file store.
+     */
+    public static final String FILENAME = "deleted";
+
+    /**
+     * For checking the file is a tombstone bitmap.
+     */
+    protected static final int MAGIC = 0x47545331;
+
+    /**
+     * The version of the file format.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * The length of the header.
+     */
+    protected static final int HEADER_LENGTH = 8;
+
+    /**
+     * The file.
+     */
+    protected final Path path;
+
+    /**
+     * The file channel.
+     */
+    protected final FileChannel fc;
+
+    /**
+     * The words of the bitmap. Bit {@code id & 63} of word {@code id >>> 6}
+     * is set if id is deleted.
+     */
+    protected long[] words;
+
+    /**
+     * The number of identifiers deleted.
+     */
+    protected long count;
+
+    /**
+     * For storing if the bitmap can only be read from.
+     */
+    protected final boolean readOnly;
+
+    /**
+     * Opens the bitmap in the file at p. Unless readOnly the file is created
+     * if it does not exist. If readOnly the file is only opened for reading
+     * and if it has no header yet then nothing is deleted.
+     *
+     * @param p The file.
+     * @param readOnly If true the bitmap can only be read from.
+     * @throws IOException If encountered or if the file is not a tombstone
+     * bitmap.
+     */
+    public Generic_FileStoreTombstones(Path p, boolean readOnly)
+            throws IOException {
+        path = p;
+        this.readOnly = readOnly;
+        if (readOnly) {
+            fc = FileChannel.open(p, READ);
+        } else {
+            fc = FileChannel.open(p, CREATE, READ, WRITE);
+        }
+        long size = fc.size();
+        ByteBuffer h = ByteBuffer.allocate(HEADER_LENGTH);
+        if (size == 0L || (readOnly && size < HEADER_LENGTH)) {
+            if (!readOnly) {
+                h.putInt(MAGIC).putInt(VERSION).flip();
+                fc.write(h, 0L);
+            }
+            words = new long[0];
+            return;
+        }
+        fc.read(h, 0L);
+        h.flip();
+        if (h.remaining() < HEADER_LENGTH || h.getInt() != MAGIC) {
+            fc.close();
+            throw new IOException("Path " + p + " is not a tombstone bitmap.");
+        }
+        int v = h.getInt();
+        if (v != VERSION) {
+            fc.close();
+            throw new IOException("Unsupported tombstone bitmap version " + v
+                    + " in " + p + ".");
+        }
+        int n = (int) ((size - HEADER_LENGTH) / 8L);
+        ByteBuffer b = ByteBuffer.allocate(n * 8);
+        while (b.hasRemaining()) {
+            if (fc.read(b, HEADER_LENGTH + b.position()) < 0) {
+                break;
+            }
+        }
+        b.flip();
+        words = new long[n];
+        b.asLongBuffer().get(words);
+        for (long w : words) {
+            count += Long.bitCount(w);
+        }
+    }
+
+    /**
+     * @param id The identifier.
+     * @return true if id is deleted.
+     */
+    public synchronized boolean isDeleted(long id) {
+        int i = (int) (id >>> 6);
+        return id >= 0L && i < words.length
+                && (words[i] & (1L << id)) != 0L;
+    }
+
+    /**
+     * Marks id as deleted and writes the word with its bit in to the file.
+     *
+     * @param id The identifier.
+     * @return false if id was already deleted.
+     * @throws IOException If encountered or if the bitmap is read only.
+     */
+    public synchronized boolean delete(long id) throws IOException {
+        if (readOnly) {
+            throw new IOException("Tombstone bitmap " + path
+                    + " is read only.");
+        }
+        int i = (int) (id >>> 6);
+        if (i >= words.length) {
+            words = Arrays.copyOf(words, Math.max(i + 1, words.length * 2));
+        }
+        long w = words[i];
+        if ((w & (1L << id)) != 0L) {
+            return false;
+        }
+        words[i] = w | (1L << id);
+        count++;
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.putLong(words[i]).flip();
+        fc.write(b, HEADER_LENGTH + i * 8L);
+        return true;
+    }
+
+    /**
+     * @param id The identifier to start from.
+     * @return The first identifier from id that is not deleted.
+     */
+    public synchronized long nextLive(long id) {
+        int i = (int) (id >>> 6);
+        if (i >= words.length) {
+            return id;
+        }
+        long w = ~words[i] & (-1L << id);
+        while (w == 0L) {
+            i++;
+            if (i == words.length) {
+                return (long) i << 6;
+            }
+            w = ~words[i];
+        }
+        return ((long) i << 6) + Long.numberOfTrailingZeros(w);
+    }
+
+    /**
+     * @param id The identifier to start from.
+     * @return The first identifier from id that is deleted, or
+     * {@link Long#MAX_VALUE} if there is none.
+     */
+    public synchronized long nextDeleted(long id) {
+        int i = (int) (id >>> 6);
+        if (i >= words.length) {
+            return Long.MAX_VALUE;
+        }
+        long w = words[i] & (-1L << id);
+        while (w == 0L) {
+            i++;
+            if (i == words.length) {
+                return Long.MAX_VALUE;
+            }
+            w = words[i];
+        }
+        return ((long) i << 6) + Long.numberOfTrailingZeros(w);
+    }
+
+    /**
+     * @param l The first identifier.
+     * @param u The last identifier.
+     * @return true if all the identifiers from l to u inclusive are deleted.
+     */
+    public boolean isDeleted(long l, long u) {
+        return nextLive(l) > u;
+    }
+
+    /**
+     * @return The number of identifiers deleted.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Forces the file to the storage device.
+     *
+     * @throws IOException If encountered.
+     */
+    public void force() throws IOException {
+        fc.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fc.close();
+    }
+}
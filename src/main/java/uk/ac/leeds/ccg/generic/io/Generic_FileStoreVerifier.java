@@ -0,0 +1,453 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * For verifying the integrity of a {@link Generic_FileStore} in parallel.
+ * Each directory in the tree is verified by its own fork join task. The names
+ * of directories are checked against the ranges of the file store, every
+ * identifier up to {@link Generic_FileStore#nextID} is checked to have a leaf
+ * directory, and optionally the file in each leaf is checked against its
+ * checksum (see {@link Generic_FileStoreRecord#isValid(Path)}). Directories
+ * for deleted identifiers may be missing. Every problem found is reported in
+ * the {@link Result}.
+ *
+ * If a verification finds no problems then a checkpoint is written to the
+ * {@link #CHECKPOINT} file in the base directory recording when the
+ * verification started and the nextID. An incremental verification only
+ * verifies the parent directories of leaves that have been modified since the
+ * checkpoint or that are for identifiers added since. Directories are
+ * modified when directories are added to or removed from them, so Objects
+ * that are overwritten in existing leaves are not picked up by an incremental
+ * verification.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreVerifier {
+
+    /**
+     * The name of the checkpoint file.
+     */
+    public static final String CHECKPOINT = "verified";
+
+    /**
+     * The margin in milliseconds taken off the checkpoint time to allow for
+     * file systems that record modified times coarsely.
+     */
+    protected static final long TIME_MARGIN = 2000L;
+
+    /**
+     * The kinds of problem.
+     */
+    public enum Kind {
+
+        /**
+         * A path that should not be in the file store.
+         */
+        UNEXPECTED,
+        /**
+         * A directory that should be in the file store is missing.
+         */
+        MISSING,
+        /**
+         * A leaf file that does not match its checksum or cannot be read.
+         */
+        CORRUPT,
+        /**
+         * A path that could not be read.
+         */
+        UNREADABLE
+    }
+
+    /**
+     * A problem found.
+     */
+    public static class Problem {
+
+        /**
+         * The kind of problem.
+         */
+        public final Kind kind;
+
+        /**
+         * The path of the problem.
+         */
+        public final Path path;
+
+        /**
+         * @param kind The kind of problem.
+         * @param path The path of the problem.
+         */
+        public Problem(Kind kind, Path path) {
+            this.kind = kind;
+            this.path = path;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + path;
+        }
+    }
+
+    /**
+     * The result of a verification.
+     */
+    public static class Result {
+
+        /**
+         * The problems found.
+         */
+        public final List<Problem> problems;
+
+        /**
+         * The number of directories verified.
+         */
+        public final long directories;
+
+        /**
+         * The number of leaf files verified against their checksum.
+         */
+        public final long files;
+
+        /**
+         * The number of parent directories of leaves that were not verified as
+         * they were unchanged since the checkpoint.
+         */
+        public final long skipped;
+
+        /**
+         * @param problems The problems found.
+         * @param directories The number of directories verified.
+         * @param files The number of leaf files verified.
+         * @param skipped The number of parent directories of leaves skipped.
+         */
+        public Result(List<Problem> problems, long directories, long files,
+                long skipped) {
+            this.problems = problems;
+            this.directories = directories;
+            this.files = files;
+            this.skipped = skipped;
+        }
+
+        /**
+         * @return true if no problems were found.
+         */
+        public boolean isOK() {
+            return problems.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Result(problems=" + problems.size() + ", directories="
+                    + directories + ", files=" + files + ", skipped="
+                    + skipped + ")";
+        }
+    }
+
+    /**
+     * The file store.
+     */
+    protected final Generic_FileStore fs;
+
+    /**
+     * The pool to verify with.
+     */
+    protected final ForkJoinPool pool;
+
+    /**
+     * @param fs The file store to verify.
+     * @param pool The pool to verify with.
+     */
+    public Generic_FileStoreVerifier(Generic_FileStore fs, ForkJoinPool pool) {
+        this.fs = fs;
+        this.pool = pool;
+    }
+
+    /**
+     * Create a verifier that uses the common pool.
+     *
+     * @param fs The file store to verify.
+     */
+    public Generic_FileStoreVerifier(Generic_FileStore fs) {
+        this(fs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * State shared by the tasks of a verification.
+     */
+    private class Run {
+
+        final boolean checksums;
+        final long since;
+        final long sinceID;
+        final long[] rs;
+        final long last;
+        final ConcurrentLinkedQueue<Problem> problems
+                = new ConcurrentLinkedQueue<>();
+        final LongAdder directories = new LongAdder();
+        final LongAdder files = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final Generic_FileStoreTombstones tombstones;
+
+        Run(boolean checksums, long since, long sinceID) throws IOException {
+            this.checksums = checksums;
+            this.since = since;
+            this.sinceID = sinceID;
+            this.rs = fs.getRangesArray();
+            this.last = fs.getNextID();
+            this.tombstones = fs.getTombstones(false);
+        }
+
+        /**
+         * @param l The first identifier.
+         * @param u The last identifier.
+         * @return true if all the identifiers from l to u are deleted, in
+         * which case their directories may have been compacted away.
+         */
+        boolean isDeleted(long l, long u) {
+            return tombstones != null && tombstones.isDeleted(l, u);
+        }
+    }
+
+    /**
+     * For verifying a directory covering the identifiers from {@code l} to
+     * {@code l + rs[depth] - 1}.
+     */
+    private class Task extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final Run run;
+        final Path dir;
+        final int depth;
+        final long l;
+
+        Task(Run run, Path dir, int depth, long l) {
+            this.run = run;
+            this.dir = dir;
+            this.depth = depth;
+            this.l = l;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (depth == run.rs.length - 1) {
+                    verifyLeaves();
+                } else {
+                    verifyDirs();
+                }
+            } catch (IOException | RuntimeException ex) {
+                /**
+                 * Report rather than abort the whole verification.
+                 */
+                run.problems.add(new Problem(Kind.UNREADABLE, dir));
+            }
+        }
+
+        void verifyDirs() throws IOException {
+            run.directories.increment();
+            long span = run.rs[depth + 1];
+            int n = (int) (run.rs[depth] / span);
+            boolean[] found = new boolean[n];
+            List<Task> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    long cl = parseRange(p, span);
+                    if (cl < l || cl >= l + run.rs[depth] || cl > run.last
+                            || !Files.isDirectory(p)) {
+                        run.problems.add(new Problem(Kind.UNEXPECTED, p));
+                    } else {
+                        found[(int) ((cl - l) / span)] = true;
+                        tasks.add(new Task(run, p, depth + 1, cl));
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                long cl = l + i * span;
+                if (!found[i] && cl <= run.last
+                        && !run.isDeleted(cl, cl + span - 1L)) {
+                    run.problems.add(new Problem(Kind.MISSING, Paths.get(
+                            dir.toString(), fs.getName(cl, cl + span - 1L))));
+                }
+            }
+            invokeAll(tasks);
+        }
+
+        void verifyLeaves() throws IOException {
+            long u = Math.min(l + run.rs[depth] - 1L, run.last);
+            if (u <= run.sinceID
+                    && Files.getLastModifiedTime(dir).toMillis() < run.since) {
+                run.skipped.increment();
+                return;
+            }
+            run.directories.increment();
+            BitSet found = new BitSet();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    long id;
+                    try {
+                        id = Long.parseLong(p.getFileName().toString());
+                    } catch (NumberFormatException ex) {
+                        id = -1L;
+                    }
+                    if (id < l || id > u || !Files.isDirectory(p)) {
+                        run.problems.add(new Problem(Kind.UNEXPECTED, p));
+                        continue;
+                    }
+                    found.set((int) (id - l));
+                    if (run.checksums) {
+                        Path f = Paths.get(p.toString(), fs.name);
+                        if (Files.exists(f)) {
+                            run.files.increment();
+                            if (!Generic_FileStoreRecord.isValid(f)) {
+                                run.problems.add(new Problem(Kind.CORRUPT, f));
+                            }
+                        }
+                    }
+                }
+            }
+            for (long id = l; id <= u; id++) {
+                if (!found.get((int) (id - l)) && !run.isDeleted(id, id)) {
+                    run.problems.add(new Problem(Kind.MISSING,
+                            Paths.get(dir.toString(), Long.toString(id))));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param p The path of a directory expected to be named like "l_u".
+     * @param span The expected number of identifiers it covers.
+     * @return l or -1 if the name is not as expected.
+     */
+    private long parseRange(Path p, long span) {
+        String[] split = p.getFileName().toString().split(Generic_FileStore.SEP);
+        if (split.length != 2) {
+            return -1L;
+        }
+        try {
+            long l = Long.parseLong(split[0]);
+            long u = Long.parseLong(split[1]);
+            if (l % span != 0 || u != l + span - 1L) {
+                return -1L;
+            }
+            return l;
+        } catch (NumberFormatException ex) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Verifies the file store.
+     *
+     * @param checksums If true the file in each leaf verified is checked
+     * against its checksum.
+     * @param incremental If true only the parent directories of leaves that
+     * have changed since the checkpoint are verified.
+     * @return The result.
+     * @throws IOException If encountered reading or writing the checkpoint.
+     */
+    public Result verify(boolean checksums, boolean incremental)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        long since = Long.MIN_VALUE;
+        long sinceID = -1L;
+        if (incremental) {
+            Properties cp = readCheckpoint();
+            if (cp != null) {
+                since = Long.parseLong(cp.getProperty("time"));
+                sinceID = Long.parseLong(cp.getProperty("nextID"));
+            }
+        }
+        Run run = new Run(checksums, since, sinceID);
+        long[] rs = run.rs;
+        Path root = Paths.get(fs.getBaseDir().toString(),
+                fs.getName(0L, rs[0] - 1L));
+        if (!Files.isDirectory(root)) {
+            run.problems.add(new Problem(Kind.MISSING, root));
+        } else {
+            pool.invoke(new Task(run, root, 0, 0L));
+        }
+        List<Problem> problems = new ArrayList<>(run.problems);
+        Result r = new Result(Collections.unmodifiableList(problems),
+                run.directories.sum(), run.files.sum(), run.skipped.sum());
+        if (r.isOK()) {
+            writeCheckpoint(start - TIME_MARGIN, run.last);
+        }
+        return r;
+    }
+
+    /**
+     * @return The path of the checkpoint file.
+     */
+    public Path getCheckpointPath() {
+        return Paths.get(fs.getBaseDir().toString(), CHECKPOINT);
+    }
+
+    /**
+     * @return The checkpoint or null if there is none.
+     * @throws IOException If encountered.
+     */
+    protected Properties readCheckpoint() throws IOException {
+        Path p = getCheckpointPath();
+        if (!Files.exists(p)) {
+            return null;
+        }
+        Properties r = new Properties();
+        try (Reader rd = Files.newBufferedReader(p)) {
+            r.load(rd);
+        }
+        if (r.getProperty("time") == null || r.getProperty("nextID") == null) {
+            return null;
+        }
+        return r;
+    }
+
+    /**
+     * Writes the checkpoint.
+     *
+     * @param time When the verification started.
+     * @param nextID The nextID verified up to.
+     * @throws IOException If encountered.
+     */
+    protected void writeCheckpoint(long time, long nextID) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("time", Long.toString(time));
+        p.setProperty("nextID", Long.toString(nextID));
+        try (Writer w = Files.newBufferedWriter(getCheckpointPath())) {
+            p.store(w, getClass().getSimpleName());
+        }
+    }
+}
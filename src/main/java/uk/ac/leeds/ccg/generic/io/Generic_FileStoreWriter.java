@@ -0,0 +1,385 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * For adding Objects to a {@link Generic_FileStoreConcurrent} asynchronously.
+ * {@link #add(Object)} reserves an identifier and returns a future for it
+ * straight away and the Object is serialized and written by a small pool of
+ * writer threads. At most {@link #capacity} Objects can be waiting to be
+ * written and what happens when this many are waiting is set by
+ * {@link #policy}.
+ *
+ * {@link #flush()} waits for all the Objects added to be written, including
+ * any being written in caller threads, and then syncs the file store.
+ * {@link #close()} flushes and stops the writer threads. If an Object cannot
+ * be written then its identifier is deleted from the file store, so there
+ * are no reserved identifiers without either an Object or a tombstone.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreWriter implements AutoCloseable {
+
+    /**
+     * What to do when {@link #capacity} Objects are waiting to be written.
+     */
+    public enum Policy {
+
+        /**
+         * Block the caller until there is room.
+         */
+        BLOCK,
+        /**
+         * Do not add the Object and return a future that has completed
+         * exceptionally with a {@link RejectedExecutionException}.
+         */
+        DROP,
+        /**
+         * Write the Object in the caller thread.
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * The file store written to.
+     */
+    protected final Generic_FileStoreConcurrent fs;
+
+    /**
+     * The maximum number of Objects waiting to be written.
+     */
+    protected final int capacity;
+
+    /**
+     * What to do when {@link #capacity} Objects are waiting to be written.
+     */
+    protected final Policy policy;
+
+    /**
+     * The writer threads.
+     */
+    protected final ExecutorService executor;
+
+    /**
+     * Permits for Objects waiting to be written by the writer threads.
+     */
+    protected final Semaphore permits;
+
+    /**
+     * The number of Objects added that have not yet been written or failed,
+     * including those being written in caller threads. Access to this is
+     * synchronized on this writer, which is notified when it goes down to 0.
+     */
+    protected long inFlight;
+
+    /**
+     * The number of Objects written.
+     */
+    protected final LongAdder written;
+
+    /**
+     * The number of Objects dropped.
+     */
+    protected final LongAdder dropped;
+
+    /**
+     * The number of Objects that failed to be written.
+     */
+    protected final LongAdder failed;
+
+    /**
+     * The total time taken to write Objects in nanoseconds.
+     */
+    protected final LongAdder latency;
+
+    /**
+     * The longest time taken to write an Object in nanoseconds.
+     */
+    protected final AtomicLong maxLatency;
+
+    /**
+     * Set true once closed.
+     */
+    protected volatile boolean closed;
+
+    /**
+     * @param fs The file store to write to.
+     * @param threads The number of writer threads.
+     * @param capacity The maximum number of Objects waiting to be written.
+     * @param policy What to do when {@code capacity} Objects are waiting to be
+     * written.
+     */
+    public Generic_FileStoreWriter(Generic_FileStoreConcurrent fs, int threads,
+            int capacity, Policy policy) {
+        this.fs = fs;
+        this.capacity = capacity;
+        this.policy = policy;
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, getClass().getSimpleName());
+            t.setDaemon(true);
+            return t;
+        });
+        permits = new Semaphore(capacity);
+        written = new LongAdder();
+        dropped = new LongAdder();
+        failed = new LongAdder();
+        latency = new LongAdder();
+        maxLatency = new AtomicLong();
+    }
+
+    /**
+     * Creates a writer with 2 writer threads and a capacity of 1024 that
+     * blocks when full.
+     *
+     * @param fs The file store to write to.
+     */
+    public Generic_FileStoreWriter(Generic_FileStoreConcurrent fs) {
+        this(fs, 2, 1024, Policy.BLOCK);
+    }
+
+    /**
+     * Adds o to the file store asynchronously.
+     *
+     * @param o The Object to add.
+     * @return A future for the identifier of the Object. This completes once
+     * the Object has been written, or exceptionally if it could not be.
+     * @throws InterruptedException If interrupted while blocked.
+     */
+    public CompletableFuture<Long> add(Object o) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Closed.");
+        }
+        if (!permits.tryAcquire()) {
+            switch (policy) {
+                case BLOCK:
+                    permits.acquire();
+                    break;
+                case DROP:
+                    dropped.increment();
+                    return CompletableFuture.failedFuture(
+                            new RejectedExecutionException("Queue is full."));
+                default:
+                    begin();
+                    long id = fs.reserveID();
+                    CompletableFuture<Long> r = new CompletableFuture<>();
+                    try {
+                        write(id, o, r);
+                    } finally {
+                        end();
+                    }
+                    return r;
+            }
+        }
+        begin();
+        long id = fs.reserveID();
+        CompletableFuture<Long> r = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    write(id, o, r);
+                } finally {
+                    permits.release();
+                    end();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            abandon(id, ex);
+            permits.release();
+            end();
+            r.completeExceptionally(ex);
+        }
+        return r;
+    }
+
+    /**
+     * Counts an Object in to {@link #inFlight}.
+     */
+    protected synchronized void begin() {
+        inFlight++;
+    }
+
+    /**
+     * Counts an Object out of {@link #inFlight}.
+     */
+    protected synchronized void end() {
+        inFlight--;
+        if (inFlight == 0L) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Creates the leaf directory for id and writes o to it.
+     *
+     * @param id The identifier.
+     * @param o The Object.
+     * @param r The future to complete.
+     */
+    protected void write(long id, Object o, CompletableFuture<Long> r) {
+        long t = System.nanoTime();
+        try {
+            fs.createLeaf(id);
+            fs.add(id, o);
+            long d = System.nanoTime() - t;
+            latency.add(d);
+            maxLatency.accumulateAndGet(d, Math::max);
+            written.increment();
+            r.complete(id);
+        } catch (IOException | RuntimeException ex) {
+            failed.increment();
+            abandon(id, ex);
+            r.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Deletes the reserved identifier id that nothing could be written for,
+     * creating its leaf directory first if need be, so the file store does
+     * not have a reserved identifier with neither an Object nor a tombstone.
+     * Anything that goes wrong doing this is added to ex as suppressed.
+     *
+     * @param id The identifier.
+     * @param ex What stopped an Object being written for id.
+     */
+    protected void abandon(long id, Exception ex) {
+        try {
+            try {
+                fs.createLeaf(id);
+            } catch (FileAlreadyExistsException ex2) {
+                // The leaf was created before the write failed.
+            }
+            fs.delete(id);
+        } catch (IOException | RuntimeException ex2) {
+            ex.addSuppressed(ex2);
+        }
+    }
+
+    /**
+     * Waits until there are no Objects waiting to be written or being written,
+     * whether by the writer threads or in caller threads, and then syncs the
+     * file store. If the durability of the file store is not
+     * {@link Generic_FileStore.Durability#NONE} then the Objects written are
+     * durable once this returns.
+     *
+     * @throws IOException If encountered.
+     * @throws Exception If encountered.
+     */
+    public void flush() throws IOException, Exception {
+        synchronized (this) {
+            while (inFlight > 0L) {
+                wait();
+            }
+        }
+        fs.sync();
+    }
+
+    /**
+     * Flushes and stops the writer threads. Adding after this throws an
+     * IllegalStateException.
+     *
+     * @throws IOException If encountered, including if interrupted or if the
+     * writer threads do not stop within a minute.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            executor.shutdown();
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Writer threads did not stop.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException e = new InterruptedIOException(
+                    "Interrupted closing.");
+            e.initCause(ex);
+            throw e;
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * @return The number of Objects waiting to be written or being written.
+     */
+    public synchronized int getQueueDepth() {
+        return (int) inFlight;
+    }
+
+    /**
+     * @return The number of Objects written.
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * @return The number of Objects dropped.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of Objects that failed to be written.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return The mean time taken to write an Object in nanoseconds.
+     */
+    public long getMeanLatency() {
+        long n = written.sum();
+        return n == 0 ? 0L : latency.sum() / n;
+    }
+
+    /**
+     * @return The longest time taken to write an Object in nanoseconds.
+     */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(policy=" + policy
+                + ", queueDepth=" + getQueueDepth() + ", written="
+                + getWritten() + ", dropped=" + getDropped() + ", failed="
+                + getFailed() + ", meanLatency=" + getMeanLatency()
+                + ", maxLatency=" + getMaxLatency() + ")";
+    }
+}
@@ -15,6 +15,8 @@
  */
 package uk.ac.leeds.ccg.generic.io;
 
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
 //import static java.nio.file.StandardOpenOption.CREATE_NEW;
@@ -23,7 +25,7 @@ import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.READ;
 //import static java.nio.file.StandardOpenOption.SPARSE;
 //import static java.nio.file.StandardOpenOption.SYNC;
-//import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 import java.io.BufferedInputStream;
@@ -38,21 +40,40 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StreamTokenizer;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import uk.ac.leeds.ccg.generic.core.Generic_Environment;
 import uk.ac.leeds.ccg.generic.core.Generic_Object;
 
@@ -64,6 +85,20 @@ public class Generic_IO extends Generic_Object {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The size in bytes of the direct buffer used by
+     * {@link #copy(FileChannel, FileChannel)} when
+     * {@link FileChannel#transferTo} makes no progress.
+     */
+    public static final int COPY_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * A direct buffer for each thread that copies.
+     */
+    private static final ThreadLocal<ByteBuffer> COPY_BUFFER
+            = ThreadLocal.withInitial(()
+                    -> ByteBuffer.allocateDirect(COPY_BUFFER_SIZE));
+
     /**
      * Creates a new instance.
      *
@@ -114,6 +149,65 @@ public class Generic_IO extends Generic_Object {
         }
     }
 
+    /**
+     * For getting a Stream of the paths of all files (not directories) in dir
+     * and any subdirectories. Unlike {@link #getFiles(Path)} this does not
+     * list the whole tree before returning, files are supplied as they are
+     * found, and a parallel Stream is split by subdirectory. Symbolic links
+     * are not followed. The Stream should be closed, for example using
+     * try-with-resources, so that any DirectoryStreams still open are closed.
+     *
+     * @param dir The path to traverse.
+     * @param filter Only files for which this is true are supplied.
+     * @param parallel If true then the Stream is parallel.
+     * @return A Stream of the paths of files in dir and any subdirectories.
+     * @throws IOException If dir is not a directory.
+     */
+    public static Stream<Path> getFileStream(Path dir, Predicate<Path> filter,
+            boolean parallel) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            throw new IOException("Path " + dir.toString() + " is not a directory");
+        }
+        Generic_FileSpliterator s = new Generic_FileSpliterator(dir, filter);
+        return StreamSupport.stream(s, parallel).onClose(() -> {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    /**
+     * For getting a sequential Stream of the paths of all files (not
+     * directories) in dir and any subdirectories that match a glob pattern.
+     * The pattern is matched against the file name, for example "*.csv".
+     *
+     * @param dir The path to traverse.
+     * @param glob The glob pattern.
+     * @return A Stream of the paths of files in dir and any subdirectories.
+     * @throws IOException If dir is not a directory.
+     * @see #getFileStream(Path, Predicate, boolean)
+     */
+    public static Stream<Path> getFileStream(Path dir, String glob)
+            throws IOException {
+        PathMatcher m = dir.getFileSystem().getPathMatcher("glob:" + glob);
+        return getFileStream(dir, p -> m.matches(p.getFileName()), false);
+    }
+
+    /**
+     * For getting a sequential Stream of the paths of all files (not
+     * directories) in dir and any subdirectories.
+     *
+     * @param dir The path to traverse.
+     * @return A Stream of the paths of files in dir and any subdirectories.
+     * @throws IOException If dir is not a directory.
+     * @see #getFileStream(Path, Predicate, boolean)
+     */
+    public static Stream<Path> getFileStream(Path dir) throws IOException {
+        return getFileStream(dir, p -> true, false);
+    }
+
     /**
      * Writes Object o to a file at f.
      *
@@ -131,6 +225,29 @@ public class Generic_IO extends Generic_Object {
         }
     }
 
+    /**
+     * Forces any updates to the file or directory at p to be written to the
+     * storage device. Forcing a directory makes the creation of the files and
+     * directories in it durable. Some platforms do not support forcing a
+     * directory, in which case nothing is done for directories.
+     *
+     * @param p Path to a file or directory.
+     * @throws IOException If encountered forcing a file.
+     */
+    public static void force(Path p) throws IOException {
+        if (Files.isDirectory(p)) {
+            try (FileChannel fc = FileChannel.open(p, READ)) {
+                fc.force(true);
+            } catch (IOException ex) {
+                // Not supported on this platform.
+            }
+        } else {
+            try (FileChannel fc = FileChannel.open(p, WRITE)) {
+                fc.force(true);
+            }
+        }
+    }
+
     /**
      * Read an Object from a file at p.
      *
@@ -175,10 +292,8 @@ public class Generic_IO extends Generic_Object {
 
     /**
      * Copies a file from f to d renaming it to fn in the process. If there is
-     * no directory at d then this is created.
-     *
-     * This might be improved using Files.copy(f, target, REPLACE_EXISTING) and
-     * similar...
+     * no directory at d then this is created. Any existing file called fn in d
+     * is replaced.
      *
      * @param f A Path of a file to be copied.
      * @param d The Path of a directory to copy to.
@@ -193,29 +308,106 @@ public class Generic_IO extends Generic_Object {
         if (!Files.exists(d)) {
             Files.createDirectories(d);
         }
-        Path p = Paths.get(d.toString(), fn);
-        if (!Files.exists(p)) {
-            Files.createFile(p);
+        copyFile(f, Paths.get(d.toString(), fn), false, null);
+    }
+
+    /**
+     * Copies the file at f to t replacing any file at t. The bytes are copied
+     * with {@link FileChannel#transferTo} so that where the platform supports
+     * it they go from one file to the other without being copied in and out
+     * of the Java heap. If transferTo stops making progress then the rest is
+     * copied through a {@link #COPY_BUFFER_SIZE} direct buffer which is
+     * reused by each thread. For paths of file systems that do not support
+     * FileChannel, such as zip file systems, {@link Files#copy} is used.
+     *
+     * @param f A Path of a file to be copied.
+     * @param t The Path to copy to.
+     * @param preserveAttributes If true then the times and, where supported,
+     * POSIX permissions of f are set on t.
+     * @param stats If not null then the number of bytes and the time taken
+     * are added to this.
+     * @return The number of bytes copied.
+     * @throws java.io.IOException If encountered.
+     */
+    public static long copyFile(Path f, Path t, boolean preserveAttributes,
+            Generic_IOStats stats) throws IOException {
+        long start = System.nanoTime();
+        long n;
+        try (FileChannel in = FileChannel.open(f, READ);
+                FileChannel out = FileChannel.open(t, CREATE, WRITE,
+                        TRUNCATE_EXISTING)) {
+            n = copy(in, out);
+        } catch (UnsupportedOperationException ex) {
+            Files.copy(f, t, REPLACE_EXISTING);
+            n = Files.size(t);
+        }
+        if (preserveAttributes) {
+            copyAttributes(f, t);
+        }
+        if (stats != null) {
+            stats.addFile(n, System.nanoTime() - start);
         }
-        try (BufferedInputStream bis = getBufferedInputStream(f);
-                BufferedOutputStream bos = getBufferedOutputStream(p)) {
-            /**
-             * bufferSize should be power of 2 (e.g. Math.pow(2, 12)), but
-             * nothing too big.
-             */
-            int bufferSize = 2048;
-            long length = Files.size(f);
-            long nArrayReads = length / bufferSize;
-            long nSingleReads = length - (nArrayReads * bufferSize);
-            byte[] b = new byte[bufferSize];
-            for (int i = 0; i < nArrayReads; i++) {
-                bis.read(b);
-                bos.write(b);
+        return n;
+    }
+
+    /**
+     * Copies everything from the position of in to the end of in to out.
+     *
+     * @param in The channel to copy from.
+     * @param out The channel to copy to.
+     * @return The number of bytes copied.
+     * @throws java.io.IOException If encountered.
+     */
+    protected static long copy(FileChannel in, FileChannel out)
+            throws IOException {
+        long pos = in.position();
+        long start = pos;
+        long size = in.size();
+        while (pos < size) {
+            long n = in.transferTo(pos, size - pos, out);
+            if (n <= 0L) {
+                break;
             }
-            for (int i = 0; i < nSingleReads; i++) {
-                bos.write(bis.read());
+            pos += n;
+        }
+        /**
+         * Carry on with a buffer only if transferTo gave up.
+         */
+        if (pos < size) {
+            ByteBuffer b = COPY_BUFFER.get();
+            b.clear();
+            int r;
+            while ((r = in.read(b, pos)) != -1) {
+                pos += r;
+                b.flip();
+                while (b.hasRemaining()) {
+                    out.write(b);
+                }
+                b.clear();
             }
-            bos.flush();
+        }
+        return pos - start;
+    }
+
+    /**
+     * Sets the last modified, last access and creation times and, where both
+     * file systems support them, the POSIX permissions of f on t.
+     *
+     * @param f The Path to copy attributes from.
+     * @param t The Path to copy attributes to.
+     * @throws java.io.IOException If encountered.
+     */
+    public static void copyAttributes(Path f, Path t) throws IOException {
+        BasicFileAttributes a = Files.readAttributes(f,
+                BasicFileAttributes.class);
+        Files.getFileAttributeView(t, BasicFileAttributeView.class).setTimes(
+                a.lastModifiedTime(), a.lastAccessTime(), a.creationTime());
+        PosixFileAttributeView pf = Files.getFileAttributeView(f,
+                PosixFileAttributeView.class);
+        PosixFileAttributeView pt = Files.getFileAttributeView(t,
+                PosixFileAttributeView.class);
+        if (pf != null && pt != null) {
+            pt.setPermissions(pf.readAttributes().permissions());
         }
     }
 
@@ -426,6 +618,218 @@ public class Generic_IO extends Generic_Object {
             }
         }
     }
+
+    /**
+     * Copies the file or directory tree at s to t using a ForkJoinPool of
+     * parallelism threads. Each directory is a task which copies the files in
+     * it while its subdirectories are copied as further tasks, so subtrees
+     * are copied concurrently and directories are listed as they are reached
+     * rather than the whole tree first. Existing files at t are replaced and
+     * symbolic links are copied as links. Errors do not stop the copy but are
+     * added to the returned stats.
+     *
+     * @param s The file or directory to copy.
+     * @param t The Path to copy to. For a directory the contents of s are
+     * copied into t which is created if it does not exist.
+     * @param parallelism The maximum number of threads.
+     * @param preserveAttributes If true then the times and, where supported,
+     * POSIX permissions of files and directories are preserved.
+     * @return The counts, errors and timings.
+     * @throws java.io.IOException If s does not exist.
+     */
+    public static Generic_IOStats copyParallel(Path s, Path t,
+            int parallelism, boolean preserveAttributes) throws IOException {
+        if (!Files.exists(s, NOFOLLOW_LINKS)) {
+            throw new IOException("Path " + s + " does not exist.");
+        }
+        Generic_IOStats stats = new Generic_IOStats();
+        if (Files.isDirectory(s, NOFOLLOW_LINKS)) {
+            invoke(new CopyTree(s, t, preserveAttributes, stats),
+                    parallelism);
+        } else {
+            try {
+                copyFile(s, t, preserveAttributes, stats);
+            } catch (IOException ex) {
+                stats.addFailure(ex);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Deletes the file or directory tree at d using a ForkJoinPool of
+     * parallelism threads. Each directory is a task which deletes the files
+     * in it while its subdirectories are deleted as further tasks and then
+     * deletes itself, so the tree is never held in memory or sorted.
+     * Symbolic links are deleted and not followed. Errors do not stop the
+     * delete but are added to the returned stats.
+     *
+     * @param d The file or directory to delete.
+     * @param parallelism The maximum number of threads.
+     * @return The counts, errors and timings. The bytes are the total size of
+     * the files deleted.
+     */
+    public static Generic_IOStats deleteParallel(Path d, int parallelism) {
+        Generic_IOStats stats = new Generic_IOStats();
+        if (Files.isDirectory(d, NOFOLLOW_LINKS)) {
+            invoke(new DeleteTree(d, stats), parallelism);
+        } else if (Files.exists(d, NOFOLLOW_LINKS)) {
+            DeleteTree.deleteFile(d, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Runs task in a new ForkJoinPool and shuts the pool down.
+     *
+     * @param task The task.
+     * @param parallelism The number of threads in the pool.
+     */
+    private static void invoke(ForkJoinTask<?> task, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism cannot be < 1.");
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A task for copying a directory for
+     * {@link #copyParallel(Path, Path, int, boolean)}.
+     */
+    private static class CopyTree extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path s;
+        private final Path t;
+        private final boolean preserveAttributes;
+        private final Generic_IOStats stats;
+
+        CopyTree(Path s, Path t, boolean preserveAttributes,
+                Generic_IOStats stats) {
+            this.s = s;
+            this.t = t;
+            this.preserveAttributes = preserveAttributes;
+            this.stats = stats;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Files.createDirectories(t);
+                stats.addDirectory();
+            } catch (IOException ex) {
+                stats.addFailure(ex);
+                return;
+            }
+            List<CopyTree> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(s)) {
+                for (Path p : ds) {
+                    Path q = t.resolve(p.getFileName().toString());
+                    try {
+                        BasicFileAttributes a = Files.readAttributes(p,
+                                BasicFileAttributes.class, NOFOLLOW_LINKS);
+                        if (a.isDirectory()) {
+                            CopyTree c = new CopyTree(p, q,
+                                    preserveAttributes, stats);
+                            c.fork();
+                            subtasks.add(c);
+                        } else if (a.isRegularFile()) {
+                            copyFile(p, q, preserveAttributes, stats);
+                        } else {
+                            long start = System.nanoTime();
+                            Files.copy(p, q, NOFOLLOW_LINKS, REPLACE_EXISTING);
+                            stats.addFile(0L, System.nanoTime() - start);
+                        }
+                    } catch (IOException ex) {
+                        stats.addFailure(ex);
+                    }
+                }
+            } catch (IOException ex) {
+                stats.addFailure(ex);
+            } catch (DirectoryIteratorException ex) {
+                stats.addFailure(ex.getCause());
+            }
+            for (CopyTree c : subtasks) {
+                c.join();
+            }
+            if (preserveAttributes) {
+                try {
+                    copyAttributes(s, t);
+                } catch (IOException ex) {
+                    stats.addFailure(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * A task for deleting a directory for {@link #deleteParallel(Path, int)}.
+     */
+    private static class DeleteTree extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path d;
+        private final Generic_IOStats stats;
+
+        DeleteTree(Path d, Generic_IOStats stats) {
+            this.d = d;
+            this.stats = stats;
+        }
+
+        /**
+         * Deletes the file or link at p.
+         *
+         * @param p The Path to delete.
+         * @param stats The stats to add to.
+         */
+        static void deleteFile(Path p, Generic_IOStats stats) {
+            long start = System.nanoTime();
+            try {
+                long size = Files.readAttributes(p, BasicFileAttributes.class,
+                        NOFOLLOW_LINKS).size();
+                Files.delete(p);
+                stats.addFile(size, System.nanoTime() - start);
+            } catch (IOException ex) {
+                stats.addFailure(ex);
+            }
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteTree> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(d)) {
+                for (Path p : ds) {
+                    if (Files.isDirectory(p, NOFOLLOW_LINKS)) {
+                        DeleteTree dt = new DeleteTree(p, stats);
+                        dt.fork();
+                        subtasks.add(dt);
+                    } else {
+                        deleteFile(p, stats);
+                    }
+                }
+            } catch (IOException ex) {
+                stats.addFailure(ex);
+            } catch (DirectoryIteratorException ex) {
+                stats.addFailure(ex.getCause());
+            }
+            for (DeleteTree dt : subtasks) {
+                dt.join();
+            }
+            try {
+                Files.delete(d);
+                stats.addDirectory();
+            } catch (IOException ex) {
+                stats.addFailure(ex);
+            }
+        }
+    }
     
     /**
      * @param p The Generic_Path of a file.
@@ -1020,9 +1424,13 @@ public class Generic_IO extends Generic_Object {
      * @return The file of a newly created file in dir. The name of the file
      * will begin with prefix and end with suffix. If a file already exists with
      * a name which is just the prefix appended to the suffix, then a number is
-     * inserted between these two parts of the filename. The first number tried
-     * is 0, the number then increases by 1 each try.
-     * @throws java.io.IOException If dir exists and is not a directory.
+     * inserted between these two parts of the filename. The number is one more
+     * than the largest already used for prefix and suffix in dir when it was
+     * first looked at, and increases by 1 each time. If dir has since been
+     * deleted and created again, or has not been used for a while, it is
+     * looked at again.
+     * @throws java.io.IOException If dir exists and is not a directory or if
+     * otherwise encountered.
      */
     public static Path createNewFile(Path dir, String prefix, String suffix)
             throws IOException {
@@ -1034,60 +1442,135 @@ public class Generic_IO extends Generic_Object {
         } else {
             Files.createDirectories(dir);
         }
-        Path r = null;
-        try {
-            if (prefix == null) {
-                prefix = "";
-            }
-            if (suffix == null) {
-                suffix = "";
-            }
-            do {
-                r = getNewFile(dir, prefix, suffix);
-            } while (!Files.exists(Files.createFile(r)));
-        } catch (IOException ioe0) {
-            String methodName = Generic_IO.class.getName()
-                    + ".createNewFile(Path,String,String)";
-            if (r != null) {
-                System.out.println("Path " + r.toString() + " in " + methodName);
+        if (prefix == null) {
+            prefix = "";
+        }
+        if (suffix == null) {
+            suffix = "";
+        }
+        FileCounter c = getFileCounter(dir, prefix, suffix);
+        while (true) {
+            Path r;
+            if (!c.plain.getAndSet(true)) {
+                r = Paths.get(dir.toString(), prefix + suffix);
             } else {
-                System.out.println("Path null in " + methodName);
+                r = Paths.get(dir.toString(), prefix + c.next.getAndIncrement()
+                        + suffix);
+            }
+            try {
+                return Files.createFile(r);
+            } catch (FileAlreadyExistsException ex) {
+                // Created by something else, so try the next.
             }
-            ioe0.printStackTrace(System.err);
         }
-        return r;
     }
 
     /**
-     * This attempts to return a new file in the directory {@code dir}. The file
-     * will have a name starting {@code prefix} and ending {@code suffix}. If
-     * such a file already exists then a n is inserted between the
-     * {@code prefix} and {@code suffix}, where n is a positive long. Firstly n
-     * = 0 is tried and if this file already exists then n = 1 is tried and so
-     * on until a unique file is returned.
+     * For allocating the names of new files with a given prefix and suffix in
+     * a directory.
+     */
+    private static class FileCounter {
+
+        /**
+         * Set true once the name without a number has been allocated.
+         */
+        final AtomicBoolean plain;
+
+        /**
+         * The next number.
+         */
+        final AtomicLong next;
+
+        /**
+         * The file key, or if there is none the creation time, of the
+         * directory when it was scanned.
+         */
+        final Object dirID;
+
+        FileCounter(boolean plain, long next, Object dirID) {
+            this.plain = new AtomicBoolean(plain);
+            this.next = new AtomicLong(next);
+            this.dirID = dirID;
+        }
+    }
+
+    /**
+     * The maximum number of FileCounters kept.
+     */
+    public static final int MAX_FILE_COUNTERS = 1024;
+
+    /**
+     * The FileCounters for {@link #createNewFile(Path, String, String)} keyed
+     * by directory, prefix and suffix. The least recently used is dropped
+     * when there are more than {@link #MAX_FILE_COUNTERS}.
+     */
+    private static final Map<List<String>, FileCounter> FILE_COUNTERS
+            = Collections.synchronizedMap(
+                    new LinkedHashMap<List<String>, FileCounter>(16, 0.75f,
+                            true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<List<String>, FileCounter> e) {
+                    return size() > MAX_FILE_COUNTERS;
+                }
+            });
+
+    /**
+     * Gets the FileCounter for prefix and suffix in dir, creating it with a
+     * single scan of dir if there is not one. A FileCounter is reused only
+     * while dir has the same file key (or creation time if the file system
+     * has no file keys) as when it was scanned, so if dir is deleted and
+     * created again it is scanned again. At most {@link #MAX_FILE_COUNTERS}
+     * are kept, so a directory not used for a while is also scanned again.
      *
-     * @param dir The directory in which to return the File.
+     * @param dir The directory.
      * @param prefix The first part of the filename.
      * @param suffix The last part of the filename.
-     * @return A File for a file which is thought not to exist.
+     * @return The FileCounter.
+     * @throws java.io.IOException If encountered.
      */
-    private static Path getNewFile(Path dir, String prefix, String suffix) {
-        Path r;
-        if (prefix.isEmpty() && suffix.isEmpty()) {
-            long n = 0;
-            do {
-                r = Paths.get(dir.toString(), "" + n);
-                n++;
-            } while (Files.exists(r));
-        } else {
-            r = Paths.get(dir.toString(), prefix + suffix);
-            if (Files.exists(r)) {
-                long n = 0;
-                do {
-                    r = Paths.get(dir.toString(), prefix + n + suffix);
-                    n++;
-                } while (Files.exists(r));
+    private static FileCounter getFileCounter(Path dir, String prefix,
+            String suffix) throws IOException {
+        List<String> k = Arrays.asList(dir.toAbsolutePath().normalize()
+                .toString(), prefix, suffix);
+        BasicFileAttributes a = Files.readAttributes(dir,
+                BasicFileAttributes.class);
+        Object id = a.fileKey() == null ? a.creationTime() : a.fileKey();
+        FileCounter c = FILE_COUNTERS.get(k);
+        if (c != null && c.dirID.equals(id)) {
+            return c;
+        }
+        String plainName = prefix + suffix;
+        boolean plain = plainName.isEmpty();
+        long max = -1L;
+        try (DirectoryStream<Path> s = Files.newDirectoryStream(dir)) {
+            for (Path p : s) {
+                String n = p.getFileName().toString();
+                if (n.equals(plainName)) {
+                    plain = true;
+                } else if (n.length() > plainName.length()
+                        && n.startsWith(prefix) && n.endsWith(suffix)) {
+                    String m = n.substring(prefix.length(),
+                            n.length() - suffix.length());
+                    if (m.chars().allMatch(Character::isDigit)) {
+                        try {
+                            max = Math.max(max, Long.parseLong(m));
+                        } catch (NumberFormatException ex) {
+                            // Too big to be one of ours.
+                        }
+                    }
+                }
+            }
+        }
+        FileCounter r = new FileCounter(plain, max + 1L, id);
+        synchronized (FILE_COUNTERS) {
+            c = FILE_COUNTERS.get(k);
+            if (c != null && c.dirID.equals(id)) {
+                return c;
             }
+            FILE_COUNTERS.put(k, r);
         }
         return r;
     }
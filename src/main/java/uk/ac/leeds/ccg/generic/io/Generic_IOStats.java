@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * For accumulating statistics about file operations such as copying. The
+ * counts can be added to from many threads at once.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_IOStats {
+
+    /**
+     * The maximum number of errors kept.
+     */
+    public static final int MAX_ERRORS = 1000;
+
+    /**
+     * The number of files.
+     */
+    protected final LongAdder files = new LongAdder();
+
+    /**
+     * The number of directories.
+     */
+    protected final LongAdder directories = new LongAdder();
+
+    /**
+     * The number of bytes.
+     */
+    protected final LongAdder bytes = new LongAdder();
+
+    /**
+     * The time taken in nanoseconds summed over files.
+     */
+    protected final LongAdder nanos = new LongAdder();
+
+    /**
+     * The number of failures.
+     */
+    protected final LongAdder failures = new LongAdder();
+
+    /**
+     * The first {@link #MAX_ERRORS} errors.
+     */
+    protected final ConcurrentLinkedQueue<IOException> errors
+            = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of errors kept, counted so that no more than
+     * {@link #MAX_ERRORS} are kept however many threads add failures.
+     */
+    protected final AtomicInteger errorCount = new AtomicInteger();
+
+    /**
+     * When this was created in nanoseconds.
+     */
+    protected final long start = System.nanoTime();
+
+    /**
+     * Create a new instance.
+     */
+    public Generic_IOStats() {
+    }
+
+    /**
+     * Adds a file.
+     *
+     * @param b The number of bytes.
+     * @param t The time taken in nanoseconds.
+     */
+    public void addFile(long b, long t) {
+        files.increment();
+        bytes.add(b);
+        nanos.add(t);
+    }
+
+    /**
+     * Adds a directory.
+     */
+    public void addDirectory() {
+        directories.increment();
+    }
+
+    /**
+     * Adds a failure and keeps ex if fewer than {@link #MAX_ERRORS} have
+     * been kept.
+     *
+     * @param ex The error.
+     */
+    public void addFailure(IOException ex) {
+        failures.increment();
+        if (errorCount.get() < MAX_ERRORS
+                && errorCount.incrementAndGet() <= MAX_ERRORS) {
+            errors.add(ex);
+        }
+    }
+
+    /**
+     * @return The number of files.
+     */
+    public long getFiles() {
+        return files.sum();
+    }
+
+    /**
+     * @return The number of directories.
+     */
+    public long getDirectories() {
+        return directories.sum();
+    }
+
+    /**
+     * @return The number of bytes.
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return The time taken in nanoseconds summed over files. When files are
+     * done in parallel this is more than the elapsed time.
+     */
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    /**
+     * @return The number of failures.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return The first {@link #MAX_ERRORS} errors.
+     */
+    public List<IOException> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    /**
+     * @return The elapsed time since this was created in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return The number of bytes per second of elapsed time.
+     */
+    public double getBytesPerSecond() {
+        long t = getElapsedNanos();
+        return t == 0L ? 0d : getBytes() * 1e9d / t;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(files=" + getFiles()
+                + ", directories=" + getDirectories() + ", bytes="
+                + getBytes() + ", failures=" + getFailures()
+                + ", bytesPerSecond=" + (long) getBytesPerSecond() + ")";
+    }
+}
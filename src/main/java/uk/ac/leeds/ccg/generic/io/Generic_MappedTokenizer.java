@@ -0,0 +1,516 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * A tokenizer for delimited text files that memory maps the file and scans
+ * its bytes against a table of character classes. It is a faster
+ * alternative to a {@link StreamTokenizer} with one of the syntaxes set by
+ * {@link Generic_IO#setStreamTokenizerSyntax1(StreamTokenizer)} and the like,
+ * and the table for any of these is made with {@link #getClasses(Consumer)}
+ * so that tokens are the same, for example:
+ * <pre>{@code
+ * byte[] classes = Generic_MappedTokenizer.getClasses(
+ *         Generic_IO::setStreamTokenizerSyntax1);
+ * try (Generic_MappedTokenizer t = new Generic_MappedTokenizer(p, classes)) {
+ *     while (t.nextToken() != Generic_MappedTokenizer.TT_EOF) {
+ *         ...
+ *     }
+ * }
+ * }</pre>
+ *
+ * Tokens are not copied into Strings, a token is its offset and length in
+ * the file, and {@link #parseLong()} and {@link #parseDouble()} parse the
+ * bytes in place. {@link #getString()} is there for when a String is wanted.
+ *
+ * Bytes are classed as the characters with the same code, and bytes of 128
+ * and above are always word bytes so that UTF-8 encoded characters stay
+ * whole. Unlike StreamTokenizer, "\r\n" is one end of line token. Files
+ * larger than a single mapping can be are mapped a window at a time, and a
+ * word must fit in a window.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_MappedTokenizer implements AutoCloseable {
+
+    /**
+     * The type of token at the end of the file.
+     */
+    public static final int TT_EOF = StreamTokenizer.TT_EOF;
+
+    /**
+     * The type of token at the end of a line.
+     */
+    public static final int TT_EOL = StreamTokenizer.TT_EOL;
+
+    /**
+     * The type of token for a word.
+     */
+    public static final int TT_WORD = StreamTokenizer.TT_WORD;
+
+    /**
+     * The class of a byte that is a token on its own. The type of the token
+     * is the byte.
+     */
+    public static final byte ORDINARY = 0;
+
+    /**
+     * The class of a byte that is part of a word.
+     */
+    public static final byte WORD = 1;
+
+    /**
+     * The class of a byte that is skipped.
+     */
+    public static final byte WHITESPACE = 2;
+
+    /**
+     * The class of a byte that ends a line.
+     */
+    public static final byte EOL = 3;
+
+    /**
+     * The default size of each window of the file that is mapped.
+     */
+    public static final int WINDOW = 1 << 30;
+
+    /**
+     * Powers of 10 that are exactly doubles.
+     */
+    private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5,
+        1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+        1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * The file.
+     */
+    protected final FileChannel fc;
+
+    /**
+     * The size of the file.
+     */
+    protected final long size;
+
+    /**
+     * The class of each byte value.
+     */
+    protected final byte[] classes;
+
+    /**
+     * The size of each window.
+     */
+    protected final int window;
+
+    /**
+     * The window of the file that is mapped.
+     */
+    protected MappedByteBuffer buf;
+
+    /**
+     * The position in the file of the start of {@link #buf}.
+     */
+    protected long base;
+
+    /**
+     * The number of bytes in {@link #buf}.
+     */
+    protected int len;
+
+    /**
+     * The position in the file to carry on from.
+     */
+    protected long pos;
+
+    /**
+     * The type of the current token.
+     */
+    protected int type;
+
+    /**
+     * The position in the file of the current token.
+     */
+    protected long offset;
+
+    /**
+     * The length of the current token.
+     */
+    protected int length;
+
+    /**
+     * The line number counting from 1. This is incremented by reading an end
+     * of line, so for an end of line token it is the number of the next line.
+     */
+    protected long lineno;
+
+    /**
+     * @param p The path of the file.
+     * @param classes The class of each byte value.
+     * @throws IOException If encountered.
+     */
+    public Generic_MappedTokenizer(Path p, byte[] classes) throws IOException {
+        this(p, classes, WINDOW);
+    }
+
+    /**
+     * @param p The path of the file.
+     * @param classes The class of each byte value.
+     * @param window The size of each window of the file that is mapped.
+     * @throws IOException If encountered.
+     */
+    public Generic_MappedTokenizer(Path p, byte[] classes, int window)
+            throws IOException {
+        if (classes.length != 256) {
+            throw new IllegalArgumentException("classes.length != 256");
+        }
+        if (window < 2) {
+            throw new IllegalArgumentException("window cannot be < 2.");
+        }
+        this.classes = classes;
+        this.window = window;
+        fc = FileChannel.open(p, READ);
+        size = fc.size();
+        lineno = 1L;
+        type = TT_EOF;
+    }
+
+    /**
+     * Makes a table of the class of each byte value that matches a
+     * StreamTokenizer with syntax set by s. Each character from 0 to 127 is
+     * tokenized on its own with a StreamTokenizer to find its class.
+     *
+     * @param s Sets the syntax of a StreamTokenizer, for example
+     * {@code Generic_IO::setStreamTokenizerSyntax1}.
+     * @return The class of each byte value.
+     * @throws IOException If encountered.
+     */
+    public static byte[] getClasses(Consumer<StreamTokenizer> s)
+            throws IOException {
+        byte[] r = new byte[256];
+        for (int c = 0; c < 128; c++) {
+            StreamTokenizer st = new StreamTokenizer(new StringReader(
+                    String.valueOf((char) c)));
+            s.accept(st);
+            int t = st.nextToken();
+            if (c == '\n' || c == '\r') {
+                r[c] = t == TT_EOF ? WHITESPACE : EOL;
+            } else if (t == TT_WORD) {
+                r[c] = WORD;
+            } else if (t == TT_EOF) {
+                r[c] = WHITESPACE;
+            } else {
+                r[c] = ORDINARY;
+            }
+        }
+        for (int c = 128; c < 256; c++) {
+            r[c] = WORD;
+        }
+        return r;
+    }
+
+    /**
+     * Maps the window of the file starting at from.
+     *
+     * @param from The position in the file.
+     * @throws IOException If encountered.
+     */
+    protected void map(long from) throws IOException {
+        base = from;
+        len = (int) Math.min(window, size - from);
+        buf = fc.map(FileChannel.MapMode.READ_ONLY, base, len);
+    }
+
+    /**
+     * Reads the next token.
+     *
+     * @return The type of the token which is {@link #TT_EOF},
+     * {@link #TT_EOL}, {@link #TT_WORD} or for an ordinary byte the byte.
+     * @throws IOException If encountered or if a word does not fit in a
+     * window.
+     */
+    public int nextToken() throws IOException {
+        while (true) {
+            if (pos >= size) {
+                type = TT_EOF;
+                offset = size;
+                length = 0;
+                return type;
+            }
+            int i = (int) (pos - base);
+            if (buf == null || pos < base || i > len - 2
+                    && base + len < size) {
+                map(pos);
+                i = 0;
+            }
+            int c = buf.get(i) & 0xFF;
+            byte k = classes[c];
+            if (k == WHITESPACE) {
+                if (c == '\n') {
+                    lineno++;
+                }
+                pos++;
+                continue;
+            }
+            offset = pos;
+            if (k == WORD) {
+                int j = i + 1;
+                while (true) {
+                    while (j < len && classes[buf.get(j) & 0xFF] == WORD) {
+                        j++;
+                    }
+                    if (j < len || base + len >= size) {
+                        break;
+                    }
+                    if (i == 0) {
+                        throw new IOException("Word at " + offset + " is "
+                                + "longer than the window " + window + ".");
+                    }
+                    // The word may carry on past the window.
+                    map(offset);
+                    j -= i;
+                    i = 0;
+                }
+                length = j - i;
+                pos = offset + length;
+                type = TT_WORD;
+            } else if (k == EOL) {
+                length = c == '\r' && i + 1 < len && buf.get(i + 1) == '\n'
+                        ? 2 : 1;
+                pos += length;
+                lineno++;
+                type = TT_EOL;
+            } else {
+                length = 1;
+                pos++;
+                type = c;
+            }
+            return type;
+        }
+    }
+
+    /**
+     * @return The type of the current token.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return The position in the file of the current token.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The length in bytes of the current token.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The line number counting from 1.
+     */
+    public long getLineNumber() {
+        return lineno;
+    }
+
+    /**
+     * @param i The index in the current token.
+     * @return The byte at i in the current token.
+     */
+    public byte byteAt(int i) {
+        return buf.get((int) (offset - base) + i);
+    }
+
+    /**
+     * @return The current token decoded as UTF-8.
+     */
+    public String getString() {
+        byte[] b = new byte[length];
+        ByteBuffer d = buf.duplicate();
+        d.position((int) (offset - base));
+        d.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        if (type == TT_WORD) {
+            return getString();
+        }
+        return type == TT_EOF ? "EOF" : type == TT_EOL ? "EOL"
+                : String.valueOf((char) type);
+    }
+
+    /**
+     * Parses the current token as a decimal long without creating any
+     * Objects unless it is not one.
+     *
+     * @return The long.
+     * @throws NumberFormatException If the current token is not a long.
+     */
+    public long parseLong() {
+        int i = (int) (offset - base);
+        int e = i + length;
+        if (length == 0) {
+            throw new NumberFormatException("Empty token.");
+        }
+        byte b = buf.get(i);
+        boolean neg = b == '-';
+        if (neg || b == '+') {
+            i++;
+            if (i == e) {
+                throw new NumberFormatException(toString());
+            }
+        }
+        // Accumulate negatively so Long.MIN_VALUE can be parsed.
+        long limit = neg ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10L;
+        long r = 0L;
+        for (; i < e; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9 || r < multmin) {
+                throw new NumberFormatException(toString());
+            }
+            r *= 10L;
+            if (r < limit + d) {
+                throw new NumberFormatException(toString());
+            }
+            r -= d;
+        }
+        return neg ? r : -r;
+    }
+
+    /**
+     * Parses the current token as a double. Tokens of the form
+     * [+-]digits[.digits][(e|E)[+-]digits] with up to 15 significant digits
+     * and a small enough exponent are parsed in place without creating any
+     * Objects and are correctly rounded. Other tokens are parsed using
+     * {@link Double#parseDouble(String)}.
+     *
+     * @return The double.
+     * @throws NumberFormatException If the current token is not a double.
+     */
+    public double parseDouble() {
+        int i = (int) (offset - base);
+        int e = i + length;
+        if (length == 0) {
+            throw new NumberFormatException("Empty token.");
+        }
+        byte b = buf.get(i);
+        boolean neg = b == '-';
+        if (neg || b == '+') {
+            i++;
+        }
+        long m = 0L;
+        int digits = 0;
+        int exp = 0;
+        boolean any = false;
+        while (i < e && isDigit(b = buf.get(i))) {
+            if (digits < 18) {
+                m = m * 10L + (b - '0');
+                if (m != 0L) {
+                    digits++;
+                }
+            } else {
+                digits++;
+                exp++;
+            }
+            any = true;
+            i++;
+        }
+        if (i < e && buf.get(i) == '.') {
+            i++;
+            while (i < e && isDigit(b = buf.get(i))) {
+                if (digits < 18) {
+                    m = m * 10L + (b - '0');
+                    if (m != 0L) {
+                        digits++;
+                    }
+                    exp--;
+                } else {
+                    digits++;
+                }
+                any = true;
+                i++;
+            }
+        }
+        if (any && i < e && ((b = buf.get(i)) == 'e' || b == 'E')) {
+            i++;
+            boolean eneg = false;
+            if (i < e && ((b = buf.get(i)) == '-' || b == '+')) {
+                eneg = b == '-';
+                i++;
+            }
+            int x = 0;
+            boolean xany = false;
+            while (i < e && isDigit(b = buf.get(i))) {
+                if (x < 100000) {
+                    x = x * 10 + (b - '0');
+                }
+                xany = true;
+                i++;
+            }
+            if (!xany) {
+                any = false;
+            }
+            exp += eneg ? -x : x;
+        }
+        if (any && i == e) {
+            if (m == 0L) {
+                return neg ? -0d : 0d;
+            }
+            if (digits <= 15 && exp >= -22 && exp <= 22) {
+                double v = exp < 0 ? m / POW10[-exp] : m * POW10[exp];
+                return neg ? -v : v;
+            }
+        }
+        return Double.parseDouble(getString());
+    }
+
+    /**
+     * @param b The byte.
+     * @return true if b is an ASCII digit.
+     */
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    public void close() throws IOException {
+        buf = null;
+        fc.close();
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A packed alternative to the directory layout of a {@link Generic_FileStore}.
+ * Rather than each Object being stored in its own file in its own leaf
+ * directory, records (see {@link Generic_FileStoreRecord}) are appended to
+ * segment files which are rolled over once they reach {@link #segmentSize}
+ * bytes. An index file which is memory mapped holds for each identifier the
+ * segment, offset and length of its record, so getting an Object is a single
+ * positioned read.
+ *
+ * The index file starts with a header of {@link #INDEX_HEADER_LENGTH} bytes
+ * (a magic number, a version, the segment size and the number of
+ * identifiers). Then for each identifier there are two longs: the offset of
+ * the record in its segment; and, the segment number plus one shifted left by
+ * 32 bits added to the length of the record. If the second long is 0 there is
+ * no record for the identifier.
+ *
+ * Use {@link #fromFileStore(Generic_FileStore, Path, long)} and
+ * {@link #toFileStore(Path, String, short)} to convert between the two
+ * layouts.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_PackedStore implements AutoCloseable {
+
+    /**
+     * The name of the index file.
+     */
+    public static final String INDEX = "index";
+
+    /**
+     * The prefix of the name of each segment file.
+     */
+    public static final String SEGMENT = "segment";
+
+    /**
+     * The default maximum size of a segment file in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * For checking the index is an index.
+     */
+    protected static final int INDEX_MAGIC = 0x47505331;
+
+    /**
+     * The version of the index format.
+     */
+    protected static final int INDEX_VERSION = 1;
+
+    /**
+     * The length of the index header in bytes.
+     */
+    protected static final int INDEX_HEADER_LENGTH = 32;
+
+    /**
+     * The length of each index entry in bytes.
+     */
+    protected static final int ENTRY_LENGTH = 16;
+
+    /**
+     * The most identifiers the index can have room for, as it is mapped in
+     * one buffer which can be no bigger than Integer.MAX_VALUE bytes.
+     */
+    protected static final long MAX_CAPACITY = (Integer.MAX_VALUE
+            - INDEX_HEADER_LENGTH) / ENTRY_LENGTH;
+
+    /**
+     * The directory of the store.
+     */
+    protected final Path dir;
+
+    /**
+     * The maximum size of a segment file in bytes. A record larger than this
+     * is written to a segment of its own.
+     */
+    protected final long segmentSize;
+
+    /**
+     * The channel of the index file.
+     */
+    protected final FileChannel indexChannel;
+
+    /**
+     * The memory mapped index.
+     */
+    protected volatile MappedByteBuffer index;
+
+    /**
+     * The number of identifiers that {@link #index} has room for.
+     */
+    protected long capacity;
+
+    /**
+     * The number of identifiers.
+     */
+    protected volatile long count;
+
+    /**
+     * The channels of the segment files.
+     */
+    protected final List<FileChannel> segments;
+
+    /**
+     * The codec used to write Objects.
+     */
+    protected Generic_Codec<Object> codec;
+
+    /**
+     * Opens the packed store in {@code dir} creating it if it does not exist.
+     *
+     * @param dir The directory of the store.
+     * @param segmentSize The maximum size of a segment file in bytes. This is
+     * ignored if the store already exists.
+     * @throws IOException If encountered or if there is an index that is not
+     * valid.
+     */
+    public Generic_PackedStore(Path dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        Path ip = Paths.get(dir.toString(), INDEX);
+        boolean exists = Files.exists(ip);
+        indexChannel = FileChannel.open(ip, CREATE, READ, WRITE);
+        segments = new ArrayList<>();
+        codec = Generic_Codecs.JAVA;
+        if (exists) {
+            ByteBuffer h = ByteBuffer.allocate(INDEX_HEADER_LENGTH);
+            while (h.hasRemaining() && indexChannel.read(h) >= 0) {
+            }
+            h.flip();
+            if (h.remaining() < INDEX_HEADER_LENGTH
+                    || h.getInt() != INDEX_MAGIC
+                    || h.getInt() != INDEX_VERSION) {
+                indexChannel.close();
+                throw new IOException("Path " + ip + " is not a valid index.");
+            }
+            this.segmentSize = h.getLong();
+            count = h.getLong();
+            capacity = Math.max(1024L, (indexChannel.size()
+                    - INDEX_HEADER_LENGTH) / ENTRY_LENGTH);
+            map();
+            int i = 0;
+            Path sp = getSegmentPath(i);
+            while (Files.exists(sp)) {
+                segments.add(FileChannel.open(sp, READ, WRITE));
+                i++;
+                sp = getSegmentPath(i);
+            }
+        } else {
+            this.segmentSize = segmentSize;
+            count = 0;
+            capacity = 1024L;
+            map();
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, INDEX_VERSION);
+            index.putLong(8, segmentSize);
+            index.putLong(16, 0L);
+        }
+    }
+
+    /**
+     * Opens the packed store in {@code dir} creating it with a segment size of
+     * {@link #DEFAULT_SEGMENT_SIZE} if it does not exist.
+     *
+     * @param dir The directory of the store.
+     * @throws IOException If encountered.
+     */
+    public Generic_PackedStore(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Maps the index for {@link #capacity} identifiers.
+     *
+     * @throws IOException If encountered.
+     */
+    private void map() throws IOException {
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER_LENGTH + capacity * ENTRY_LENGTH);
+    }
+
+    /**
+     * @param i The segment number.
+     * @return The path of the segment file.
+     */
+    protected Path getSegmentPath(int i) {
+        return Paths.get(dir.toString(), SEGMENT + i);
+    }
+
+    /**
+     * @return The number of identifiers. The identifiers are from 0 to this
+     * minus 1.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return {@link #segmentSize}.
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return {@link #codec}.
+     */
+    public Generic_Codec<Object> getCodec() {
+        return codec;
+    }
+
+    /**
+     * @param c What {@link #codec} is set to.
+     */
+    public void setCodec(Generic_Codec<Object> c) {
+        codec = c;
+    }
+
+    /**
+     * Encodes {@code o} and appends the record to the current segment.
+     *
+     * @param o The Object to add.
+     * @return The identifier of the Object.
+     * @throws IOException If encountered.
+     */
+    public synchronized long add(Object o) throws IOException {
+        return addRecord(Generic_FileStoreRecord.encode(o, codec));
+    }
+
+    /**
+     * Appends a record to the current segment.
+     *
+     * @param record A buffer containing the record from its position to its
+     * limit.
+     * @return The identifier of the record.
+     * @throws IOException If encountered.
+     */
+    public synchronized long addRecord(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        int s = segments.size() - 1;
+        if (s < 0 || (segments.get(s).size() > 0
+                && segments.get(s).size() + length > segmentSize)) {
+            s++;
+            segments.add(FileChannel.open(getSegmentPath(s), CREATE, READ,
+                    WRITE));
+        }
+        FileChannel fc = segments.get(s);
+        long offset = fc.size();
+        long p = offset;
+        while (record.hasRemaining()) {
+            p += fc.write(record, p);
+        }
+        long id = count;
+        setEntry(id, offset, (((long) s + 1L) << 32) | length);
+        return id;
+    }
+
+    /**
+     * Adds an identifier with no record.
+     *
+     * @return The identifier.
+     * @throws IOException If encountered.
+     */
+    public synchronized long skip() throws IOException {
+        long id = count;
+        setEntry(id, 0L, 0L);
+        return id;
+    }
+
+    private void setEntry(long id, long offset, long segmentAndLength)
+            throws IOException {
+        if (id >= MAX_CAPACITY) {
+            throw new IOException("Index too big.");
+        }
+        if (id >= capacity) {
+            long c = capacity;
+            capacity = Math.min(capacity * 2L, MAX_CAPACITY);
+            try {
+                map();
+            } catch (IOException | RuntimeException ex) {
+                capacity = c;
+                throw ex;
+            }
+        }
+        int i = (int) (INDEX_HEADER_LENGTH + id * ENTRY_LENGTH);
+        index.putLong(i, offset);
+        index.putLong(i + 8, segmentAndLength);
+        count = id + 1L;
+        index.putLong(16, count);
+    }
+
+    /**
+     * Reads the record for id.
+     *
+     * @param id The identifier.
+     * @return A buffer containing the record or null if there is no record for
+     * id.
+     * @throws IOException If encountered.
+     */
+    public ByteBuffer getRecord(long id) throws IOException {
+        if (id < 0 || id >= count) {
+            return null;
+        }
+        MappedByteBuffer ix = index;
+        int i = (int) (INDEX_HEADER_LENGTH + id * ENTRY_LENGTH);
+        long offset = ix.getLong(i);
+        long sl = ix.getLong(i + 8);
+        if (sl == 0L) {
+            return null;
+        }
+        int s = (int) (sl >>> 32) - 1;
+        int length = (int) sl;
+        FileChannel fc;
+        synchronized (this) {
+            fc = segments.get(s);
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        long p = offset;
+        while (b.hasRemaining()) {
+            int n = fc.read(b, p);
+            if (n < 0) {
+                throw new IOException("Truncated segment " + s + ".");
+            }
+            p += n;
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Reads and decodes the Object for id.
+     *
+     * @param id The identifier.
+     * @return The Object or null if there is no record for id.
+     * @throws IOException If encountered.
+     * @throws ClassNotFoundException If the class of the Object cannot be
+     * found.
+     */
+    public Object get(long id) throws IOException, ClassNotFoundException {
+        ByteBuffer b = getRecord(id);
+        if (b == null) {
+            return null;
+        }
+        return Generic_FileStoreRecord.decode(b);
+    }
+
+    /**
+     * Forces the index and segments to be written to the storage device.
+     *
+     * @throws IOException If encountered.
+     */
+    public synchronized void force() throws IOException {
+        index.force();
+        for (FileChannel fc : segments) {
+            fc.force(false);
+        }
+    }
+
+    /**
+     * Forces and closes the index and segment files.
+     *
+     * @throws IOException If encountered.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        for (FileChannel fc : segments) {
+            fc.close();
+        }
+        indexChannel.close();
+    }
+
+    /**
+     * Creates a packed store in {@code dir} from the Objects in {@code fs}.
+     * The bytes of each leaf are copied without being deserialized and leaves
+     * with no file get no record.
+     *
+     * @param fs The file store to convert.
+     * @param dir The directory of the packed store which should not already
+     * exist.
+     * @param segmentSize The maximum size of a segment file in bytes.
+     * @return The packed store.
+     * @throws IOException If encountered.
+     */
+    public static Generic_PackedStore fromFileStore(Generic_FileStore fs,
+            Path dir, long segmentSize) throws IOException {
+        if (Files.exists(dir)) {
+            throw new IOException("Path " + dir + " already exists.");
+        }
+        Generic_PackedStore r = new Generic_PackedStore(dir, segmentSize);
+        long n = fs.getNextID();
+        for (long id = 0; id <= n; id++) {
+            Path p = Paths.get(fs.getPath(id).toString(), fs.name);
+            if (Files.exists(p)) {
+                r.addRecord(toRecord(Files.readAllBytes(p)));
+            } else {
+                r.skip();
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Creates a file store from this. The bytes of each record are copied
+     * without being deserialized.
+     *
+     * @param p The path to where the file store will be initialised.
+     * @param name The directory file name for the base directory of the file
+     * store.
+     * @param range The maximum number of directories in each level of the file
+     * store.
+     * @return The file store.
+     * @throws IOException If encountered.
+     * @throws Exception If range is less than 0.
+     */
+    public Generic_FileStore toFileStore(Path p, String name, short range)
+            throws IOException, Exception {
+        Generic_FileStore r = new Generic_FileStore(p, name, range);
+        long n = count;
+        if (n > 1) {
+            r.addDirs(n - 1L, true);
+        }
+        for (long id = 0; id < n; id++) {
+            ByteBuffer b = getRecord(id);
+            if (b != null) {
+                Files.write(Paths.get(r.getPath(id).toString(), name),
+                        b.array());
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param b The bytes of a leaf file.
+     * @return A buffer containing a record with {@code b} as is if {@code b}
+     * is a record, otherwise with {@code b} as the payload of a record with
+     * the identifier of {@link Generic_CodecJava}.
+     */
+    private static ByteBuffer toRecord(byte[] b) {
+        if (b.length >= 2 && b[0] == Generic_FileStoreRecord.MAGIC0
+                && b[1] == Generic_FileStoreRecord.MAGIC1) {
+            return ByteBuffer.wrap(b);
+        }
+        return Generic_FileStoreRecord.wrap(Generic_CodecJava.ID, b);
+    }
+}
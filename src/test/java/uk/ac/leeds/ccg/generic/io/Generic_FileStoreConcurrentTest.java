@@ -0,0 +1,260 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.leeds.ccg.generic.core.Generic_Strings;
+
+/**
+ * Tests for {@link Generic_FileStoreConcurrent} class.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_FileStoreConcurrentTest {
+
+    public Generic_FileStoreConcurrentTest() {
+    }
+
+    /**
+     * A multi-threaded stress test that checks no identifier is lost or
+     * duplicated and that readers can read what has been written while the
+     * file store grows deeper.
+     */
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        System.out.println("concurrentWriters");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testConcurrentWriters";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        short range = 10;
+        Generic_FileStoreConcurrent fs = new Generic_FileStoreConcurrent(p,
+                name, range);
+        int nWriters = 8;
+        int nReaders = 4;
+        int n = 1500;
+        long total = (long) nWriters * n;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicLongArray written = new AtomicLongArray((int) total + 1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService es = Executors.newFixedThreadPool(nWriters + nReaders);
+        List<Future<?>> writers = new ArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < nWriters; t++) {
+            writers.add(es.submit(() -> {
+                for (int i = 0; i < n; i++) {
+                    long id;
+                    if (i % 100 == 0) {
+                        // Reserve a batch of 1.
+                        id = fs.addDirs(1, false)[0];
+                        fs.add(id, id);
+                    } else {
+                        id = fs.put(Long.valueOf(0));
+                        fs.add(id, id);
+                    }
+                    Assertions.assertTrue(ids.add(id));
+                    written.set((int) id, 1L);
+                }
+                return null;
+            }));
+        }
+        for (int t = 0; t < nReaders; t++) {
+            long seed = t;
+            readers.add(es.submit(() -> {
+                Random r = new Random(seed);
+                int reads = 0;
+                while (!done.get()) {
+                    long id = 1L + (long) (r.nextDouble() * fs.getNextID());
+                    if (id <= total && written.get((int) id) == 1L) {
+                        Assertions.assertEquals(id, fs.get(id));
+                        reads++;
+                    }
+                }
+                return reads;
+            }));
+        }
+        for (Future<?> f : writers) {
+            f.get();
+        }
+        done.set(true);
+        for (Future<?> f : readers) {
+            System.out.println("reads=" + f.get());
+        }
+        es.shutdown();
+        Assertions.assertEquals(total, ids.size());
+        Assertions.assertEquals(total, fs.getNextID());
+        for (long id = 1; id <= total; id++) {
+            Assertions.assertTrue(ids.contains(id));
+            Assertions.assertEquals(id, fs.get(id));
+        }
+        fs.sync();
+        Generic_FileStore fs2 = new Generic_FileStore(p2);
+        Assertions.assertEquals(fs.toString(), fs2.toString());
+        Assertions.assertTrue(fs2.verify());
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of Generic_FileStoreWriter for each policy.
+     */
+    @Test
+    public void testWriter() throws Exception {
+        System.out.println("writer");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testWriter";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStoreConcurrent fs = new Generic_FileStoreConcurrent(p,
+                name, (short) 10);
+        int n = 500;
+        List<CompletableFuture<Long>> fs1 = new ArrayList<>();
+        try (Generic_FileStoreWriter w = new Generic_FileStoreWriter(fs, 2,
+                16, Generic_FileStoreWriter.Policy.BLOCK)) {
+            for (int i = 0; i < n; i++) {
+                fs1.add(w.add("o" + i));
+            }
+            w.flush();
+            Assertions.assertEquals(0, w.getQueueDepth());
+            Assertions.assertEquals(n, w.getWritten());
+            Assertions.assertTrue(w.getMeanLatency() > 0);
+        }
+        for (int i = 0; i < n; i++) {
+            long id = fs1.get(i).get();
+            Assertions.assertEquals("o" + i, fs.get(id));
+        }
+        try (Generic_FileStoreWriter w = new Generic_FileStoreWriter(fs, 1,
+                1, Generic_FileStoreWriter.Policy.DROP)) {
+            for (int i = 0; i < n; i++) {
+                w.add(i);
+            }
+            w.flush();
+            Assertions.assertEquals(n, w.getWritten() + w.getDropped());
+        }
+        try (Generic_FileStoreWriter w = new Generic_FileStoreWriter(fs, 1,
+                1, Generic_FileStoreWriter.Policy.CALLER_RUNS)) {
+            for (int i = 0; i < n; i++) {
+                w.add(i);
+            }
+            w.flush();
+            Assertions.assertEquals(n, w.getWritten());
+        }
+        // A reserved identifier that cannot be written to is deleted.
+        try (Generic_FileStoreWriter w = new Generic_FileStoreWriter(fs)) {
+            CompletableFuture<Long> f = w.add(new Object());
+            w.flush();
+            Assertions.assertTrue(f.isCompletedExceptionally());
+            Assertions.assertEquals(1, w.getFailed());
+            Assertions.assertTrue(fs.isDeleted(fs.getNextID()));
+        }
+        Generic_FileStoreWriter w = new Generic_FileStoreWriter(fs);
+        w.close();
+        Assertions.assertThrows(IllegalStateException.class, () -> w.add(0));
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of Generic_FileStoreSharded with an existing file store joining as
+     * shard 0.
+     */
+    @Test
+    public void testSharded() throws Exception {
+        System.out.println("sharded");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic,
+                "testSharded");
+        if (Files.exists(p)) {
+            Generic_IO.delete(p, false);
+        }
+        Path d0 = Paths.get(p.toString(), "d0");
+        Path d1 = Paths.get(p.toString(), "d1");
+        Path d2 = Paths.get(p.toString(), "d2");
+        Files.createDirectories(d0);
+        Generic_FileStore a = new Generic_FileStore(d0, "s", (short) 10);
+        a.add(0);
+        for (int i = 1; i < 25; i++) {
+            a.addDir();
+            a.add(i);
+        }
+        Path config = Paths.get(p.toString(), "sharded.properties");
+        Generic_FileStoreSharded s = Generic_FileStoreSharded.join(config,
+                Paths.get(d0.toString(), "s"), List.of(d1, d2), "s",
+                (short) 10);
+        Assertions.assertEquals(3, s.getShards());
+        Assertions.assertEquals(24, s.getNextID());
+        Assertions.assertEquals(0, s.getShard(24));
+        Assertions.assertEquals(0, s.getShard(25));
+        Assertions.assertEquals(1, s.getShard(26));
+        Assertions.assertEquals(2, s.getShard(27));
+        Assertions.assertEquals(25, s.getLocalID(25));
+        Assertions.assertEquals(0, s.getLocalID(26));
+        Assertions.assertEquals(26, s.getLocalID(28));
+        for (int i = 25; i < 100; i++) {
+            Assertions.assertEquals(i, s.put(i));
+        }
+        List<Object> os = new ArrayList<>();
+        for (int i = 100; i < 400; i++) {
+            os.add(i);
+        }
+        long[] ids = s.putAll(os);
+        Assertions.assertEquals(100, ids[0]);
+        Assertions.assertEquals(399, ids[299]);
+        s.sync();
+        s = Generic_FileStoreSharded.open(config);
+        Assertions.assertEquals(399, s.getNextID());
+        long[] all = new long[400];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        Object[] r = s.getAll(all);
+        for (int i = 0; i < all.length; i++) {
+            Assertions.assertEquals(i, r[i]);
+        }
+        Assertions.assertEquals(s.getShardStore(1).getNextID(),
+                s.getShardStore(2).getNextID());
+        // The highest reserved identifier comes from the shards, so is right
+        // even if the configuration file was not written.
+        for (int i = 400; i < 405; i++) {
+            Assertions.assertEquals(i, s.put(i));
+        }
+        s = Generic_FileStoreSharded.open(config);
+        Assertions.assertEquals(404, s.getNextID());
+        Assertions.assertEquals(404, s.get(404));
+        Assertions.assertEquals(405, s.put(405));
+        Generic_IO.delete(p, false);
+    }
+}
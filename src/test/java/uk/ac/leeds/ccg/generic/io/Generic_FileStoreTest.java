@@ -17,9 +17,14 @@ package uk.ac.leeds.ccg.generic.io;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
@@ -113,6 +118,970 @@ public class Generic_FileStoreTest {
 //            Assertions.assertTrue(false);
 //        }
     }
+    /**
+     * Test of getPath method, of class Generic_FileStore.
+     */
+    @Test
+    public void testGetPath() throws IOException, Exception {
+        System.out.println("getPath");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testGetPath";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        short range = 10;
+        Generic_FileStore a = new Generic_FileStore(p, name, range);
+        for (long l = 0; l < 1234; l++) {
+            a.addDir();
+        }
+        for (long id = 0; id <= a.nextID; id++) {
+            Assertions.assertTrue(Files.isDirectory(a.getPath(id)));
+        }
+        Assertions.assertEquals(a.getPathNext().toString(),
+                a.getHighestLeaf().toString());
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * A benchmark for the getPath method, of class Generic_FileStore. This
+     * shows that the time taken to resolve a path does not grow with nextID.
+     */
+    @Test
+    public void testGetPath_Benchmark() throws IOException, Exception {
+        System.out.println("getPath benchmark");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testGetPathBenchmark";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name);
+        int n = 200000;
+        Random random = new Random(0);
+        for (long nextID = 1000L; nextID <= 1000000000L; nextID *= 10L) {
+            // The structure is only initialised in memory.
+            a.initFromNextID(nextID);
+            long[] ids = new long[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = (long) (random.nextDouble() * nextID);
+            }
+            // Check against the ranges.
+            for (int i = 0; i < 100; i++) {
+                Path p3 = a.root.getPath();
+                for (int lvl = 1; lvl < a.levels; lvl++) {
+                    long r = a.ranges.get(lvl);
+                    long l = (ids[i] / r) * r;
+                    p3 = Paths.get(p3.toString(), a.getName(l, l + r - 1));
+                }
+                p3 = Paths.get(p3.toString(), Long.toString(ids[i]));
+                Assertions.assertEquals(p3, a.getPath(ids[i]));
+            }
+            long t0 = System.nanoTime();
+            int h = 0;
+            for (int i = 0; i < n; i++) {
+                h += a.getPath(ids[i]).hashCode();
+            }
+            long t = System.nanoTime() - t0;
+            System.out.println("nextID=" + nextID + ", levels=" + a.levels
+                    + ", nanoseconds per getPath=" + (t / n) + " (" + h + ")");
+        }
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test reopening a file store using the manifest, rolling forward if the
+     * manifest is stale and falling back to walking the file system if the
+     * manifest is missing or corrupt.
+     */
+    @Test
+    public void testManifest() throws IOException, Exception {
+        System.out.println("manifest");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testManifest";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        short range = 10;
+        Generic_FileStore a = new Generic_FileStore(p, name, range);
+        for (long l = 0; l < 150; l++) {
+            a.addDir();
+        }
+        Assertions.assertTrue(Files.exists(a.getManifestPath()));
+        String s = a.toString();
+        // Reopen using the manifest.
+        a = new Generic_FileStore(p2);
+        Assertions.assertEquals(s, a.toString());
+        // Reopen without the manifest.
+        Files.delete(a.getManifestPath());
+        a = new Generic_FileStore(p2);
+        Assertions.assertEquals(s, a.toString());
+        Assertions.assertTrue(Files.exists(a.getManifestPath()));
+        // Reopen with a stale manifest. Adding directories without growing
+        // deeper does not write the manifest, but commit and close do.
+        byte[] m = Files.readAllBytes(a.getManifestPath());
+        for (long l = 0; l < 5; l++) {
+            a.addDir();
+        }
+        Assertions.assertArrayEquals(m, Files.readAllBytes(
+                a.getManifestPath()));
+        s = a.toString();
+        a = new Generic_FileStore(p2);
+        Assertions.assertEquals(s, a.toString());
+        a.close();
+        Assertions.assertTrue(a.isReadOnly());
+        Assertions.assertEquals(155L, a.readManifest().nextID);
+        Files.write(a.getManifestPath(), m);
+        a = new Generic_FileStore(p2);
+        Assertions.assertEquals(s, a.toString());
+        Assertions.assertEquals(155L, a.getNextID());
+        // Reopen with a corrupt manifest.
+        m = Files.readAllBytes(a.getManifestPath());
+        m[m.length - 1]++;
+        Files.write(a.getManifestPath(), m);
+        a = new Generic_FileStore(p2);
+        Assertions.assertEquals(s, a.toString());
+        Assertions.assertTrue(a.verify());
+        // Leaves created out of order by concurrent writers are found.
+        Files.createDirectory(a.getPath(157L));
+        a = new Generic_FileStore(p2);
+        Assertions.assertEquals(157L, a.getNextID());
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of addDirs method, of class Generic_FileStore. This compares the
+     * result with calling addDir in a loop and reports the times taken.
+     */
+    @Test
+    public void testAddDirs() throws IOException, Exception {
+        System.out.println("addDirs");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testAddDirs";
+        String name2 = "testAddDirs2";
+        Path p2 = Paths.get(p.toString(), name);
+        Path p3 = Paths.get(p.toString(), name2);
+        for (Path p4 : new Path[]{p2, p3}) {
+            if (Files.exists(p4)) {
+                Generic_IO.delete(p4, false);
+            }
+        }
+        short range = 10;
+        int n = 5000;
+        Generic_FileStore a = new Generic_FileStore(p, name, range);
+        long t0 = System.nanoTime();
+        for (long l = 0; l < n; l++) {
+            a.addDir();
+        }
+        long t1 = System.nanoTime();
+        Generic_FileStore b = new Generic_FileStore(p, name2, range);
+        long[] r = b.addDirs(3);
+        Assertions.assertArrayEquals(new long[]{1L, 3L}, r);
+        long t2 = System.nanoTime();
+        r = b.addDirs(n - 3, true);
+        long t3 = System.nanoTime();
+        Assertions.assertArrayEquals(new long[]{4L, n}, r);
+        System.out.println("addDir loop nanoseconds=" + (t1 - t0)
+                + ", addDirs nanoseconds=" + (t3 - t2));
+        Assertions.assertEquals(a.toString().replace(name, name2),
+                b.toString());
+        for (long id = 0; id <= n; id++) {
+            Assertions.assertTrue(Files.isDirectory(b.getPath(id)));
+        }
+        b = new Generic_FileStore(p3);
+        Assertions.assertTrue(b.verify());
+        b.addDir();
+        Assertions.assertTrue(Files.isDirectory(b.getPath(n + 1)));
+        Generic_IO.delete(p2, false);
+        Generic_IO.delete(p3, false);
+    }
+
+    /**
+     * Test writing with different codecs to the same file store and reading
+     * back what was written.
+     */
+    @Test
+    public void testCodecs() throws IOException, Exception {
+        System.out.println("codecs");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testCodecs";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Object[] os = new Object[]{null, true, (byte) 1, (short) 2, 'c', 3, 4L,
+            5.0f, 6.0d, "seven", new boolean[]{true, false}, new byte[]{8, 9},
+            new short[]{10, 11}, new char[]{'a', 'b'}, new int[]{12, 13},
+            new long[]{14L, 15L}, new float[]{16.0f}, new double[]{17.0d},
+            new String[]{"eighteen", null, ""}};
+        Generic_FileStore a = new Generic_FileStore(p, name);
+        ArrayList<Long> l = new ArrayList<>();
+        l.add(1L);
+        // Legacy.
+        a.add(l);
+        a.addDir();
+        a.setCodec(Generic_Codecs.JAVA);
+        a.add(l);
+        for (Object o : os) {
+            a.addDir();
+            a.setCodec(Generic_Codecs.COMPACT);
+            a.add(o);
+            a.addDir();
+            a.setCodec(Generic_Codecs.JAVA);
+            a.add(o);
+        }
+        Generic_FileStore b = new Generic_FileStore(p2);
+        Assertions.assertEquals(l, b.get(0));
+        Assertions.assertEquals(l, b.get(1));
+        for (int i = 0; i < os.length; i++) {
+            Assertions.assertArrayEquals(new Object[]{os[i]},
+                    new Object[]{b.get(2 + 2 * i)});
+            Assertions.assertArrayEquals(new Object[]{os[i]},
+                    new Object[]{b.get(3 + 2 * i)});
+        }
+        b.addDir();
+        b.setCodec(Generic_Codecs.COMPACT);
+        Assertions.assertThrows(IOException.class, () -> b.add(l));
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of stream and parallelStream methods, of class Generic_FileStore.
+     */
+    @Test
+    public void testStream() throws IOException, Exception {
+        System.out.println("stream");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testStream";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        int n = 1000;
+        a.addDirs(n - 1);
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            // Leave every 7th leaf empty.
+            if (i % 7 != 0) {
+                a.add(i, i);
+                sum += i;
+            }
+        }
+        Assertions.assertEquals(sum, a.stream()
+                .mapToLong(o -> (Integer) o).sum());
+        Assertions.assertEquals(sum, a.parallelStream()
+                .mapToLong(o -> (Integer) o).sum());
+        Assertions.assertArrayEquals(new Object[]{8, 9, 10, 11, 12},
+                a.stream(7, 12).toArray());
+        Assertions.assertArrayEquals(a.stream().toArray(),
+                a.parallelStream().toArray());
+        // Splits are on directory ranges.
+        Generic_FileStoreSpliterator s = new Generic_FileStoreSpliterator(a,
+                0, n - 1);
+        Assertions.assertEquals(500, s.trySplit().estimateSize());
+        Assertions.assertEquals(200, s.trySplit().estimateSize());
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of durability and recovery, of class Generic_FileStore.
+     */
+    @Test
+    public void testDurability() throws IOException, Exception {
+        System.out.println("durability");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testDurability";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        Assertions.assertEquals(Generic_FileStore.Durability.NONE,
+                a.getDurability());
+        a.setDurability(Generic_FileStore.Durability.FSYNC);
+        a.add(0);
+        a.setDurability(Generic_FileStore.Durability.GROUP_COMMIT, 4,
+                Long.MAX_VALUE);
+        for (int i = 1; i < 30; i++) {
+            a.addDir();
+            a.setCodec(i % 2 == 0 ? Generic_Codecs.COMPACT : null);
+            a.add(i);
+        }
+        a.commit();
+        Assertions.assertTrue(a.getPending().isEmpty());
+        // A group that does not fill up is committed in the background.
+        a.setDurability(Generic_FileStore.Durability.GROUP_COMMIT, 1000,
+                1_000_000L);
+        a.add(29);
+        for (int i = 0; i < 1000 && !a.getPending().isEmpty(); i++) {
+            Thread.sleep(1L);
+        }
+        Assertions.assertTrue(a.getPending().isEmpty());
+        // Simulate writes whose content was not made durable before a
+        // crash: a record shorter than its header says, an empty file and a
+        // Java serialization stream header cut short.
+        for (int i = 27; i < 30; i++) {
+            Path f = Paths.get(a.getPath(i).toString(), name);
+            byte[] b = Files.readAllBytes(f);
+            Files.write(f, Arrays.copyOf(b, i == 28 ? b.length / 2
+                    : i == 27 ? 0 : 2));
+        }
+        // Writes go to a temporary file which is moved into place, so a crash
+        // part way through can leave one behind.
+        Path tmp = Generic_FileStoreRecord.getTmpPath(Paths.get(
+                a.getPath(26).toString(), name));
+        Assertions.assertFalse(Files.exists(tmp));
+        Files.write(tmp, new byte[]{1, 2, 3});
+        Generic_FileStore b = new Generic_FileStore(p2);
+        Assertions.assertFalse(Files.exists(tmp));
+        for (int i = 0; i < 27; i++) {
+            Assertions.assertEquals(i, b.get(i));
+        }
+        for (int i = 27; i < 30; i++) {
+            Assertions.assertFalse(Files.exists(Paths.get(
+                    b.getPath(i).toString(), name)));
+        }
+        Assertions.assertEquals(0, b.recover(0, 29));
+        // After a clean close there is nothing to recover on reopening.
+        b.close();
+        Assertions.assertTrue(b.readManifest().clean);
+        Files.write(tmp, new byte[]{1, 2, 3});
+        Generic_FileStore c = new Generic_FileStore(p2);
+        Assertions.assertTrue(Files.exists(tmp));
+        Assertions.assertFalse(c.readManifest().clean);
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test writing compressed and uncompressed Objects to the same file store
+     * and reading back what was written.
+     */
+    @Test
+    public void testCompression() throws IOException, Exception {
+        System.out.println("compression");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testCompression";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        double[] t = new double[10000];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = i % 100;
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        a.setCodec(Generic_Codecs.COMPACT);
+        a.add(t);
+        Assertions.assertEquals(a.getBytesIn(), a.getBytesOut());
+        a.setCompressor(new Generic_CompressorDeflate(1));
+        a.addDir();
+        a.add(t);
+        a.setCodec(null);
+        a.setCompressor(Generic_Compressors.DEFLATE);
+        a.addDir();
+        a.add(t);
+        a.setCompressor(null);
+        a.addDir();
+        a.add(t);
+        long in = a.getBytesIn();
+        long out = a.getBytesOut();
+        System.out.println("bytesIn=" + in + ", bytesOut=" + out
+                + ", encodeNanos=" + a.getEncodeNanos());
+        Assertions.assertTrue(out * 2 < in);
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertArrayEquals(t, (double[]) a.get(i));
+        }
+        Assertions.assertEquals(0, a.recover(0, 3));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new Generic_CompressorDeflate(10));
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of Generic_FileStoreVerifier.
+     */
+    @Test
+    public void testVerifier() throws IOException, Exception {
+        System.out.println("verifier");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testVerifier";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        a.setCodec(Generic_Codecs.COMPACT);
+        a.add(0);
+        for (int i = 1; i < 250; i++) {
+            a.addDir();
+            a.add(i);
+        }
+        // Make everything look as if it was written an hour ago.
+        FileTime ft = FileTime.fromMillis(System.currentTimeMillis()
+                - 3600000L);
+        try (Stream<Path> ps = Files.walk(p2)) {
+            for (Path x : (Iterable<Path>) ps::iterator) {
+                Files.setLastModifiedTime(x, ft);
+            }
+        }
+        Generic_FileStoreVerifier v = new Generic_FileStoreVerifier(a);
+        Generic_FileStoreVerifier.Result r = v.verify(true, false);
+        Assertions.assertTrue(r.isOK());
+        Assertions.assertEquals(250, r.files);
+        Assertions.assertTrue(Files.exists(v.getCheckpointPath()));
+        // Incremental verification skips what has not changed.
+        r = v.verify(true, true);
+        Assertions.assertTrue(r.isOK());
+        Assertions.assertEquals(25, r.skipped);
+        // Problems.
+        Path f = Paths.get(a.getPath(13).toString(), name);
+        byte[] b = Files.readAllBytes(f);
+        b[b.length - 1]++;
+        Files.write(f, b);
+        Generic_IO.delete(a.getPath(27), false);
+        Path stray = Paths.get(a.getPath(42).getParent().toString(), "stray");
+        Files.createFile(stray);
+        // A well formed directory in the wrong place.
+        Path misplaced = Paths.get(a.getPath(5).getParent().getParent()
+                .toString(), a.getName(100L, 109L));
+        Files.createDirectory(misplaced);
+        r = v.verify(true, false);
+        Assertions.assertFalse(r.isOK());
+        Assertions.assertEquals(4, r.problems.size());
+        for (Generic_FileStoreVerifier.Problem x : r.problems) {
+            System.out.println(x);
+            switch (x.kind) {
+                case CORRUPT:
+                    Assertions.assertEquals(f, x.path);
+                    break;
+                case MISSING:
+                    Assertions.assertEquals(a.getPath(27), x.path);
+                    break;
+                default:
+                    Assertions.assertEquals(
+                            Generic_FileStoreVerifier.Kind.UNEXPECTED, x.kind);
+                    Assertions.assertTrue(x.path.equals(stray)
+                            || x.path.equals(misplaced));
+            }
+        }
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of delete and compact.
+     */
+    @Test
+    public void testDelete() throws IOException, Exception {
+        System.out.println("delete");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testDelete";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        a.add(0);
+        for (int i = 1; i < 250; i++) {
+            a.addDir();
+            a.add(i);
+        }
+        Assertions.assertFalse(a.isDeleted(5));
+        Assertions.assertTrue(a.delete(5));
+        Assertions.assertFalse(a.delete(5));
+        Assertions.assertFalse(a.delete(250));
+        for (long id = 100; id < 200; id++) {
+            Assertions.assertTrue(a.delete(id));
+        }
+        Assertions.assertTrue(a.delete(249));
+        Assertions.assertEquals(102, a.getDeletedCount());
+        Assertions.assertEquals(200, a.nextLive(100));
+        Assertions.assertThrows(java.nio.file.NoSuchFileException.class,
+                () -> a.get(150));
+        Assertions.assertThrows(IOException.class, () -> a.add(5, 5));
+        Assertions.assertEquals(148, a.stream().count());
+        Assertions.assertEquals(148, a.parallelStream().count());
+        // Compact removes the 100_199 subtree and leaf 5 but not leaf 249.
+        Assertions.assertEquals(2, a.compact());
+        Assertions.assertFalse(Files.exists(a.getPath(150).getParent()
+                .getParent()));
+        Assertions.assertFalse(Files.exists(a.getPath(5)));
+        Assertions.assertTrue(Files.exists(a.getPath(249)));
+        Assertions.assertEquals(0, a.compactAsync().get());
+        Assertions.assertTrue(new Generic_FileStoreVerifier(a)
+                .verify(true, false).isOK());
+        // Reopen and carry on adding.
+        Generic_FileStore b = new Generic_FileStore(p2);
+        Assertions.assertTrue(b.isDeleted(150));
+        Assertions.assertEquals(200, b.get(200));
+        b.addDir();
+        b.add(250);
+        Assertions.assertEquals(250, b.get(250));
+        Assertions.assertEquals(149, b.stream().count());
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of exportTo and importFrom.
+     */
+    @Test
+    public void testArchive() throws IOException, Exception {
+        System.out.println("archive");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testArchive";
+        Path p2 = Paths.get(p.toString(), name);
+        String name2 = "testArchive2";
+        Path p3 = Paths.get(p.toString(), name2);
+        Path archive = Paths.get(p.toString(), "testArchive.gfa");
+        for (Path x : new Path[]{p2, p3, archive}) {
+            if (Files.exists(x)) {
+                Generic_IO.delete(x, false);
+            }
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        a.add("s0");
+        for (int i = 1; i < 300; i++) {
+            a.addDir();
+            if (i == 150) {
+                a.setCodec(Generic_Codecs.COMPACT);
+                a.setCompressor(Generic_Compressors.DEFLATE);
+            }
+            if (i % 50 != 49) {
+                a.add("s" + i);
+            }
+        }
+        a.delete(7);
+        // 300 leaves less 6 without a file (7 is an entry as it is deleted).
+        Assertions.assertEquals(294, a.exportTo(archive));
+        Assertions.assertThrows(IOException.class, () -> a.exportTo(archive));
+        Generic_FileStore b = new Generic_FileStore(p, name2, (short) 100);
+        Assertions.assertEquals(294, b.importFrom(archive));
+        Assertions.assertEquals(299, b.getNextID());
+        Assertions.assertTrue(b.isDeleted(7));
+        for (long id = 0; id < 300; id++) {
+            if (id == 7 || id % 50 == 49) {
+                Assertions.assertFalse(Files.exists(Paths.get(
+                        b.getPath(id).toString(), name2)));
+            } else {
+                Assertions.assertEquals("s" + id, b.get(id));
+            }
+        }
+        Assertions.assertThrows(Exception.class, () -> b.importFrom(archive));
+        Generic_IO.delete(p2, false);
+        Generic_IO.delete(p3, false);
+        Files.delete(archive);
+    }
+
+    /**
+     * Test of iterator.
+     */
+    @Test
+    public void testIterator() throws IOException, Exception {
+        System.out.println("iterator");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testIterator";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        a.add(0);
+        for (int i = 1; i < 200; i++) {
+            a.addDir();
+            if (i != 20) {
+                a.add(i);
+            }
+        }
+        a.delete(10);
+        int expected = 0;
+        int n = 0;
+        try (Generic_FileStorePrefetcher it = a.iterator(0, 8)) {
+            while (it.hasNext()) {
+                if (expected == 10 || expected == 20) {
+                    expected++;
+                }
+                Assertions.assertEquals(expected, it.next());
+                Assertions.assertTrue(it.getDepth() >= 1
+                        && it.getDepth() <= 8);
+                expected++;
+                n++;
+            }
+            Assertions.assertThrows(java.util.NoSuchElementException.class,
+                    () -> it.next());
+        }
+        Assertions.assertEquals(198, n);
+        // Start part way and close early.
+        try (Generic_FileStorePrefetcher it = a.iterator(150, 4)) {
+            for (int i = 150; i < 160; i++) {
+                Assertions.assertEquals(i, it.next());
+            }
+        }
+        // Abandon without closing: the reader threads stop when idle.
+        Generic_FileStorePrefetcher it2 = a.iterator(0, 4);
+        Assertions.assertEquals(0, it2.next());
+        java.util.concurrent.ThreadPoolExecutor e
+                = (java.util.concurrent.ThreadPoolExecutor) it2.executor;
+        for (int i = 0; i < 50 && e.getPoolSize() > 0; i++) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(0, e.getPoolSize());
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of secondary indexes.
+     */
+    @Test
+    public void testIndex() throws IOException, Exception {
+        System.out.println("index");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testIndex";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 100);
+        a.setCodec(Generic_Codecs.COMPACT);
+        // An index built from what is already there.
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) {
+                a.addDir();
+            }
+            a.add(i);
+        }
+        Generic_FileStoreIndex mod = a.addIndex("mod",
+                o -> (long) ((Integer) o % 100));
+        Assertions.assertArrayEquals(new long[]{7}, mod.equal(7));
+        // An index updated on add including merges.
+        Generic_FileStoreIndex even = a.addIndex("even",
+                o -> (Integer) o % 2 == 0 ? (long) (Integer) o : null);
+        int n = 10000;
+        a.addDirs(n - 100);
+        for (int i = 100; i < n; i++) {
+            a.add(i, i);
+        }
+        Assertions.assertEquals(n, mod.size());
+        Assertions.assertEquals(n / 2, even.size());
+        long[] r = mod.equal(7);
+        Assertions.assertEquals(n / 100, r.length);
+        for (int i = 0; i < r.length; i++) {
+            Assertions.assertEquals(i * 100 + 7, r[i]);
+        }
+        Assertions.assertArrayEquals(new long[]{10, 12}, even.range(9, 13));
+        Assertions.assertEquals(0, even.equal(11).length);
+        Assertions.assertEquals(300, mod.range(10, 12).length);
+        // Overwrites and deletes.
+        a.add(7, 8);
+        a.delete(107);
+        Assertions.assertEquals(n / 100 - 2, mod.equal(7).length);
+        Assertions.assertEquals(7, mod.equal(8)[0]);
+        Assertions.assertEquals(n - 1, mod.size());
+        // Reopen.
+        mod.close();
+        even.close();
+        Generic_FileStore b = new Generic_FileStore(p2);
+        Generic_FileStoreIndex mod2 = b.addIndex("mod",
+                o -> (long) ((Integer) o % 100));
+        Assertions.assertEquals(n - 1, mod2.size());
+        Assertions.assertEquals(n / 100 - 2, mod2.equal(7).length);
+        Assertions.assertEquals(n - 1, mod2.getHigh());
+        // Objects added while the index is not registered are caught up.
+        b.close();
+        Generic_FileStore c = new Generic_FileStore(p2);
+        c.addDir();
+        c.add(n);
+        c.addDir();
+        c.add(n + 7);
+        mod2 = c.addIndex("mod", o -> (long) ((Integer) o % 100));
+        Assertions.assertEquals(n + 1, mod2.size());
+        Assertions.assertEquals(n + 1, mod2.getHigh());
+        r = mod2.equal(7);
+        Assertions.assertEquals(n + 1, r[r.length - 1]);
+        Assertions.assertTrue(Generic_FileStoreIndex.sortable(-2d)
+                < Generic_FileStoreIndex.sortable(-1d));
+        Assertions.assertTrue(Generic_FileStoreIndex.sortable(-1d)
+                < Generic_FileStoreIndex.sortable(0.5d));
+        mod2.close();
+        // Names with SEP are for directories of the file store.
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> c.addIndex("by_size", o -> 0L));
+        // Files with SEP in the base directory are ignored when reopening
+        // without a manifest.
+        Files.createFile(Paths.get(p2.toString(), "index.by_size.log"));
+        Files.delete(c.getManifestPath());
+        Generic_FileStore d = new Generic_FileStore(p2);
+        Assertions.assertEquals(n + 1, d.getNextID());
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of rerange.
+     */
+    @Test
+    public void testRerange() throws IOException, Exception {
+        System.out.println("rerange");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testRerange";
+        Path p2 = Paths.get(p.toString(), name);
+        Path p3 = Paths.get(p.toString(), "testRerange2");
+        Path p4 = Paths.get(p.toString(), "testRerange3");
+        for (Path x : new Path[]{p2, p3, p4}) {
+            if (Files.exists(x)) {
+                Generic_IO.delete(x, false);
+            }
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        int n = 10000;
+        a.addDirs(n - 1);
+        for (int i = 0; i < n; i++) {
+            a.add(i, i);
+        }
+        a.delete(5);
+        // Interrupt the first attempt part way.
+        Generic_FileStoreReranger rr = new Generic_FileStoreReranger(a, p3,
+                (short) 100, Generic_FileStoreReranger.Mode.LINK, d -> {
+                    throw new IllegalStateException("Interrupted.");
+                });
+        Assertions.assertThrows(IllegalStateException.class, () -> rr.run());
+        Assertions.assertTrue(Files.exists(rr.getProgressPath()));
+        Assertions.assertThrows(Exception.class, () -> a.rerange(p3,
+                (short) 50));
+        // Carry on.
+        Generic_FileStore b = a.rerange(p3, (short) 100);
+        Assertions.assertFalse(Files.exists(rr.getProgressPath()));
+        Assertions.assertEquals(100, b.rangeL);
+        Assertions.assertTrue(b.getLevels() < a.getLevels());
+        Assertions.assertEquals(n - 1, b.getNextID());
+        Assertions.assertTrue(b.isDeleted(5));
+        for (int i = 0; i < n; i++) {
+            if (i != 5) {
+                Assertions.assertEquals(i, b.get(i));
+                Assertions.assertEquals(i, a.get(i));
+            }
+        }
+        // Move.
+        long[] count = new long[1];
+        Generic_FileStoreReranger rm = new Generic_FileStoreReranger(b, p4,
+                (short) 1000, Generic_FileStoreReranger.Mode.MOVE,
+                d -> count[0] = Math.max(count[0], d));
+        Generic_FileStore c = rm.run();
+        Assertions.assertEquals(n, rm.getDone());
+        Assertions.assertEquals(n, rm.getTotal());
+        Assertions.assertTrue(count[0] > 0);
+        Assertions.assertEquals(1234, c.get(1234));
+        Assertions.assertFalse(Files.exists(Paths.get(
+                b.getPath(1234).toString(), b.name)));
+        // Carry on after stopping between the progress file and the store.
+        Generic_IO.delete(p4, false);
+        Files.createDirectories(p4);
+        rm.writeProgress(-1L);
+        Generic_FileStore e = rm.run();
+        Assertions.assertEquals(n - 1, e.getNextID());
+        Assertions.assertFalse(Files.exists(rm.getProgressPath()));
+        for (Path x : new Path[]{p2, p3, p4}) {
+            Generic_IO.delete(x, false);
+        }
+    }
+
+    /**
+     * Test of the writer lease and readers.
+     */
+    @Test
+    public void testLease() throws IOException, Exception {
+        System.out.println("lease");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testLease";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore w = Generic_FileStore.openWriter(p2, (short) 10);
+        Assertions.assertTrue(w.hasWriterLease());
+        Assertions.assertNull(Generic_FileStore.tryOpenWriter(p2,
+                (short) 10));
+        // Other file stores in this process can still be opened for writing.
+        Assertions.assertFalse(Generic_FileStore.getFileStore(p2)
+                .isReadOnly());
+        Assertions.assertTrue(w.hasWriterLease());
+        w.add(0);
+        Generic_FileStore r = Generic_FileStore.openReader(p2);
+        Assertions.assertTrue(r.isReadOnly());
+        Assertions.assertThrows(IOException.class, () -> r.addDir());
+        Assertions.assertThrows(IOException.class, () -> r.add(0, 1));
+        // A reader does not write to an empty tombstone bitmap.
+        Path d = r.getTombstonesPath();
+        Files.createFile(d);
+        Assertions.assertFalse(r.isDeleted(0));
+        Assertions.assertEquals(0L, Files.size(d));
+        Assertions.assertThrows(IOException.class, () -> r.delete(0));
+        Assertions.assertEquals(0, r.get(0));
+        Assertions.assertFalse(r.refresh());
+        for (int i = 1; i < 150; i++) {
+            w.addDir();
+            w.add(i);
+        }
+        // The reader sees the new layout once refreshed.
+        Assertions.assertEquals(0, r.getNextID());
+        Assertions.assertTrue(r.refresh());
+        Assertions.assertEquals(149, r.getNextID());
+        Assertions.assertEquals(w.getEpoch(), r.getEpoch());
+        Assertions.assertEquals(120, r.get(120));
+        // Growing deeper moves everything and the reader follows.
+        for (int i = 150; i < 1100; i++) {
+            w.addDir();
+            w.add(i);
+        }
+        Assertions.assertTrue(w.getLevels() > r.getLevels());
+        Assertions.assertEquals(5, r.get(5));
+        Assertions.assertEquals(w.getLevels(), r.getLevels());
+        // A leaf directory without a file does not reload the tombstones.
+        w.delete(7);
+        r.refresh();
+        Assertions.assertTrue(r.isDeleted(7));
+        Generic_FileStoreTombstones t = r.getTombstones(false);
+        w.addDir();
+        Assertions.assertThrows(NoSuchFileException.class,
+                () -> r.get(1100));
+        Assertions.assertSame(t, r.getTombstones(false));
+        Assertions.assertEquals(w.getEpoch(), r.getEpoch());
+        // Hand over the lease.
+        w.releaseWriterLease();
+        Assertions.assertTrue(w.isReadOnly());
+        Assertions.assertFalse(w.hasWriterLease());
+        Generic_FileStore w2 = Generic_FileStore.tryOpenWriter(p2,
+                (short) 10);
+        Assertions.assertNotNull(w2);
+        Assertions.assertEquals(1100, w2.getNextID());
+        w2.add(1100);
+        w2.releaseWriterLease();
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of Generic_FileStoreMap.
+     */
+    @Test
+    public void testMap() throws IOException, Exception {
+        System.out.println("map");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testMap";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        int n = 1500;
+        try (Generic_FileStoreMap m = new Generic_FileStoreMap(a)) {
+            Assertions.assertFalse(m.contains("key0"));
+            for (int i = 0; i < n; i++) {
+                Assertions.assertEquals(i, m.put("key" + i, i));
+            }
+            m.put(new byte[]{1, 2}, "bytes");
+            // Overwrite.
+            Assertions.assertEquals(7, m.put("key7", "seven"));
+            Assertions.assertEquals(n + 1, m.size());
+        }
+        Generic_FileStore b = new Generic_FileStore(p2);
+        try (Generic_FileStoreMap m = new Generic_FileStoreMap(b)) {
+            Assertions.assertEquals(n + 1, m.size());
+            for (int i = 0; i < n; i++) {
+                if (i != 7) {
+                    Assertions.assertEquals(i, m.get("key" + i));
+                }
+            }
+            Assertions.assertEquals("seven", m.get("key7"));
+            Assertions.assertEquals("bytes", m.get(new byte[]{1, 2}));
+            Assertions.assertTrue(m.contains("key" + (n - 1)));
+            Assertions.assertFalse(m.contains("key" + n));
+            Assertions.assertNull(m.get("key" + n));
+            Assertions.assertEquals(-1, m.getID("key" + n));
+            // Entries are written whatever the codec.
+            b.setCodec(Generic_Codecs.COMPACT);
+            m.put("compact", 1.5d);
+            Assertions.assertEquals(1.5d, m.get("compact"));
+            Assertions.assertEquals(n / 2, m.get("key" + n / 2));
+            // Deleted entries are absent.
+            b.delete(m.getID("key3"));
+            Assertions.assertFalse(m.contains("key3"));
+            Assertions.assertNull(m.get("key3"));
+        }
+        Generic_IO.delete(p2, false);
+    }
+
+    /**
+     * Test of get method with a cache, of class Generic_FileStore.
+     */
+    @Test
+    public void testCache() throws IOException, Exception {
+        System.out.println("cache");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testCache";
+        Path p2 = Paths.get(p.toString(), name);
+        if (Files.exists(p2)) {
+            Generic_IO.delete(p2, false);
+        }
+        Generic_FileStore a = new Generic_FileStore(p, name, (short) 10);
+        a.add(0);
+        for (int i = 1; i < 20; i++) {
+            a.addDir();
+            a.add(i);
+        }
+        Generic_FileStoreCache c = new Generic_FileStoreCache(5);
+        a.setCache(c);
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < 5; i++) {
+                Assertions.assertEquals(i, a.get(i));
+            }
+        }
+        Assertions.assertEquals(5, c.getMisses());
+        Assertions.assertEquals(10, c.getHits());
+        Assertions.assertEquals(5, c.size());
+        // Evicts 0.
+        Assertions.assertEquals(5, a.get(5));
+        Assertions.assertEquals(1, c.getEvictions());
+        Assertions.assertNull(c.get(0));
+        // Overwriting the highest leaf invalidates it.
+        Assertions.assertEquals(19, a.get(19));
+        a.add("nineteen");
+        Assertions.assertEquals("nineteen", a.get(19));
+        // What was read before a write is not cached after it.
+        long v = c.getVersion();
+        a.add(19);
+        Assertions.assertFalse(c.put(19, "nineteen", v));
+        Assertions.assertEquals(19, a.get(19));
+        // Weights.
+        Generic_FileStoreCache c2 = new Generic_FileStoreCache(10,
+                o -> ((Integer) o).longValue());
+        a.setCache(c2);
+        for (int i = 0; i < 5; i++) {
+            a.get(i);
+        }
+        Assertions.assertEquals(10, c2.getWeight());
+        a.get(6);
+        Assertions.assertTrue(c2.getWeight() <= 10);
+        Assertions.assertTrue(c2.swapSomeData());
+        Assertions.assertTrue(c2.checkAndMaybeFreeMemory());
+        Generic_IO.delete(p2, false);
+    }
+
     /**
      * Test of getLevels method, of class Generic_FileStore.
      */
@@ -160,6 +1129,18 @@ public class Generic_FileStoreTest {
         expResult = 7;
         result = Generic_FileStore.getLevels(n, range);
         Assertions.assertEquals(expResult, result);
+        // Test 7
+        n = 200L;
+        range = 10L;
+        expResult = 3;
+        result = Generic_FileStore.getLevels(n, range);
+        Assertions.assertEquals(expResult, result);
+        // Test 8
+        n = 100L;
+        range = 10L;
+        expResult = 2;
+        result = Generic_FileStore.getLevels(n, range);
+        Assertions.assertEquals(expResult, result);
     }
 
     /**
@@ -20,9 +20,22 @@ import uk.ac.leeds.ccg.generic.io.Generic_IO;
 import uk.ac.leeds.ccg.generic.io.Generic_Defaults;
 import uk.ac.leeds.ccg.generic.io.Generic_Files;
 import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -144,4 +157,285 @@ public class Generic_IOTest {
         }
     }
 
+    /**
+     * Test of copyFile method, of class Generic_IO.
+     *
+     * @throws java.io.IOException If encountered.
+     */
+    @Test
+    public void testCopyFile() throws IOException {
+        System.out.println("copyFile");
+        Path d = Paths.get(env.files.getGeneratedDir().toString(), "copy");
+        Files.createDirectories(d);
+        Path f = Paths.get(d.toString(), "f");
+        byte[] b = new byte[3 * Generic_IO.COPY_BUFFER_SIZE + 7];
+        new Random(0).nextBytes(b);
+        Files.write(f, b);
+        FileTime ft = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(f, ft);
+        Path d2 = Paths.get(d.toString(), "d");
+        Generic_IO.copyFile(f, d2, "g");
+        Path g = Paths.get(d2.toString(), "g");
+        Assertions.assertArrayEquals(b, Files.readAllBytes(g));
+        // Copy over a longer file.
+        Files.write(g, new byte[b.length + 100]);
+        Generic_IOStats stats = new Generic_IOStats();
+        Assertions.assertEquals(b.length, Generic_IO.copyFile(f, g, true,
+                stats));
+        Assertions.assertArrayEquals(b, Files.readAllBytes(g));
+        Assertions.assertEquals(ft, Files.getLastModifiedTime(g));
+        Assertions.assertEquals(1L, stats.getFiles());
+        Assertions.assertEquals(b.length, stats.getBytes());
+        Assertions.assertTrue(stats.getBytesPerSecond() > 0d);
+        Generic_IO.delete(d, false);
+    }
+
+    /**
+     * Test of copyParallel and deleteParallel methods, of class Generic_IO.
+     *
+     * @throws java.io.IOException If encountered.
+     */
+    @Test
+    public void testCopyParallel() throws IOException {
+        System.out.println("copyParallel");
+        Path d = Paths.get(env.files.getGeneratedDir().toString(), "tree");
+        Path s = Paths.get(d.toString(), "s");
+        // 3 levels of 4 directories each with 5 files.
+        int nf = 0;
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                for (int k = 0; k < 4; k++) {
+                    Path p = Paths.get(s.toString(), "" + i, "" + j, "" + k);
+                    Files.createDirectories(p);
+                    for (int f = 0; f < 5; f++) {
+                        Files.write(Paths.get(p.toString(), f + ".dat"),
+                                new byte[f]);
+                        nf++;
+                    }
+                }
+            }
+        }
+        int nd = 1 + 4 + 16 + 64;
+        Path t = Paths.get(d.toString(), "t");
+        Generic_IOStats stats = Generic_IO.copyParallel(s, t, 4, true);
+        Assertions.assertEquals(0L, stats.getFailures());
+        Assertions.assertEquals(nf, stats.getFiles());
+        Assertions.assertEquals(nd, stats.getDirectories());
+        Assertions.assertEquals(64L * 10L, stats.getBytes());
+        Assertions.assertEquals(3L, Files.size(Paths.get(t.toString(), "3",
+                "2", "1", "3.dat")));
+        stats = Generic_IO.deleteParallel(t, 4);
+        Assertions.assertEquals(0L, stats.getFailures());
+        Assertions.assertEquals(nf, stats.getFiles());
+        Assertions.assertEquals(nd, stats.getDirectories());
+        Assertions.assertFalse(Files.exists(t));
+        Assertions.assertTrue(Files.exists(s));
+        stats = Generic_IO.deleteParallel(d, 2);
+        Assertions.assertEquals(0L, stats.getFailures());
+        Assertions.assertFalse(Files.exists(d));
+    }
+
+    /**
+     * Test of getFileStream method, of class Generic_IO.
+     *
+     * @throws java.io.IOException If encountered.
+     */
+    @Test
+    public void testGetFileStream() throws IOException {
+        System.out.println("getFileStream");
+        Path d = Paths.get(env.files.getGeneratedDir().toString(), "stream");
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 5; j++) {
+                Path p = Paths.get(d.toString(), "" + i, "" + j);
+                Files.createDirectories(p);
+                Files.createFile(Paths.get(p.toString(), "a.csv"));
+                Files.createFile(Paths.get(p.toString(), "b.dat"));
+            }
+        }
+        Files.createFile(Paths.get(d.toString(), "c.csv"));
+        try (Stream<Path> s = Generic_IO.getFileStream(d)) {
+            Assertions.assertEquals(51L, s.count());
+        }
+        try (Stream<Path> s = Generic_IO.getFileStream(d, "*.csv")) {
+            Assertions.assertEquals(26L, s.count());
+        }
+        try (Stream<Path> s = Generic_IO.getFileStream(d,
+                p -> p.toString().endsWith(".dat"), true)) {
+            Assertions.assertEquals(25L, s.distinct().count());
+        }
+        // Stop early.
+        try (Stream<Path> s = Generic_IO.getFileStream(d)) {
+            Assertions.assertTrue(s.findFirst().isPresent());
+        }
+        Assertions.assertEquals(51, Generic_IO.getFiles(d).size());
+        // A wide directory is split in batches.
+        Path w = Paths.get(d.toString(), "wide");
+        Files.createDirectories(w);
+        for (int i = 0; i < 1000; i++) {
+            Files.createFile(Paths.get(w.toString(), i + ".csv"));
+        }
+        try (Generic_FileSpliterator fs = new Generic_FileSpliterator(w,
+                p -> true)) {
+            Generic_FileSpliterator s = (Generic_FileSpliterator) fs.trySplit();
+            Assertions.assertEquals(Generic_FileSpliterator.MIN_BATCH,
+                    s.files.size());
+            long[] n = new long[1];
+            s.forEachRemaining(p -> n[0]++);
+            fs.forEachRemaining(p -> n[0]++);
+            Assertions.assertEquals(1000L, n[0]);
+        }
+        try (Stream<Path> s = Generic_IO.getFileStream(d,
+                p -> p.toString().endsWith(".csv"), true)) {
+            Assertions.assertEquals(1026L, s.distinct().count());
+        }
+        Generic_IO.delete(d, false);
+    }
+
+    /**
+     * Test of createNewFile method, of class Generic_IO, with threads.
+     *
+     * @throws java.lang.Exception If encountered.
+     */
+    @Test
+    public void testCreateNewFile_Concurrent() throws Exception {
+        System.out.println("createNewFile concurrent");
+        Path d = Paths.get(env.files.getGeneratedDir().toString(), "create");
+        if (Files.exists(d)) {
+            Generic_IO.delete(d, false);
+        }
+        Files.createDirectories(d);
+        Files.createFile(Paths.get(d.toString(), "x4.y"));
+        Files.createFile(Paths.get(d.toString(), "xa.y"));
+        Set<Path> created = ConcurrentHashMap.newKeySet();
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        List<Future<?>> fs = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            fs.add(es.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    created.add(Generic_IO.createNewFile(d, "x", ".y"));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : fs) {
+            f.get();
+        }
+        es.shutdown();
+        Assertions.assertEquals(400, created.size());
+        Assertions.assertTrue(created.contains(Paths.get(d.toString(),
+                "x.y")));
+        Assertions.assertTrue(created.contains(Paths.get(d.toString(),
+                "x5.y")));
+        Assertions.assertFalse(created.contains(Paths.get(d.toString(),
+                "x4.y")));
+        // A file made by something else is skipped.
+        Files.createFile(Paths.get(d.toString(), "x405.y"));
+        Assertions.assertEquals(Paths.get(d.toString(), "x404.y"),
+                Generic_IO.createNewFile(d, "x", ".y"));
+        Assertions.assertEquals(Paths.get(d.toString(), "x406.y"),
+                Generic_IO.createNewFile(d, "x", ".y"));
+        Assertions.assertEquals(Paths.get(d.toString(), "0"),
+                Generic_IO.createNewFile(d));
+        // A directory made again in the same place is scanned again.
+        Path d2 = Paths.get(d.toString() + "2");
+        if (Files.exists(d2)) {
+            Generic_IO.delete(d2, false);
+        }
+        Files.move(d, d2);
+        Files.createDirectories(d);
+        Assertions.assertEquals(Paths.get(d.toString(), "x.y"),
+                Generic_IO.createNewFile(d, "x", ".y"));
+        Assertions.assertEquals(Paths.get(d.toString(), "x0.y"),
+                Generic_IO.createNewFile(d, "x", ".y"));
+        Generic_IO.delete(d, false);
+        Generic_IO.delete(d2, false);
+    }
+
+    /**
+     * Test of Generic_MappedTokenizer with the syntax of
+     * setStreamTokenizerSyntax1 and setStreamTokenizerSyntax2.
+     *
+     * @throws java.io.IOException If encountered.
+     */
+    @Test
+    public void testMappedTokenizer() throws IOException {
+        System.out.println("MappedTokenizer");
+        Path d = Paths.get(env.files.getGeneratedDir().toString(), "tokens");
+        Files.createDirectories(d);
+        Path f = Paths.get(d.toString(), "a.csv");
+        String text = "id,x,y,name\n"
+                + "1,1.5,-2.25e3,\"a b\"\n"
+                + "-9223372036854775808,0.001,123456789012345678901,c_d\n"
+                + "\n"
+                + "3,NaN,+7,e;x\n";
+        Files.write(f, text.getBytes(StandardCharsets.UTF_8));
+        List<Consumer<StreamTokenizer>> syntaxes = List.of(
+                Generic_IO::setStreamTokenizerSyntax1,
+                Generic_IO::setStreamTokenizerSyntax2);
+        for (Consumer<StreamTokenizer> syntax : syntaxes) {
+            byte[] classes = Generic_MappedTokenizer.getClasses(syntax);
+            // A small window so words carry on past windows.
+            for (int w : new int[]{64, Generic_MappedTokenizer.WINDOW}) {
+                StreamTokenizer st = new StreamTokenizer(
+                        Files.newBufferedReader(f));
+                syntax.accept(st);
+                try (Generic_MappedTokenizer t = new Generic_MappedTokenizer(
+                        f, classes, w)) {
+                    int type;
+                    do {
+                        type = t.nextToken();
+                        Assertions.assertEquals(st.nextToken(), type);
+                        if (type == Generic_MappedTokenizer.TT_WORD) {
+                            Assertions.assertEquals(st.sval, t.getString());
+                        }
+                    } while (type != Generic_MappedTokenizer.TT_EOF);
+                }
+            }
+        }
+        byte[] classes = Generic_MappedTokenizer.getClasses(
+                Generic_IO::setStreamTokenizerSyntax2);
+        try (Generic_MappedTokenizer t = new Generic_MappedTokenizer(f,
+                classes, 32)) {
+            while (t.getLineNumber() < 2) {
+                t.nextToken();
+            }
+            t.nextToken();
+            Assertions.assertEquals(1L, t.parseLong());
+            t.nextToken();
+            t.nextToken();
+            Assertions.assertEquals(1.5d, t.parseDouble());
+            t.nextToken();
+            t.nextToken();
+            Assertions.assertEquals(-2250d, t.parseDouble());
+            while (t.getLineNumber() < 3) {
+                t.nextToken();
+            }
+            t.nextToken();
+            Assertions.assertEquals(Long.MIN_VALUE, t.parseLong());
+            t.nextToken();
+            t.nextToken();
+            Assertions.assertEquals(0.001d, t.parseDouble());
+            t.nextToken();
+            t.nextToken();
+            Assertions.assertEquals(123456789012345678901d, t.parseDouble());
+            Assertions.assertThrows(NumberFormatException.class,
+                    () -> t.parseLong());
+        }
+        // UTF-8 encoded characters are kept whole.
+        Path u = Paths.get(d.toString(), "u.csv");
+        Files.write(u, "\u00e9e\u00e9,1".getBytes(StandardCharsets.UTF_8));
+        try (Generic_MappedTokenizer t = new Generic_MappedTokenizer(u,
+                classes)) {
+            Assertions.assertEquals(Generic_MappedTokenizer.TT_WORD,
+                    t.nextToken());
+            Assertions.assertEquals("\u00e9e\u00e9", t.getString());
+            Assertions.assertEquals(',', t.nextToken());
+            t.nextToken();
+            Assertions.assertEquals(1L, t.parseLong());
+            Assertions.assertEquals(Generic_MappedTokenizer.TT_EOF,
+                    t.nextToken());
+        }
+        Generic_IO.delete(d, false);
+    }
+
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 Andy Turner, University of Leeds.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leeds.ccg.generic.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.leeds.ccg.generic.core.Generic_Strings;
+
+/**
+ * Tests for {@link Generic_PackedStore} class.
+ *
+ * @author Andy Turner
+ * @version 1.0.0
+ */
+public class Generic_PackedStoreTest {
+
+    public Generic_PackedStoreTest() {
+    }
+
+    /**
+     * Test of add and get method, of class Generic_PackedStore.
+     */
+    @Test
+    public void testAddGet() throws Exception {
+        System.out.println("addGet");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic,
+                "testPackedStore");
+        if (Files.exists(p)) {
+            Generic_IO.delete(p, false);
+        }
+        int n = 3000;
+        try (Generic_PackedStore s = new Generic_PackedStore(p, 4096)) {
+            for (int i = 0; i < n; i++) {
+                Assertions.assertEquals(i, s.add("object" + i));
+            }
+            Assertions.assertTrue(Files.exists(s.getSegmentPath(1)));
+            s.setCodec(Generic_Codecs.COMPACT);
+            Assertions.assertEquals(n, s.add(new int[]{1, 2, 3}));
+            Assertions.assertNull(s.get(n + 1));
+        }
+        // Reopen
+        try (Generic_PackedStore s = new Generic_PackedStore(p)) {
+            Assertions.assertEquals(n + 1, s.getCount());
+            Assertions.assertEquals(4096, s.getSegmentSize());
+            for (int i = 0; i < n; i++) {
+                Assertions.assertEquals("object" + i, s.get(i));
+            }
+            Assertions.assertArrayEquals(new int[]{1, 2, 3},
+                    (int[]) s.get(n));
+            // The index cannot grow past what can be mapped.
+            long c = s.count;
+            s.count = Generic_PackedStore.MAX_CAPACITY;
+            Assertions.assertThrows(IOException.class, () -> s.skip());
+            s.count = c;
+        }
+        Generic_IO.delete(p, false);
+    }
+
+    /**
+     * Test of fromFileStore and toFileStore method, of class
+     * Generic_PackedStore.
+     */
+    @Test
+    public void testConvert() throws Exception {
+        System.out.println("convert");
+        Path p = Paths.get(System.getProperty("user.home"),
+                Generic_Strings.s_data, Generic_Strings.s_generic);
+        String name = "testPackedStoreConvert";
+        Path p2 = Paths.get(p.toString(), name);
+        Path p3 = Paths.get(p.toString(), name + "Packed");
+        String name2 = name + "2";
+        Path p4 = Paths.get(p.toString(), name2);
+        for (Path x : new Path[]{p2, p3, p4}) {
+            if (Files.exists(x)) {
+                Generic_IO.delete(x, false);
+            }
+        }
+        Generic_FileStore fs = new Generic_FileStore(p, name, (short) 10);
+        int n = 150;
+        fs.add(0);
+        for (int i = 1; i < n; i++) {
+            fs.addDir();
+            if (i == 7) {
+                // Leave a leaf empty.
+                continue;
+            }
+            if (i % 2 == 0) {
+                fs.setCodec(Generic_Codecs.COMPACT);
+            } else {
+                fs.setCodec(null);
+            }
+            fs.add(i);
+        }
+        try (Generic_PackedStore s = Generic_PackedStore.fromFileStore(fs, p3,
+                1024)) {
+            Assertions.assertEquals(n, s.getCount());
+            for (int i = 0; i < n; i++) {
+                if (i == 7) {
+                    Assertions.assertNull(s.get(i));
+                } else {
+                    Assertions.assertEquals(i, s.get(i));
+                }
+            }
+            Generic_FileStore fs2 = s.toFileStore(p, name2, (short) 10);
+            Assertions.assertEquals(n - 1, fs2.getNextID());
+            for (int i = 0; i < n; i++) {
+                if (i == 7) {
+                    Assertions.assertFalse(Files.exists(Paths.get(
+                            fs2.getPath(i).toString(), name2)));
+                } else {
+                    Assertions.assertEquals(i, fs2.get(i));
+                }
+            }
+        }
+        for (Path x : new Path[]{p2, p3, p4}) {
+            Generic_IO.delete(x, false);
+        }
+    }
+}